@@ -0,0 +1,99 @@
+package com.luogh.netty;
+
+import com.luogh.base.EventLog;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundBuffer;
+import io.netty.channel.ChannelPromise;
+
+/**
+ * 慢客户端的反压: 出站缓冲超过高水位(channel不可写)时关闭autoRead，不再读取这个连接的新请求，
+ * 缓冲降到低水位以下恢复可写时再打开autoRead。高低水位由netty.write-buffer-*-water-mark配置。
+ *
+ * 同时记录每个连接的出站积压: 当前未写出的字节数、最大积压、被暂停读取的次数和总时长，
+ * 连接关闭时如果发生过暂停就输出一条事件日志。
+ * 积压直接读取ChannelOutboundBuffer的计数，和判断水位用的是同一个值(FileRegion不计入)，write时不分配listener和promise。
+ * 放在编码器之前(靠近head)，统计的是编码后的字节数。只在连接所属的EventLoop中修改，不需要同步。
+ * @author luogh
+ */
+public class BackpressureHandler extends ChannelDuplexHandler {
+    private final EventLog log;
+    private ChannelHandlerContext ctx;
+    private long maxPendingBytes;
+    private int suspendCount;
+    private long suspendedNanos;
+    private long suspendedAt;
+
+    public BackpressureHandler(EventLog log) {
+        this.log = log;
+    }
+
+    /**
+     * 已经write但还没有写到socket的字节数
+     */
+    public long pendingBytes() {
+        ChannelOutboundBuffer buffer = ctx == null ? null : ctx.channel().unsafe().outboundBuffer();
+        return buffer == null ? 0 : buffer.totalPendingWriteBytes();
+    }
+
+    public long maxPendingBytes() {
+        return maxPendingBytes;
+    }
+
+    public int suspendCount() {
+        return suspendCount;
+    }
+
+    public long suspendedNanos() {
+        return suspendedAt == 0 ? suspendedNanos : suspendedNanos + System.nanoTime() - suspendedAt;
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        this.ctx = ctx;
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        ctx.write(msg, promise);
+        // 在EventLoop中write会同步到达head，消息已经计入了ChannelOutboundBuffer
+        long pending = pendingBytes();
+        if (pending > maxPendingBytes) {
+            maxPendingBytes = pending;
+        }
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        boolean writable = ctx.channel().isWritable();
+        if (!writable && ctx.channel().config().isAutoRead()) {
+            ctx.channel().config().setAutoRead(false);
+            suspendCount++;
+            suspendedAt = System.nanoTime();
+            log.debug("暂停读取 {}: 积压 {} 字节", ctx.channel().remoteAddress(), pendingBytes());
+        } else if (writable && !ctx.channel().config().isAutoRead()) {
+            resume(ctx);
+        }
+        ctx.fireChannelWritabilityChanged();
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        if (suspendCount > 0) {
+            log.info("连接 {} 关闭: {}", ctx.channel().remoteAddress(), this);
+        }
+        ctx.fireChannelInactive();
+    }
+
+    @Override
+    public String toString() {
+        return "maxPendingBytes=" + maxPendingBytes + ", suspended " + suspendCount + " times for "
+                + suspendedNanos() / 1000000 + "ms";
+    }
+
+    private void resume(ChannelHandlerContext ctx) {
+        ctx.channel().config().setAutoRead(true);
+        suspendedNanos += System.nanoTime() - suspendedAt;
+        suspendedAt = 0;
+    }
+}
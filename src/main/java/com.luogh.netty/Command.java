@@ -0,0 +1,16 @@
+package com.luogh.netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+
+/**
+ * 服务端命令，由CommandDispatcher按命令名分发
+ * @author luogh
+ */
+public interface Command {
+
+    /**
+     * @param args 命令名和一个空格之后的剩余字节，只在本次调用中有效，需要保留时自行retain
+     */
+    void execute(ChannelHandlerContext ctx, ByteBuf args) throws Exception;
+}
@@ -0,0 +1,82 @@
+package com.luogh.netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+
+/**
+ * 按命令名分发请求帧，命令名不区分大小写(只支持ASCII)，可以包含空格，例如"QUERY TIME ORDER"。
+ *
+ * 命令名保存在按字节的trie中，直接在入站ByteBuf上逐字节匹配，不解码成String；
+ * 匹配最长的、后面紧跟帧结尾或者空格的命令名，代价只和命令名的长度有关，与命令的数量无关。
+ * 所有命令在启动时注册，之后只读，可以被所有连接共享。
+ * @author luogh
+ */
+public final class CommandDispatcher {
+    private final Node root = new Node();
+
+    private static final class Node {
+        final Node[] next = new Node[128];
+        Command command;
+    }
+
+    public CommandDispatcher register(String name, Command command) {
+        if (name.isEmpty()) {
+            throw new IllegalArgumentException("command name must not be empty");
+        }
+        Node node = root;
+        for (int i = 0; i < name.length(); i++) {
+            char ch = name.charAt(i);
+            if (ch >= 128) {
+                throw new IllegalArgumentException("command name must be ASCII: " + name);
+            }
+            int c = upper((byte) ch);
+            if (node.next[c] == null) {
+                node.next[c] = new Node();
+            }
+            node = node.next[c];
+        }
+        if (node.command != null) {
+            throw new IllegalArgumentException("duplicate command: " + name);
+        }
+        node.command = command;
+        return this;
+    }
+
+    /**
+     * 匹配帧开头的命令名并执行，执行时frame的readerIndex指向参数的开始
+     * @return 没有匹配的命令时返回false，frame不变
+     */
+    public boolean dispatch(ChannelHandlerContext ctx, ByteBuf frame) throws Exception {
+        int start = frame.readerIndex();
+        int end = frame.writerIndex();
+        Node node = root;
+        Command matched = null;
+        int matchedEnd = start;
+        for (int i = start; ; i++) {
+            if (node.command != null && (i == end || frame.getByte(i) == ' ')) {
+                matched = node.command;
+                matchedEnd = i;
+            }
+            if (i == end) {
+                break;
+            }
+            int c = upper(frame.getByte(i));
+            if (c < 0 || (node = node.next[c]) == null) {
+                break;
+            }
+        }
+        if (matched == null) {
+            return false;
+        }
+        frame.readerIndex(matchedEnd < end ? matchedEnd + 1 : end);
+        matched.execute(ctx, frame);
+        return true;
+    }
+
+    private static int upper(byte b) {
+        if (b < 0) {
+            return -1;
+        }
+        return b >= 'a' && b <= 'z' ? b - ('a' - 'A') : b;
+    }
+}
@@ -0,0 +1,71 @@
+package com.luogh.netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.CharsetUtil;
+import io.netty.util.IllegalReferenceCountException;
+
+import java.io.Closeable;
+import java.util.Date;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 预先编码好的当前时间响应。
+ *
+ * 后台定时器每refreshMillis把new Date().toString()编码到一个新的direct ByteBuf中替换current，再释放旧的buffer；
+ * 请求线程只做duplicate().retain()，写出完成后由Netty release，请求路径上不创建Date、String和新的buffer。
+ * 旧buffer在最后一个正在写的视图释放之后才真正回收；如果恰好在retain之前被定时器释放，重新读取current即可。
+ * @author luogh
+ */
+public final class CurrentTimeResponse implements Closeable {
+    private final ScheduledExecutorService timer;
+    private volatile ByteBuf current;
+
+    /**
+     * @param refreshMillis 刷新周期，Date.toString()的精度是秒，1000即可
+     */
+    public CurrentTimeResponse(long refreshMillis) {
+        this.current = encode(System.currentTimeMillis());
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "current-time-refresher");
+            t.setDaemon(true);
+            return t;
+        });
+        // 对齐到下一个周期的整点，保证秒数切换后尽快刷新
+        long delay = refreshMillis - System.currentTimeMillis() % refreshMillis;
+        timer.scheduleAtFixedRate(this::refresh, delay, refreshMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return 共享buffer的只读视图，引用计数已经加1，交给ctx.write()后由Netty释放
+     */
+    public ByteBuf retainedView() {
+        for (;;) {
+            ByteBuf buf = current;
+            try {
+                return buf.duplicate().retain();
+            } catch (IllegalReferenceCountException e) {
+                // buf刚被refresh()释放，current已经指向新的buffer
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        timer.shutdown();
+        current.release();
+    }
+
+    private void refresh() {
+        ByteBuf old = current;
+        current = encode(System.currentTimeMillis());
+        old.release();
+    }
+
+    private static ByteBuf encode(long millis) {
+        byte[] bytes = new Date(millis).toString().getBytes(CharsetUtil.UTF_8);
+        return Unpooled.directBuffer(bytes.length).writeBytes(bytes);
+    }
+}
@@ -0,0 +1,173 @@
+package com.luogh.netty;
+
+import com.typesafe.config.Config;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.DefaultFileRegion;
+import io.netty.handler.codec.compression.ZlibEncoder;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.stream.ChunkedWriteHandler;
+import io.netty.util.AttributeKey;
+import io.netty.util.CharsetUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * FILE <path> [start [length]]: 发送root目录下文件的一个区间，默认从0到文件结尾。
+ *
+ * 成功时先回复"OK <length>"，下一帧的消息体就是文件内容；失败时只回复一条ERR。
+ * 路径按真实路径(解析所有符号链接之后)判断，指向root之外的符号链接和root之外的文件一样回复ERR NOT FOUND。
+ * 文件内容的长度字段以RequestIdCodec.Continuation单独写出，请求带id时文件内容这一帧也带同样的前缀，内容本身:
+ *      1.普通TCP连接写DefaultFileRegion，由内核transferTo/sendfile直接从page cache发到socket，不经过用户态buffer
+ *      2.pipeline中有SslHandler或者压缩编码器时字节必须经过它们，改为MappedChunkedInput按块从映射内存写出，
+ *        第一次使用时在长度字段编码器靠近head的一侧加入ChunkedWriteHandler
+ * 两种方式都在真正写出时才打开文件，排在出站队列中的传输不占用文件句柄。
+ * 出站缓冲按0字节计算FileRegion的大小，不读响应的客户端不会让连接变得不可写，
+ * 所以每个连接同时排队和写出的传输最多max-in-flight个，超过时回复ERR BUSY。
+ * 一次最多发送max-length字节，更大的文件按区间分多次请求；客户端按FrameCodec.clientMaxFrameLength()接收。
+ * 帧的长度字段是int，max-length加上长度字段和id前缀超过Integer.MAX_VALUE时截断。
+ * @author luogh
+ */
+public class FileCommand implements Command {
+    private static final ByteBuf NOT_FOUND = error("ERR NOT FOUND");
+    private static final ByteBuf BAD_RANGE = error("ERR BAD RANGE");
+    private static final ByteBuf TOO_LARGE = error("ERR TOO LARGE");
+    private static final ByteBuf BUSY = error("ERR BUSY");
+    private static final AttributeKey<AtomicInteger> IN_FLIGHT = AttributeKey.valueOf("file.inFlight");
+
+    private final Path root;
+    private final long maxLength;
+    private final int chunkSize;
+    private final int maxInFlight;
+
+    /**
+     * @param config netty.file配置
+     */
+    public FileCommand(Config config) {
+        this(Paths.get(config.getString("root")), config.getBytes("max-length"),
+                config.getBytes("chunk-size").intValue(), config.getInt("max-in-flight"));
+    }
+
+    /**
+     * @param maxInFlight 每个连接同时排队和写出的传输数上限
+     */
+    public FileCommand(Path root, long maxLength, int chunkSize, int maxInFlight) {
+        this.root = root.toAbsolutePath().normalize();
+        this.maxLength = Math.min(maxLength,
+                Integer.MAX_VALUE - FrameCodec.LENGTH_FIELD_LENGTH - RequestIdCodec.TAG_LENGTH);
+        this.chunkSize = chunkSize;
+        this.maxInFlight = maxInFlight;
+    }
+
+    @Override
+    public void execute(ChannelHandlerContext ctx, ByteBuf args) throws Exception {
+        String[] parts = args.toString(CharsetUtil.UTF_8).split(" ");
+        File file = resolve(parts[0]);
+        if (file == null) {
+            ctx.write(NOT_FOUND.duplicate());
+            return;
+        }
+        long size = file.length();
+        long start;
+        long length;
+        try {
+            start = parts.length > 1 ? Long.parseLong(parts[1]) : 0;
+            length = parts.length > 2 ? Long.parseLong(parts[2]) : size - start;
+        } catch (NumberFormatException e) {
+            ctx.write(BAD_RANGE.duplicate());
+            return;
+        }
+        if (parts.length > 3 || start < 0 || start > size || length < 0) {
+            ctx.write(BAD_RANGE.duplicate());
+            return;
+        }
+        length = Math.min(length, size - start);
+        if (length > maxLength) {
+            ctx.write(TOO_LARGE.duplicate());
+            return;
+        }
+
+        AtomicInteger inFlight = inFlight(ctx);
+        if (inFlight.incrementAndGet() > maxInFlight) {
+            inFlight.decrementAndGet();
+            ctx.write(BUSY.duplicate());
+            return;
+        }
+        Object content;
+        try {
+            content = transformsBytes(ctx.pipeline())
+                    ? chunked(ctx.pipeline(), file, start, length)
+                    : new DefaultFileRegion(file, start, length); // 写出时才打开文件
+        } catch (Exception e) {
+            inFlight.decrementAndGet();
+            throw e;
+        }
+        ByteBuf ok = ctx.alloc().buffer().writeBytes(("OK " + length).getBytes(CharsetUtil.UTF_8));
+        PreEncodedFrame header = new RequestIdCodec.Continuation(ctx.alloc(), (int) length);
+        // 在一个EventLoop任务中连续写出，广播消息不会插在长度字段和文件内容之间
+        ctx.channel().eventLoop().execute(() -> {
+            ctx.write(ok);
+            ctx.write(header);
+            // 写完、失败或者连接关闭时都会通知，归还这个连接的传输名额
+            ctx.write(content).addListener((ChannelFutureListener) future -> inFlight.decrementAndGet());
+        });
+    }
+
+    private static AtomicInteger inFlight(ChannelHandlerContext ctx) {
+        AtomicInteger inFlight = ctx.channel().attr(IN_FLIGHT).get();
+        if (inFlight == null) {
+            AtomicInteger created = new AtomicInteger();
+            inFlight = ctx.channel().attr(IN_FLIGHT).setIfAbsent(created);
+            if (inFlight == null) {
+                inFlight = created;
+            }
+        }
+        return inFlight;
+    }
+
+    /**
+     * 比较解析了符号链接之后的真实路径，root本身也可能是符号链接
+     * @return root之外、不存在或者不是普通文件时返回null
+     */
+    private File resolve(String path) {
+        if (path.isEmpty()) {
+            return null;
+        }
+        Path real;
+        try {
+            real = root.resolve(path).toRealPath();
+            if (!real.startsWith(root.toRealPath())) {
+                return null;
+            }
+        } catch (IOException | InvalidPathException e) {
+            return null;
+        }
+        File file = real.toFile();
+        return file.isFile() ? file : null;
+    }
+
+    private MappedChunkedInput chunked(ChannelPipeline pipeline, File file, long start, long length)
+            throws Exception {
+        if (pipeline.get(ChunkedWriteHandler.class) == null) {
+            // 普通TCP连接用不到，只在需要时加入，避免所有写操作都经过它的队列
+            pipeline.addBefore(FrameCodec.PRE_ENCODED, "chunkedWriter", new ChunkedWriteHandler());
+        }
+        return new MappedChunkedInput(file, start, length, chunkSize);
+    }
+
+    private static boolean transformsBytes(ChannelPipeline pipeline) {
+        return pipeline.get(SslHandler.class) != null || pipeline.get(ZlibEncoder.class) != null;
+    }
+
+    private static ByteBuf error(String message) {
+        return Unpooled.unreleasableBuffer(Unpooled.directBuffer().writeBytes(message.getBytes(CharsetUtil.UTF_8)));
+    }
+}
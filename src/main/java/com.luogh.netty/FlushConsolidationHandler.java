@@ -0,0 +1,148 @@
+package com.luogh.netty;
+
+import com.typesafe.config.Config;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufHolder;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+
+/**
+ * 合并flush，减少write系统调用的次数。Netty 4.0没有自带的FlushConsolidationHandler，这里按同样的思路实现:
+ *
+ *      1.读循环中(channelRead到channelReadComplete之间)的flush先不执行，累计到maxFlushes次或者maxPendingBytes字节
+ *        时才真正flush，否则在channelReadComplete时统一flush一次
+ *      2.不在读循环中的flush(例如业务线程池写回的响应)，consolidateWhenNoReadInProgress时提交到EventLoop异步执行，
+ *        同一轮中的多次flush合并成一次；否则立即flush
+ *      3.close、disconnect、异常和可写性变化之前先把积压的数据flush出去
+ *
+ * 放在pipeline的最前面(靠近head)，这样看到的是编码后的ByteBuf，按字节数判断才准确。
+ * @author luogh
+ */
+public class FlushConsolidationHandler extends ChannelDuplexHandler {
+    private final int maxFlushes;
+    private final long maxPendingBytes;
+    private final boolean consolidateWhenNoReadInProgress;
+    private final Runnable flushTask;
+    private ChannelHandlerContext ctx;
+    private boolean readInProgress;
+    private boolean flushScheduled;
+    private int pendingFlushes;
+    private long pendingBytes;
+
+    /**
+     * 从配置中读取max-flushes、max-pending-bytes和consolidate-when-no-read
+     */
+    public FlushConsolidationHandler(Config config) {
+        this(config.getInt("max-flushes"), config.getBytes("max-pending-bytes"),
+                config.getBoolean("consolidate-when-no-read"));
+    }
+
+    /**
+     * @param maxFlushes 读循环中累计多少次flush后立即flush
+     * @param maxPendingBytes 未flush的数据达到多少字节后立即flush
+     * @param consolidateWhenNoReadInProgress 读循环之外的flush是否也合并
+     */
+    public FlushConsolidationHandler(int maxFlushes, long maxPendingBytes, boolean consolidateWhenNoReadInProgress) {
+        if (maxFlushes <= 0) {
+            throw new IllegalArgumentException("maxFlushes must be positive: " + maxFlushes);
+        }
+        this.maxFlushes = maxFlushes;
+        this.maxPendingBytes = maxPendingBytes;
+        this.consolidateWhenNoReadInProgress = consolidateWhenNoReadInProgress;
+        this.flushTask = () -> {
+            flushScheduled = false;
+            if (pendingFlushes > 0 && !readInProgress) {
+                flushNow(ctx);
+            }
+        };
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        this.ctx = ctx;
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+        flushIfNeeded(ctx);
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        readInProgress = true;
+        ctx.fireChannelRead(msg);
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        // 先向后传递，后面handler在channelReadComplete中的flush仍然算在读循环内，最后只flush一次
+        ctx.fireChannelReadComplete();
+        readInProgress = false;
+        flushIfNeeded(ctx);
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (msg instanceof ByteBuf) {
+            pendingBytes += ((ByteBuf) msg).readableBytes();
+        } else if (msg instanceof ByteBufHolder) {
+            pendingBytes += ((ByteBufHolder) msg).content().readableBytes();
+        }
+        ctx.write(msg, promise);
+    }
+
+    @Override
+    public void flush(ChannelHandlerContext ctx) throws Exception {
+        pendingFlushes++;
+        if (pendingFlushes >= maxFlushes || pendingBytes >= maxPendingBytes) {
+            flushNow(ctx);
+        } else if (!readInProgress) {
+            if (!consolidateWhenNoReadInProgress) {
+                flushNow(ctx);
+            } else if (!flushScheduled) {
+                flushScheduled = true;
+                ctx.channel().eventLoop().execute(flushTask);
+            }
+        }
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        if (!ctx.channel().isWritable()) {
+            // 已经超过高水位了，不再攒数据
+            flushIfNeeded(ctx);
+        }
+        ctx.fireChannelWritabilityChanged();
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+        flushIfNeeded(ctx);
+        ctx.fireExceptionCaught(cause);
+    }
+
+    @Override
+    public void disconnect(ChannelHandlerContext ctx, ChannelPromise promise) throws Exception {
+        flushIfNeeded(ctx);
+        ctx.disconnect(promise);
+    }
+
+    @Override
+    public void close(ChannelHandlerContext ctx, ChannelPromise promise) throws Exception {
+        flushIfNeeded(ctx);
+        ctx.close(promise);
+    }
+
+    private void flushIfNeeded(ChannelHandlerContext ctx) {
+        if (pendingFlushes > 0) {
+            flushNow(ctx);
+        }
+    }
+
+    private void flushNow(ChannelHandlerContext ctx) {
+        pendingFlushes = 0;
+        pendingBytes = 0;
+        ctx.flush();
+    }
+}
@@ -0,0 +1,51 @@
+package com.luogh.netty;
+
+import com.typesafe.config.ConfigFactory;
+import io.netty.channel.ChannelPipeline;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+import io.netty.handler.codec.LengthFieldPrepender;
+
+/**
+ * 服务端和客户端共用的二进制分帧协议: 4字节大端长度(不包含长度字段本身) + 消息体。
+ *
+ * 解码器直接在pooled ByteBuf上按长度切分，TCP把多个请求合并成一个包或者把一个请求拆成多个包时都能得到完整的帧；
+ * 长度超过maxFrameLength时立即抛出TooLongFrameException(failFast)，不会先缓存超长的数据。
+ * 服务端只接收短小的请求，使用默认的64KB；客户端要能收下FILE命令的响应，使用clientMaxFrameLength()。
+ * @author luogh
+ */
+public final class FrameCodec {
+    public static final int LENGTH_FIELD_LENGTH = 4;
+    public static final int DEFAULT_MAX_FRAME_LENGTH = 64 * 1024;
+    public static final String FRAME_DECODER = "frameDecoder";
+    public static final String FRAME_ENCODER = "frameEncoder";
+    public static final String PRE_ENCODED = "preEncodedFrame";
+
+    private FrameCodec() {
+    }
+
+    public static void install(ChannelPipeline pipeline) {
+        install(pipeline, DEFAULT_MAX_FRAME_LENGTH);
+    }
+
+    /**
+     * 客户端的maxFrameLength: 一帧最长是application.conf中netty.file.max-length字节的文件内容加上长度字段和id前缀，
+     * 至少是DEFAULT_MAX_FRAME_LENGTH
+     */
+    public static int clientMaxFrameLength() {
+        long fileLength = ConfigFactory.load().getBytes("netty.file.max-length");
+        long frameLength = Math.max(fileLength + LENGTH_FIELD_LENGTH + RequestIdCodec.TAG_LENGTH,
+                DEFAULT_MAX_FRAME_LENGTH);
+        return (int) Math.min(frameLength, Integer.MAX_VALUE);
+    }
+
+    /**
+     * 在pipeline末尾加入分帧的解码器和编码器，之后加入的handler收到和发出的都是去掉了长度字段的消息体；
+     * 写出PreEncodedFrame时不再添加长度字段
+     */
+    public static void install(ChannelPipeline pipeline, int maxFrameLength) {
+        pipeline.addLast(FRAME_DECODER, new LengthFieldBasedFrameDecoder(
+                maxFrameLength, 0, LENGTH_FIELD_LENGTH, 0, LENGTH_FIELD_LENGTH, true))
+                .addLast(PRE_ENCODED, PreEncodedFrame.Unwrapper.INSTANCE)
+                .addLast(FRAME_ENCODER, new LengthFieldPrepender(LENGTH_FIELD_LENGTH));
+    }
+}
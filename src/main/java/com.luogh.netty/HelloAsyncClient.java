@@ -0,0 +1,261 @@
+package com.luogh.netty;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.util.CharsetUtil;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import static java.lang.System.out;
+
+/**
+ * HelloNettyServer的异步客户端，每个请求返回一个CompletableFuture。
+ *
+ * 请求带上RequestIdCodec的id前缀，响应按id匹配，一个连接上可以同时有任意多个未完成的请求，不需要一个请求一个线程；
+ * 多个连接注册在同一个EventLoopGroup上，按round-robin分布到不同的EventLoop，请求也按round-robin分配到连接上。
+ * 调用线程中的writeAndFlush经过FlushConsolidationHandler，同一轮提交的多个请求合并成一次write系统调用。
+ * FILE命令用requestFile发送，服务端成功时回复"OK <length>"，之后是带同样id的文件内容，两帧都收到后以原始字节完成。
+ * 不带id的帧(广播消息)交给unsolicited回调，在IO线程中执行，ByteBuf只在回调中有效。
+ * 连接断开时这个连接上所有未完成的请求以ClosedChannelException失败。线程安全。
+ * @author luogh
+ */
+public class HelloAsyncClient implements Closeable {
+    private final EventLoopGroup group;
+    private final List<Connection> connections = new ArrayList<>();
+    private final Consumer<ByteBuf> unsolicited;
+    private final AtomicLong nextId = new AtomicLong();
+    private final AtomicInteger nextConnection = new AtomicInteger();
+
+    private HelloAsyncClient(EventLoopGroup group, Consumer<ByteBuf> unsolicited) {
+        this.group = group;
+        this.unsolicited = unsolicited;
+    }
+
+    /**
+     * 一个未完成的请求，reply和content只有一个不为null
+     */
+    private static final class Pending {
+        /**
+         * 普通命令的响应文本
+         */
+        final CompletableFuture<String> reply;
+        /**
+         * FILE命令的文件内容，成功时"OK <length>"之后还有一帧文件内容
+         */
+        final CompletableFuture<byte[]> content;
+        /**
+         * 已经收到"OK <length>"，只在IO线程中访问
+         */
+        boolean accepted;
+
+        Pending(CompletableFuture<String> reply, CompletableFuture<byte[]> content) {
+            this.reply = reply;
+            this.content = content;
+        }
+
+        void fail(Throwable cause) {
+            if (reply != null) {
+                reply.completeExceptionally(cause);
+            } else {
+                content.completeExceptionally(cause);
+            }
+        }
+    }
+
+    /**
+     * 一个连接上未完成的请求
+     */
+    private final class Connection extends SimpleChannelInboundHandler<ByteBuf> {
+        private final ConcurrentHashMap<Long, Pending> pending = new ConcurrentHashMap<>();
+        private Channel channel;
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, ByteBuf msg) throws Exception {
+            if (!RequestIdCodec.isTagged(msg)) {
+                unsolicited.accept(msg);
+                return;
+            }
+            long id = msg.getLong(msg.readerIndex() + 1);
+            Pending request = pending.get(id);
+            if (request == null) {
+                return;
+            }
+            int offset = msg.readerIndex() + RequestIdCodec.TAG_LENGTH;
+            int length = msg.readableBytes() - RequestIdCodec.TAG_LENGTH;
+            if (request.reply != null) {
+                pending.remove(id);
+                request.reply.complete(msg.toString(offset, length, CharsetUtil.UTF_8));
+                return;
+            }
+            if (!request.accepted) {
+                String text = msg.toString(offset, length, CharsetUtil.UTF_8);
+                if (text.startsWith("OK ")) {
+                    // 等待同一个id的文件内容
+                    request.accepted = true;
+                    return;
+                }
+                pending.remove(id);
+                request.content.completeExceptionally(new IOException(text));
+                return;
+            }
+            // 文件内容是任意字节，原样复制出来，不按文本解码
+            pending.remove(id);
+            byte[] content = new byte[length];
+            msg.getBytes(offset, content);
+            request.content.complete(content);
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            ClosedChannelException cause = new ClosedChannelException();
+            for (Long id : pending.keySet()) {
+                Pending request = pending.remove(id);
+                if (request != null) {
+                    request.fail(cause);
+                }
+            }
+            super.channelInactive(ctx);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+            HelloClientHandler.LOG.warn("连接异常 [{}]: {}", ctx.channel().remoteAddress(), cause.getMessage());
+            ctx.close();
+        }
+    }
+
+    /**
+     * @param connections 连接数，通常不超过EventLoop的数量
+     * @param unsolicited 不带id的帧的回调
+     */
+    public static HelloAsyncClient connect(String host, int port, int connections, Consumer<ByteBuf> unsolicited)
+            throws InterruptedException {
+        NettyTransport transport = NettyTransport.load();
+        Config flushConfig = ConfigFactory.load().getConfig("netty.flush");
+        HelloAsyncClient client = new HelloAsyncClient(transport.newWorkerGroup(), unsolicited);
+        try {
+            for (int i = 0; i < connections; i++) {
+                Connection connection = client.new Connection();
+                Bootstrap bootstrap = new Bootstrap();
+                transport.configure(bootstrap.group(client.group))
+                        .option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+                        .handler(new ChannelInitializer<SocketChannel>() {
+                            @Override
+                            protected void initChannel(SocketChannel ch) throws Exception {
+                                ch.pipeline().addLast("flushConsolidation", new FlushConsolidationHandler(flushConfig));
+                                FrameCodec.install(ch.pipeline(), FrameCodec.clientMaxFrameLength());
+                                ch.pipeline().addLast("handler", connection);
+                            }
+                        });
+                connection.channel = bootstrap.connect(host, port).sync().channel();
+                client.connections.add(connection);
+            }
+        } catch (InterruptedException | RuntimeException e) {
+            client.close();
+            throw e;
+        }
+        return client;
+    }
+
+    /**
+     * 发送一条命令，例如"QUERY TIME ORDER"，FILE命令使用requestFile
+     * @return 响应的文本，连接断开或者写失败时异常完成
+     */
+    public CompletableFuture<String> request(String command) {
+        if (command.regionMatches(true, 0, "FILE ", 0, 5)) {
+            throw new IllegalArgumentException("use requestFile for FILE: " + command);
+        }
+        CompletableFuture<String> reply = new CompletableFuture<>();
+        send(command, new Pending(reply, null));
+        return reply;
+    }
+
+    /**
+     * 读取服务端root目录下的整个文件
+     */
+    public CompletableFuture<byte[]> requestFile(String path) {
+        return fileRequest("FILE " + path);
+    }
+
+    /**
+     * 读取服务端root目录下文件的一个区间，超过文件结尾的部分被截掉
+     * @return 文件内容；服务端回复ERR时以带着回复文本的IOException异常完成
+     */
+    public CompletableFuture<byte[]> requestFile(String path, long start, long length) {
+        return fileRequest("FILE " + path + " " + start + " " + length);
+    }
+
+    private CompletableFuture<byte[]> fileRequest(String command) {
+        CompletableFuture<byte[]> content = new CompletableFuture<>();
+        send(command, new Pending(null, content));
+        return content;
+    }
+
+    private void send(String command, Pending request) {
+        Connection connection = connections.get(Math.floorMod(nextConnection.getAndIncrement(), connections.size()));
+        long id = nextId.incrementAndGet();
+        byte[] bytes = command.getBytes(CharsetUtil.UTF_8);
+        connection.pending.put(id, request);
+        Channel ch = connection.channel;
+        ch.writeAndFlush(RequestIdCodec.newTagged(ch.alloc(), id, bytes.length).writeBytes(bytes))
+                .addListener((ChannelFutureListener) f -> {
+                    if (!f.isSuccess() && connection.pending.remove(id) != null) {
+                        request.fail(f.cause());
+                    }
+                });
+    }
+
+    /**
+     * 关闭所有连接，未完成的请求异常完成
+     */
+    @Override
+    public void close() {
+        for (Connection connection : connections) {
+            connection.channel.close().syncUninterruptibly();
+        }
+        group.shutdownGracefully();
+    }
+
+    /**
+     * HelloAsyncClient host port connections requests
+     */
+    public static void main(String[] args) throws Exception {
+        String host = args.length > 0 ? args[0] : "127.0.0.1";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 8000;
+        int connections = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        int requests = args.length > 3 ? Integer.parseInt(args[3]) : 100000;
+        try (HelloAsyncClient client = connect(host, port, connections,
+                frame -> out.println("unsolicited: " + frame.toString(CharsetUtil.UTF_8)))) {
+            long start = System.nanoTime();
+            List<CompletableFuture<String>> futures = new ArrayList<>(requests);
+            for (int i = 0; i < requests; i++) {
+                futures.add(client.request("QUERY TIME ORDER"));
+            }
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(60, TimeUnit.SECONDS);
+            long elapsed = System.nanoTime() - start;
+            out.println(requests + " requests over " + connections + " connections in " + elapsed / 1000000
+                    + "ms, last response: " + futures.get(requests - 1).get());
+        }
+    }
+}
@@ -1,19 +1,18 @@
 package com.luogh.netty;
 
 import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.channel.*;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioSocketChannel;
-import io.netty.handler.codec.DelimiterBasedFrameDecoder;
-import io.netty.handler.codec.Delimiters;
 import io.netty.handler.codec.string.StringDecoder;
 import io.netty.handler.codec.string.StringEncoder;
+import io.netty.util.CharsetUtil;
 import org.apache.spark.unsafe.Platform;
 import sun.misc.Unsafe;
 
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.util.Arrays;
 
 import static java.lang.System.out;
 
@@ -29,19 +28,21 @@ public class HelloClient {
      * @throws Exception
      */
     public void connect(int port,String host) throws Exception {
-        //配置客户端NIO线程组
-        EventLoopGroup group = new NioEventLoopGroup();
+        //配置客户端线程组，epoll/NIO和TCP参数来自application.conf中的netty配置
+        NettyTransport transport = NettyTransport.load();
+        EventLoopGroup group = transport.newWorkerGroup();
         try {
             //客户端辅助启动类 对客户端配置
             Bootstrap bootstrap = new Bootstrap();
-            bootstrap.group(group).channel(NioSocketChannel.class)
-                    .option(ChannelOption.TCP_NODELAY,true)
+            transport.configure(bootstrap.group(group))
+                    .option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
                     .handler(new ChannelInitializer<SocketChannel>() {
                         @Override
                         protected void initChannel(SocketChannel ch) throws Exception {
-                            ch.pipeline()//.addLast("framer",new DelimiterBasedFrameDecoder(8192, Delimiters.lineDelimiter()))
-                                    .addLast("decoder",new StringDecoder()) // 字符串编码
-                                    .addLast("encoder",new StringEncoder()) // 字符串解码
+                            FrameCodec.install(ch.pipeline(), FrameCodec.clientMaxFrameLength());
+                            ch.pipeline()
+                                    .addLast("decoder",new StringDecoder(CharsetUtil.UTF_8)) // 字符串解码
+                                    .addLast("encoder",new StringEncoder(CharsetUtil.UTF_8)) // 字符串编码
                                     .addLast(new HelloClientHandler());
                         }
                     });
@@ -50,17 +51,21 @@ public class HelloClient {
             ChannelFuture f = bootstrap.connect(host,port).sync();
             Channel ch = f.channel();
             BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+            WriteBatch batch = new WriteBatch(ch);
             for(;;) {
                 String line = in.readLine();
                 if(line == null) continue;
                 /**
-                 * 向服务器端发送在控制台输入的文本,并用"\r\n"结尾
-                 * 之所以使用\r\n结尾，是因为我们在handler中添加了DelimeterBasedFramDecorder
-                 * 帧编码。
-                 * 这个解码器是一个根据\n符号位分隔符的解码器，所以每条消息的最后必须加上\n\r,
-                 * 否则无法识别和解码
+                 * 向服务器端发送在控制台输入的文本
+                 * FrameCodec会在每条消息前加上4字节的长度字段，服务器端按长度解码，
+                 * 所以消息本身不需要任何分隔符。
+                 * 一次粘贴的多行文本已经在缓冲区中，全部读出来作为一批发送，只flush一次
                  */
-                ch.writeAndFlush(line);
+                batch.add(line);
+                while (in.ready() && (line = in.readLine()) != null) {
+                    batch.add(line);
+                }
+                batch.send();
             }
         } finally {
             group.shutdownGracefully();
@@ -68,7 +73,14 @@ public class HelloClient {
         }
     }
 
+    /**
+     * HelloClient bench ... 进入压测模式，参数见HelloLoadGenerator
+     */
     public static void main(String[] args) throws Exception {
+        if (args.length > 0 && "bench".equals(args[0])) {
+            HelloLoadGenerator.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
         new HelloClient().connect(8000,"127.0.0.1");
     }
 }
@@ -0,0 +1,226 @@
+package com.luogh.netty;
+
+import com.luogh.base.LatencyHistogram;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.ScheduledFuture;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.lang.System.out;
+
+/**
+ * HelloNettyServer的压测客户端，建立N个连接发送"QUERY TIME ORDER"，统计延迟分布和吞吐量。
+ *
+ *      closed: 固定并发，每个连接保持concurrency / N个未完成的请求，收到一个响应立即再发一个；
+ *              可选的expectedMicros用于coordinated omission修正
+ *      open:   固定速率，每个连接按rate / N的速率每毫秒补发到期的请求，延迟从"计划发送时间"开始算，
+ *              服务端变慢导致的发送推迟也计入延迟，不存在coordinated omission
+ *
+ * 服务端按请求顺序返回响应，每个连接用一个FIFO记录发送时间，所有操作都在连接所属的EventLoop中进行，不需要同步。
+ * @author luogh
+ */
+public class HelloLoadGenerator {
+    private static final ByteBuf REQUEST = Unpooled.unreleasableBuffer(
+            Unpooled.directBuffer().writeBytes("QUERY TIME ORDER".getBytes(CharsetUtil.UTF_8)));
+
+    private final LatencyHistogram histogram = new LatencyHistogram();
+    private final LongAdder completed = new LongAdder();
+    private final boolean openLoop;
+    private final long expectedIntervalNanos;
+    private volatile boolean running = true;
+
+    private HelloLoadGenerator(boolean openLoop, long expectedIntervalNanos) {
+        this.openLoop = openLoop;
+        this.expectedIntervalNanos = expectedIntervalNanos;
+    }
+
+    /**
+     * 一个连接上的发送和接收
+     */
+    private final class Connection extends ChannelInboundHandlerAdapter {
+        private long[] sendTimes = new long[1024];
+        private int head;
+        private int tail;
+        private Channel channel;
+        private ScheduledFuture<?> ticker;
+
+        void startClosed(int outstanding) {
+            long now = System.nanoTime();
+            for (int i = 0; i < outstanding; i++) {
+                send(now);
+            }
+            channel.flush();
+        }
+
+        void startOpen(double ratePerSecond) {
+            long interval = intervalNanos(ratePerSecond);
+            long start = System.nanoTime();
+            long[] next = {0};
+            ticker = channel.eventLoop().scheduleAtFixedRate(() -> {
+                // 先算出到现在为止应该发出的个数，不计算下一个请求的时间，间隔很大时也不会溢出
+                long due = (System.nanoTime() - start) / interval;
+                while (running && next[0] <= due) {
+                    send(start + next[0] * interval);
+                    next[0]++;
+                }
+                channel.flush();
+            }, 0, 1, TimeUnit.MILLISECONDS);
+        }
+
+        void stop() {
+            if (ticker != null) {
+                ticker.cancel(false);
+            }
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            ReferenceCountUtil.release(msg);
+            if (head == tail) {
+                return;
+            }
+            long now = System.nanoTime();
+            long latency = now - sendTimes[head];
+            head = (head + 1) & (sendTimes.length - 1);
+            if (openLoop) {
+                histogram.record(latency);
+            } else {
+                histogram.recordWithExpectedInterval(latency, expectedIntervalNanos);
+                if (running) {
+                    send(now);
+                }
+            }
+            completed.increment();
+        }
+
+        @Override
+        public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+            ctx.flush();
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+            out.println("connection " + ctx.channel() + " failed: " + cause.getMessage());
+            ctx.close();
+        }
+
+        private void send(long intendedNanos) {
+            sendTimes[tail] = intendedNanos;
+            tail = (tail + 1) & (sendTimes.length - 1);
+            if (tail == head) {
+                grow();
+            }
+            channel.write(REQUEST.duplicate(), channel.voidPromise());
+        }
+
+        private void grow() {
+            long[] grown = new long[sendTimes.length << 1];
+            int n = sendTimes.length - head;
+            System.arraycopy(sendTimes, head, grown, 0, n);
+            System.arraycopy(sendTimes, 0, grown, n, head);
+            head = 0;
+            tail = sendTimes.length;
+            sendTimes = grown;
+        }
+    }
+
+    private void run(String host, int port, int connections, double load, int seconds) throws Exception {
+        NettyTransport transport = NettyTransport.load();
+        EventLoopGroup group = transport.newWorkerGroup();
+        try {
+            List<Connection> handlers = new ArrayList<>();
+            for (int i = 0; i < connections; i++) {
+                Connection connection = new Connection();
+                Bootstrap bootstrap = new Bootstrap();
+                transport.configure(bootstrap.group(group))
+                        .option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+                        .handler(new ChannelInitializer<SocketChannel>() {
+                            @Override
+                            protected void initChannel(SocketChannel ch) throws Exception {
+                                FrameCodec.install(ch.pipeline());
+                                ch.pipeline().addLast(connection);
+                            }
+                        });
+                connection.channel = bootstrap.connect(host, port).sync().channel();
+                handlers.add(connection);
+            }
+            out.println((openLoop ? "open loop " + load + " req/s" : "closed loop concurrency " + (int) load)
+                    + " over " + connections + " connections, " + seconds + "s, " + transport);
+
+            long start = System.nanoTime();
+            for (int i = 0; i < connections; i++) {
+                Connection connection = handlers.get(i);
+                if (openLoop) {
+                    connection.channel.eventLoop().execute(() -> connection.startOpen(load / connections));
+                } else {
+                    // 把总并发尽量平均地分到每个连接上
+                    int outstanding = (int) load / connections + (i < (int) load % connections ? 1 : 0);
+                    connection.channel.eventLoop().execute(() -> connection.startClosed(outstanding));
+                }
+            }
+            for (int s = 1; s <= seconds; s++) {
+                Thread.sleep(1000);
+                out.println(s + "s: " + completed.sum() + " responses");
+            }
+            running = false;
+            long elapsed = System.nanoTime() - start;
+            for (Connection connection : handlers) {
+                connection.channel.eventLoop().execute(connection::stop);
+            }
+            out.println(String.format("throughput: %.0f req/s", completed.sum() / (elapsed / 1e9)));
+            out.println(histogram.summaryMicros());
+            for (Connection connection : handlers) {
+                connection.channel.close().sync();
+            }
+        } finally {
+            group.shutdownGracefully();
+        }
+    }
+
+    /**
+     * 单个连接按ratePerSecond发送时两个请求的间隔
+     */
+    private static long intervalNanos(double ratePerSecond) {
+        return (long) (TimeUnit.SECONDS.toNanos(1) / ratePerSecond);
+    }
+
+    /**
+     * HelloLoadGenerator host port connections closed|open concurrency|ratePerSecond seconds [expectedMicros]
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 6) {
+            out.println("usage: HelloLoadGenerator host port connections closed|open concurrency|ratePerSecond seconds [expectedMicros]");
+            return;
+        }
+        boolean openLoop = "open".equals(args[3]);
+        long expectedNanos = args.length > 6 ? TimeUnit.MICROSECONDS.toNanos(Long.parseLong(args[6])) : 0;
+        int connections = Integer.parseInt(args[2]);
+        double load = Double.parseDouble(args[4]);
+        if (!openLoop && load < connections) {
+            throw new IllegalArgumentException("concurrency must be >= connections: " + Arrays.toString(args));
+        }
+        // rate不是正数时间隔没有意义，间隔舍入成0时每个tick都要补发无穷多个请求
+        if (openLoop && !(load > 0 && intervalNanos(load / connections) > 0)) {
+            throw new IllegalArgumentException("ratePerSecond must be > 0 and <= 1e9 per connection: "
+                    + Arrays.toString(args));
+        }
+        new HelloLoadGenerator(openLoop, expectedNanos)
+                .run(args[0], Integer.parseInt(args[1]), connections, load, Integer.parseInt(args[5]));
+    }
+}
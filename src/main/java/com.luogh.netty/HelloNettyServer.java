@@ -1,15 +1,22 @@
 package com.luogh.netty;
 
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
-import io.netty.handler.codec.string.StringDecoder;
 import io.netty.handler.codec.string.StringEncoder;
+import io.netty.util.CharsetUtil;
+import io.netty.util.concurrent.DefaultEventExecutorGroup;
+import io.netty.util.concurrent.EventExecutorGroup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static java.lang.System.out;
 
@@ -19,28 +26,45 @@ import static java.lang.System.out;
  */
 public class HelloNettyServer {
     public void bind(int port) throws Exception {
+        // 传输层(epoll/NIO)、线程数和TCP参数来自application.conf中的netty配置
+        NettyTransport transport = NettyTransport.load();
         // 服务器线程组,用于网络事件的处理，一个用于服务器接收客户端的连接，另一个用于处理
         // SocketChannel的网络读写
-        EventLoopGroup bossGroup = new NioEventLoopGroup();
-        EventLoopGroup workerGroup = new NioEventLoopGroup();
+        EventLoopGroup bossGroup = transport.newBossGroup();
+        EventLoopGroup workerGroup = transport.newWorkerGroup();
+        // 业务逻辑不在IO线程中执行，每个连接的handler绑定到业务线程池中的一个线程上，保证处理顺序
+        Config businessConfig = ConfigFactory.load().getConfig("netty.business");
+        EventExecutorGroup businessGroup = new DefaultEventExecutorGroup(businessConfig.getInt("threads"));
+        // 全局统计，通过JMX和STATS命令查看
+        ServerStats stats = new ServerStats();
+        stats.registerMBean();
         try {
-            //NIO 服务器端的辅助启动类 降低开发难度
+            //服务器端的辅助启动类 降低开发难度
             ServerBootstrap serverBootstrap = new ServerBootstrap();
-            serverBootstrap.group(bossGroup,workerGroup)
-                    .channel(NioServerSocketChannel.class) //类似于NIO中的ServerSocketChannel
-                    .option(ChannelOption.SO_BACKLOG,1024) //配置TCP参数
-                    .childHandler(new ChildChannelHandler()); //绑定I/O事件的处理类
+            transport.configure(serverBootstrap.group(bossGroup,workerGroup)) //channel类型和TCP参数
+                    .option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+                    .childOption(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT) //读写使用池化的ByteBuf
+                    .childHandler(new ChildChannelHandler(businessGroup,
+                            businessConfig.getInt("max-queued"), stats)); //绑定I/O事件的处理类
 
             //服务器端启动后 绑定监听端口 同步等待成功 主要是用于异步操作的通知回调 回调处理用的
             // ChildChannelHandler
-            ChannelFuture f = serverBootstrap.bind(port).sync();
-            out.println("Hello Netty Server started.");
+            // epoll + SO_REUSEPORT时同一个端口bind多次，每个监听channel占用一个boss线程做accept
+            List<ChannelFuture> futures = new ArrayList<>();
+            for (int i = 0; i < transport.acceptorCount(); i++) {
+                futures.add(serverBootstrap.bind(port).sync());
+            }
+            out.println("Hello Netty Server started with " + transport + ".");
             //等待服务器端监听端口关闭
-            f.channel().closeFuture().sync();
+            for (ChannelFuture f : futures) {
+                f.channel().closeFuture().sync();
+            }
         } finally {
             //优雅退出，释放线程池资源
             bossGroup.shutdownGracefully();
             workerGroup.shutdownGracefully();
+            businessGroup.shutdownGracefully();
+            stats.unregisterMBean();
             out.println("服务器端优雅的释放了线程资源....");
         }
     }
@@ -49,13 +73,48 @@ public class HelloNettyServer {
      * 网络事件处理器
      */
     private class ChildChannelHandler extends ChannelInitializer<SocketChannel> {
+        private final Config flushConfig = ConfigFactory.load().getConfig("netty.flush");
+        private final EventExecutorGroup businessGroup;
+        private final int maxQueued;
+        private final ServerStats stats;
+        /**
+         * 所有连接共享的业务线程池排队计数
+         */
+        private final AtomicInteger queued = new AtomicInteger();
+        /**
+         * 所有连接共享的topic订阅
+         */
+        private final PubSubBroker broker = new PubSubBroker();
+        /**
+         * 所有连接共享的命令表
+         */
+        private final CommandDispatcher commands;
+
+        ChildChannelHandler(EventExecutorGroup businessGroup, int maxQueued, ServerStats stats) {
+            this.businessGroup = businessGroup;
+            this.maxQueued = maxQueued;
+            this.stats = stats;
+            this.commands = broker.registerTo(new CommandDispatcher()
+                    .register("QUERY TIME ORDER", HelloServerHandler::queryTime)
+                    .register("FILE", new FileCommand(ConfigFactory.load().getConfig("netty.file")))
+                    .register("STATS", stats::statsCommand));
+        }
+
         @Override
         protected void initChannel(SocketChannel ch) throws Exception {
-            //以("\n")为结尾分隔的解码器
-            ch.pipeline()//.addLast("framer",new DelimiterBasedFrameDecoder(8192, Delimiters.lineDelimiter()))
-                    .addLast("decoder",new StringDecoder()) // 字符串编码
-                    .addLast("encoder",new StringEncoder()) // 字符串解码
-                    .addLast("handler",new HelloServerHandler()); // 自己的逻辑Handler
+            //最前面统计socket上实际收发的字节数，然后合并同一个读循环中的多次flush
+            StatsHandler connectionStats = new StatsHandler(stats);
+            ch.pipeline().addLast("stats", connectionStats)
+                    .addLast("flushConsolidation", new FlushConsolidationHandler(flushConfig))
+                    .addLast("backpressure", new BackpressureHandler(HelloServerHandler.LOG)); //慢客户端暂停读取
+            //4字节长度字段分帧，业务handler每次拿到的都是一个完整的请求帧；广播的PreEncodedFrame不再加长度字段
+            FrameCodec.install(ch.pipeline());
+            OverloadGate gate = new OverloadGate(queued, stats.shedRequests, maxQueued);
+            ch.pipeline()
+                    .addLast("requestId", new RequestIdCodec()) // 带id的请求，响应带上同样的id
+                    .addLast("encoder",new StringEncoder(CharsetUtil.UTF_8)) // 字符串编码，请求帧不再解码成字符串
+                    .addLast("overloadGate", gate) // 业务线程池积压过多时直接拒绝
+                    .addLast(businessGroup, "handler", new HelloServerHandler(gate, commands, connectionStats)); // 自己的逻辑Handler
         }
     }
 
@@ -1,38 +1,103 @@
 package com.luogh.netty;
 
+import com.luogh.base.EventLog;
+import com.typesafe.config.ConfigFactory;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
-
-import java.util.Date;
-
-import static java.lang.System.out;
+import io.netty.handler.codec.DecoderException;
+import io.netty.util.CharsetUtil;
 
 /**
- * server端网络IO事件处理
+ * server端网络IO事件处理，运行在业务线程池中，同一个连接的事件总是由同一个线程按顺序处理
  * @author luogh
  * @date 2016/10/1
  */
-public class HelloServerHandler extends SimpleChannelInboundHandler<String> {
+public class HelloServerHandler extends SimpleChannelInboundHandler<ByteBuf> {
+    /**
+     * 所有连接共享的预编码响应，直接以ByteBuf写出，不经过StringEncoder
+     */
+    private static final CurrentTimeResponse CURRENT_TIME = new CurrentTimeResponse(1000);
+    private static final ByteBuf BAD_ORDER = Unpooled.unreleasableBuffer(
+            Unpooled.directBuffer().writeBytes("BAD ORDER".getBytes(CharsetUtil.UTF_8)));
+    /**
+     * IO线程中不直接println，事件交给后台线程异步输出
+     */
+    static final EventLog LOG = new EventLog("hello-server", ConfigFactory.load().getConfig("netty.event-log"));
+
+    private final OverloadGate gate;
+    private final CommandDispatcher commands;
+    private final StatsHandler stats;
+
+    public HelloServerHandler(OverloadGate gate, CommandDispatcher commands, StatsHandler stats) {
+        this.gate = gate;
+        this.commands = commands;
+        this.stats = stats;
+    }
+
+    /**
+     * QUERY TIME ORDER命令，不接受参数
+     */
+    static void queryTime(ChannelHandlerContext ctx, ByteBuf args) {
+        ctx.write(args.isReadable() ? BAD_ORDER.duplicate() : CURRENT_TIME.retainedView());
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        LOG.info("客户端连接: {}", ctx.channel().remoteAddress());
+        super.channelActive(ctx);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        LOG.info("客户端断开: {}", ctx.channel().remoteAddress());
+        super.channelInactive(ctx);
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        long start = System.nanoTime();
+        try {
+            if (msg == OverloadGate.SHED) {
+                // 这个连接前面还有请求在处理，拒绝的响应排在它们后面写出
+                ctx.write(OverloadGate.serverBusy());
+            } else {
+                super.channelRead(ctx, msg);
+            }
+        } finally {
+            gate.done(ctx, msg);
+            // 拒绝的请求已经由OverloadGate计入shed，不算作处理过的请求，也不计入耗时分布
+            if (msg != OverloadGate.SHED) {
+                stats.handled(System.nanoTime() - start);
+            }
+        }
+    }
+
     @Override
-    protected void channelRead0(ChannelHandlerContext ctx, String msg) throws Exception {
-        out.println("服务器端读取到客户端请求...");
-        out.println("the hello server receive client: ["+ctx.channel().remoteAddress()+"] order:"+msg);
-        String currentTime = "QUERY TIME ORDER".equalsIgnoreCase(msg)? new Date(System.currentTimeMillis())
-                .toString(): "BAD ORDER";
-        ctx.write(currentTime);
-        out.println("服务器端做出了响应");
+    protected void channelRead0(ChannelHandlerContext ctx, ByteBuf msg) throws Exception {
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("the hello server receive client: [{}] order:{}", ctx.channel().remoteAddress(),
+                    msg.toString(CharsetUtil.UTF_8));
+        }
+        // 直接在帧上匹配命令名，不解码成String
+        if (!commands.dispatch(ctx, msg)) {
+            ctx.write(BAD_ORDER.duplicate());
+        }
     }
 
     @Override
     public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
         ctx.flush();
-        out.println("服务器端readComplete 响应完成.");
     }
 
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx,Throwable cause) throws Exception {
+        if (cause instanceof DecoderException) {
+            stats.decodeError();
+        }
         ctx.close();
-        out.println("服务器端异常退出"+cause.getMessage());
+        LOG.warn("服务器端异常退出 [{}]: {}", ctx.channel().remoteAddress(), cause.getMessage());
     }
 
 }
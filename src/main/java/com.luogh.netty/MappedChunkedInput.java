@@ -0,0 +1,67 @@
+package com.luogh.netty;
+
+import com.luogh.base.MemoryMappedFile;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.stream.ChunkedInput;
+
+import java.io.File;
+
+/**
+ * 从只读MemoryMappedFile中按块读取文件的一个区间，交给ChunkedWriteHandler写出。
+ *
+ * pipeline中有SslHandler等需要改写字节的handler时不能使用FileRegion，用它代替：
+ * 每块从映射内存复制到一个pooled direct buffer，不经过FileChannel.read的系统调用；
+ * 复制出来的buffer和映射无关，close()立即解除映射，不会有还在写的buffer引用已经unmap的内存。
+ * 第一次readChunk时才映射文件，排在写队列中还没有开始写的ChunkedInput不占用映射和文件句柄。
+ * @author luogh
+ */
+public class MappedChunkedInput implements ChunkedInput<ByteBuf> {
+    private final File file;
+    private final long end;
+    private final int chunkSize;
+    private MemoryMappedFile mapped;
+    private long position;
+
+    /**
+     * @param start 区间起始偏移
+     * @param length 区间长度，start + length不能超过文件长度
+     */
+    public MappedChunkedInput(File file, long start, long length, int chunkSize) {
+        if (start < 0 || length < 0 || start + length > file.length()) {
+            throw new IllegalArgumentException("range [" + start + ", " + (start + length) + ") out of "
+                    + file + " length " + file.length());
+        }
+        this.file = file;
+        this.position = start;
+        this.end = start + length;
+        this.chunkSize = chunkSize;
+    }
+
+    @Override
+    public boolean isEndOfInput() throws Exception {
+        return position >= end;
+    }
+
+    @Override
+    public void close() throws Exception {
+        if (mapped != null) {
+            mapped.close();
+        }
+    }
+
+    @Override
+    public ByteBuf readChunk(ChannelHandlerContext ctx) throws Exception {
+        if (position >= end) {
+            return null;
+        }
+        if (mapped == null) {
+            mapped = new MemoryMappedFile(file, 0, MemoryMappedFile.DEFAULT_SEGMENT_SIZE, true);
+        }
+        int n = (int) Math.min(chunkSize, end - position);
+        ByteBuf chunk = ctx.alloc().directBuffer(n);
+        mapped.get(position, chunk.nioBuffer(0, n));
+        position += n;
+        return chunk.writerIndex(n);
+    }
+}
@@ -0,0 +1,167 @@
+package com.luogh.netty;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+
+/**
+ * 根据application.conf中的netty配置选择传输层实现，并创建对应的EventLoopGroup和Channel类型。
+ *
+ * transport = auto时在Linux上优先使用native epoll，不可用时退回NIO；
+ * epoll下开启reuse-port后，服务端用boss-threads个线程分别bind同一个端口，由内核把新连接分散到多个accept循环上。
+ * @author luogh
+ */
+public final class NettyTransport {
+    private final boolean epoll;
+    private final int bossThreads;
+    private final int workerThreads;
+    private final boolean reusePort;
+    private final int backlog;
+    private final boolean tcpNoDelay;
+    private final boolean keepAlive;
+    private final int sendBufferSize;
+    private final int receiveBufferSize;
+    private final int highWaterMark;
+    private final int lowWaterMark;
+
+    /**
+     * @param config application.conf中netty块的结构
+     */
+    public NettyTransport(Config config) {
+        String transport = config.getString("transport");
+        switch (transport) {
+            case "auto":
+                this.epoll = Epoll.isAvailable();
+                break;
+            case "epoll":
+                if (!Epoll.isAvailable()) {
+                    throw new IllegalStateException("native epoll transport is not available on this host");
+                }
+                this.epoll = true;
+                break;
+            case "nio":
+                this.epoll = false;
+                break;
+            default:
+                throw new IllegalArgumentException("unknown netty.transport: " + transport);
+        }
+        this.bossThreads = config.getInt("boss-threads");
+        this.workerThreads = config.getInt("worker-threads");
+        this.reusePort = config.getBoolean("reuse-port");
+        this.backlog = config.getInt("so-backlog");
+        this.tcpNoDelay = config.getBoolean("tcp-nodelay");
+        this.keepAlive = config.getBoolean("so-keepalive");
+        this.sendBufferSize = config.getInt("so-sndbuf");
+        this.receiveBufferSize = config.getInt("so-rcvbuf");
+        this.highWaterMark = config.getBytes("write-buffer-high-water-mark").intValue();
+        this.lowWaterMark = config.getBytes("write-buffer-low-water-mark").intValue();
+        if (lowWaterMark > highWaterMark) {
+            throw new IllegalArgumentException("write-buffer-low-water-mark " + lowWaterMark
+                    + " > write-buffer-high-water-mark " + highWaterMark);
+        }
+    }
+
+    /**
+     * 读取application.conf中的netty配置
+     */
+    public static NettyTransport load() {
+        return new NettyTransport(ConfigFactory.load().getConfig("netty"));
+    }
+
+    public boolean isEpoll() {
+        return epoll;
+    }
+
+    /**
+     * 服务端需要bind同一个端口的次数，只有epoll并且开启了reuse-port时才大于1
+     */
+    public int acceptorCount() {
+        return epoll && reusePort ? Math.max(1, bossThreads) : 1;
+    }
+
+    public EventLoopGroup newBossGroup() {
+        return newGroup(bossThreads);
+    }
+
+    /**
+     * @return worker-threads为0时使用Netty默认的CPU核数 * 2
+     */
+    public EventLoopGroup newWorkerGroup() {
+        return newGroup(workerThreads);
+    }
+
+    public Class<? extends ServerChannel> serverChannelClass() {
+        return epoll ? EpollServerSocketChannel.class : NioServerSocketChannel.class;
+    }
+
+    public Class<? extends SocketChannel> channelClass() {
+        return epoll ? EpollSocketChannel.class : NioSocketChannel.class;
+    }
+
+    /**
+     * 设置服务端的channel类型和TCP参数
+     */
+    public ServerBootstrap configure(ServerBootstrap bootstrap) {
+        bootstrap.channel(serverChannelClass())
+                .option(ChannelOption.SO_BACKLOG, backlog)
+                .childOption(ChannelOption.TCP_NODELAY, tcpNoDelay)
+                .childOption(ChannelOption.SO_KEEPALIVE, keepAlive);
+        if (epoll && reusePort) {
+            bootstrap.option(EpollChannelOption.SO_REUSEPORT, true);
+        }
+        if (sendBufferSize > 0) {
+            bootstrap.childOption(ChannelOption.SO_SNDBUF, sendBufferSize);
+        }
+        if (receiveBufferSize > 0) {
+            bootstrap.childOption(ChannelOption.SO_RCVBUF, receiveBufferSize);
+        }
+        // 水位按顺序逐个设置，任何时刻都不能出现低水位大于高水位，否则Netty会拒绝；默认高水位是64KB
+        if (lowWaterMark > 64 * 1024) {
+            bootstrap.childOption(ChannelOption.WRITE_BUFFER_HIGH_WATER_MARK, highWaterMark)
+                    .childOption(ChannelOption.WRITE_BUFFER_LOW_WATER_MARK, lowWaterMark);
+        } else {
+            bootstrap.childOption(ChannelOption.WRITE_BUFFER_LOW_WATER_MARK, lowWaterMark)
+                    .childOption(ChannelOption.WRITE_BUFFER_HIGH_WATER_MARK, highWaterMark);
+        }
+        return bootstrap;
+    }
+
+    /**
+     * 设置客户端的channel类型和TCP参数
+     */
+    public Bootstrap configure(Bootstrap bootstrap) {
+        bootstrap.channel(channelClass())
+                .option(ChannelOption.TCP_NODELAY, tcpNoDelay)
+                .option(ChannelOption.SO_KEEPALIVE, keepAlive);
+        if (sendBufferSize > 0) {
+            bootstrap.option(ChannelOption.SO_SNDBUF, sendBufferSize);
+        }
+        if (receiveBufferSize > 0) {
+            bootstrap.option(ChannelOption.SO_RCVBUF, receiveBufferSize);
+        }
+        return bootstrap;
+    }
+
+    @Override
+    public String toString() {
+        return (epoll ? "epoll" : "nio") + "(boss=" + bossThreads + ", worker=" + workerThreads
+                + ", acceptors=" + acceptorCount() + ")";
+    }
+
+    private EventLoopGroup newGroup(int threads) {
+        return epoll ? new EpollEventLoopGroup(threads) : new NioEventLoopGroup(threads);
+    }
+}
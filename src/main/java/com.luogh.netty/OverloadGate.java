@@ -0,0 +1,91 @@
+package com.luogh.netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 业务线程池前面的过载保护，运行在IO线程中。
+ *
+ * 所有连接共享一个queued计数(已经交给业务线程池、还没有处理完的请求数)，超过maxQueued时不再排队，
+ * 直接回复预编码的SERVER BUSY，IO线程的延迟不会因为业务线程池积压而上升。
+ * 同一个连接的响应必须按请求顺序返回: 如果这个连接还有请求在业务线程池中，拒绝的响应也要排在它们后面，
+ * 这时把SHED标记交给业务handler，由它写出SERVER BUSY；否则直接在IO线程中写出。
+ * 业务handler写出响应之后必须调用done()，inFlight的扣减提交到IO线程执行，排在响应的写任务之后，
+ * 所以IO线程看到inFlight为0时，这个连接之前的响应一定已经写出，直接写SERVER BUSY不会乱序。
+ * @author luogh
+ */
+public class OverloadGate extends ChannelInboundHandlerAdapter {
+    /**
+     * 由业务handler写出SERVER BUSY的标记消息
+     */
+    public static final Object SHED = new Object() {
+        @Override
+        public String toString() {
+            return "SHED";
+        }
+    };
+    private static final ByteBuf SERVER_BUSY = Unpooled.unreleasableBuffer(
+            Unpooled.directBuffer().writeBytes("SERVER BUSY".getBytes(CharsetUtil.UTF_8)));
+
+    private final AtomicInteger queued;
+    private final LongAdder shed;
+    private final int maxQueued;
+    /**
+     * 这个连接已经交给业务handler还没有done的消息数，只在IO线程中访问
+     */
+    private int inFlight;
+
+    /**
+     * @param queued 所有连接共享的排队计数
+     * @param shed 拒绝的请求数，由创建者决定在哪些gate之间共享
+     */
+    public OverloadGate(AtomicInteger queued, LongAdder shed, int maxQueued) {
+        this.queued = queued;
+        this.shed = shed;
+        this.maxQueued = maxQueued;
+    }
+
+    public static ByteBuf serverBusy() {
+        return SERVER_BUSY.duplicate();
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (queued.get() < maxQueued) {
+            queued.incrementAndGet();
+            inFlight++;
+            ctx.fireChannelRead(msg);
+            return;
+        }
+        ReferenceCountUtil.release(msg);
+        shed.increment();
+        if (inFlight == 0) {
+            ctx.writeAndFlush(serverBusy(), ctx.voidPromise());
+        } else {
+            inFlight++;
+            ctx.fireChannelRead(SHED);
+        }
+    }
+
+    /**
+     * 业务handler写出一条消息的响应后调用，可以在任意线程中调用
+     * @param msg 处理的消息，SHED标记不占用queued计数
+     */
+    public void done(ChannelHandlerContext ctx, Object msg) {
+        if (msg != SHED) {
+            queued.decrementAndGet();
+        }
+        if (ctx.channel().eventLoop().inEventLoop()) {
+            inFlight--;
+        } else {
+            ctx.channel().eventLoop().execute(() -> inFlight--);
+        }
+    }
+}
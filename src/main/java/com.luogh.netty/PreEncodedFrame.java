@@ -0,0 +1,49 @@
+package com.luogh.netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.DefaultByteBufHolder;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+
+/**
+ * 已经带有FrameCodec长度字段的完整帧，写出时绕过LengthFieldPrepender。
+ *
+ * 广播时一条消息只编码一次(包括长度字段)，每个连接写出的是同一个buffer retain过的duplicate；
+ * LengthFieldPrepender只处理ByteBuf，PreEncodedFrame原样经过它，再由靠近head的Unwrapper还原成ByteBuf。
+ * @author luogh
+ */
+public class PreEncodedFrame extends DefaultByteBufHolder {
+
+    /**
+     * @param frame 长度字段加消息体，所有权交给这个对象
+     */
+    public PreEncodedFrame(ByteBuf frame) {
+        super(frame);
+    }
+
+    /**
+     * 分配一个已经写好长度字段的direct buffer，调用方接着写入bodyLength字节的消息体
+     */
+    public static ByteBuf newFrame(ByteBufAllocator alloc, int bodyLength) {
+        return alloc.directBuffer(FrameCodec.LENGTH_FIELD_LENGTH + bodyLength).writeInt(bodyLength);
+    }
+
+    /**
+     * 把PreEncodedFrame换成其中的ByteBuf，必须位于LengthFieldPrepender和head之间
+     */
+    @ChannelHandler.Sharable
+    public static final class Unwrapper extends ChannelOutboundHandlerAdapter {
+        public static final Unwrapper INSTANCE = new Unwrapper();
+
+        private Unwrapper() {
+        }
+
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+            ctx.write(msg instanceof PreEncodedFrame ? ((PreEncodedFrame) msg).content() : msg, promise);
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package com.luogh.netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.EventLoop;
+import io.netty.util.AttributeKey;
+import io.netty.util.CharsetUtil;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 按topic订阅和广播:
+ *
+ *      SUBSCRIBE <topic>           回复OK，之后收到这个topic的"MESSAGE <topic> <payload>"
+ *      UNSUBSCRIBE <topic>         回复OK
+ *      PUBLISH <topic> <payload>   回复"OK <订阅者数量>"
+ *
+ * 三个命令都把参数中第一个空格之前的部分作为topic，topic不能包含空格:
+ * 缺少topic时回复ERR NO TOPIC，SUBSCRIBE和UNSUBSCRIBE的参数中有空格时回复ERR BAD TOPIC。
+ *
+ * 一条消息只编码一次: 连同长度字段写进一个direct buffer，每个订阅者写出的是它retain过的duplicate，
+ * 以PreEncodedFrame的形式绕过LengthFieldPrepender，广播的CPU开销不随订阅者数量重复编码。
+ * 订阅者按所属的EventLoop分组，每个EventLoop只提交一个任务，在任务中依次写出并flush这一组连接。
+ * 不可写(出站积压超过高水位)的订阅者直接丢弃这条消息，慢客户端不会拖住广播，也不会无限积压内存。
+ *
+ * 订阅和退订都在连接自己的EventLoop中执行，排在OK响应的写任务之后，订阅者总是先收到OK再收到消息；
+ * 连接关闭时自动退订所有topic。
+ * @author luogh
+ */
+public final class PubSubBroker {
+    private static final AttributeKey<Set<String>> TOPICS = AttributeKey.valueOf("pubsub.topics");
+    private static final ByteBuf OK = Unpooled.unreleasableBuffer(
+            Unpooled.directBuffer().writeBytes("OK".getBytes(CharsetUtil.UTF_8)));
+    private static final ByteBuf NO_TOPIC = Unpooled.unreleasableBuffer(
+            Unpooled.directBuffer().writeBytes("ERR NO TOPIC".getBytes(CharsetUtil.UTF_8)));
+    private static final ByteBuf BAD_TOPIC = Unpooled.unreleasableBuffer(
+            Unpooled.directBuffer().writeBytes("ERR BAD TOPIC".getBytes(CharsetUtil.UTF_8)));
+    private static final byte[] MESSAGE = "MESSAGE ".getBytes(CharsetUtil.UTF_8);
+
+    private final ConcurrentHashMap<String, Topic> topics = new ConcurrentHashMap<>();
+    private final LongAdder published = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    /**
+     * 一个topic的订阅者，按EventLoop分组。
+     * 只在topics.compute中修改(同一个topic的修改互斥)，广播时并发遍历
+     */
+    private static final class Topic {
+        final Map<EventLoop, Set<Channel>> byLoop = new ConcurrentHashMap<>();
+
+        void add(Channel ch) {
+            byLoop.computeIfAbsent(ch.eventLoop(), loop -> ConcurrentHashMap.newKeySet()).add(ch);
+        }
+
+        void remove(Channel ch) {
+            Set<Channel> channels = byLoop.get(ch.eventLoop());
+            if (channels != null && channels.remove(ch) && channels.isEmpty()) {
+                byLoop.remove(ch.eventLoop());
+            }
+        }
+
+        boolean isEmpty() {
+            return byLoop.isEmpty();
+        }
+    }
+
+    /**
+     * 把SUBSCRIBE、UNSUBSCRIBE和PUBLISH注册到命令表
+     */
+    public CommandDispatcher registerTo(CommandDispatcher commands) {
+        return commands.register("SUBSCRIBE", this::subscribeCommand)
+                .register("UNSUBSCRIBE", this::unsubscribeCommand)
+                .register("PUBLISH", this::publishCommand);
+    }
+
+    /**
+     * 启动以来PUBLISH的消息数
+     */
+    public long publishedCount() {
+        return published.sum();
+    }
+
+    /**
+     * 写给订阅者的消息数
+     */
+    public long deliveredCount() {
+        return delivered.sum();
+    }
+
+    /**
+     * 因为订阅者不可写而丢弃的消息数
+     */
+    public long droppedCount() {
+        return dropped.sum();
+    }
+
+    private void subscribeCommand(ChannelHandlerContext ctx, ByteBuf args) {
+        String topic = topicOnly(ctx, args);
+        if (topic == null) {
+            return;
+        }
+        Channel ch = ctx.channel();
+        ctx.write(OK.duplicate());
+        ch.eventLoop().execute(() -> subscribe(ch, topic));
+    }
+
+    private void unsubscribeCommand(ChannelHandlerContext ctx, ByteBuf args) {
+        String topic = topicOnly(ctx, args);
+        if (topic == null) {
+            return;
+        }
+        Channel ch = ctx.channel();
+        ctx.write(OK.duplicate());
+        ch.eventLoop().execute(() -> unsubscribe(ch, topic));
+    }
+
+    private void publishCommand(ChannelHandlerContext ctx, ByteBuf args) {
+        int topicLength = topicLength(args);
+        if (topicLength == 0) {
+            ctx.write(NO_TOPIC.duplicate());
+            return;
+        }
+        int receivers = publish(ctx, args, topicLength);
+        ctx.write(ctx.alloc().buffer().writeBytes(("OK " + receivers).getBytes(CharsetUtil.UTF_8)));
+    }
+
+    /**
+     * @return 参数中topic的字节数，即第一个空格之前的部分
+     */
+    private static int topicLength(ByteBuf args) {
+        int space = args.bytesBefore((byte) ' ');
+        return space < 0 ? args.readableBytes() : space;
+    }
+
+    /**
+     * 参数只能是一个topic，否则回复错误并返回null
+     */
+    private static String topicOnly(ChannelHandlerContext ctx, ByteBuf args) {
+        int topicLength = topicLength(args);
+        if (topicLength == 0) {
+            ctx.write(NO_TOPIC.duplicate());
+            return null;
+        }
+        if (topicLength != args.readableBytes()) {
+            ctx.write(BAD_TOPIC.duplicate());
+            return null;
+        }
+        return args.toString(CharsetUtil.UTF_8);
+    }
+
+    /**
+     * 编码一次，按EventLoop分批写给所有订阅者
+     * @param message "topic payload"
+     * @return 订阅者数量
+     */
+    private int publish(ChannelHandlerContext ctx, ByteBuf message, int topicLength) {
+        published.increment();
+        Topic topic = topics.get(message.toString(message.readerIndex(), topicLength, CharsetUtil.UTF_8));
+        if (topic == null) {
+            return 0;
+        }
+        ByteBuf frame = PreEncodedFrame.newFrame(ctx.alloc(), MESSAGE.length + message.readableBytes())
+                .writeBytes(MESSAGE)
+                .writeBytes(message, message.readerIndex(), message.readableBytes());
+        int receivers = 0;
+        try {
+            for (Map.Entry<EventLoop, Set<Channel>> group : topic.byLoop.entrySet()) {
+                Set<Channel> channels = group.getValue();
+                receivers += channels.size();
+                // 每个任务持有frame的一个引用，写完这一组之后释放
+                frame.retain();
+                group.getKey().execute(() -> {
+                    try {
+                        fanOut(frame, channels);
+                    } finally {
+                        frame.release();
+                    }
+                });
+            }
+        } finally {
+            frame.release();
+        }
+        return receivers;
+    }
+
+    /**
+     * 在这组连接所属的EventLoop中执行
+     */
+    private void fanOut(ByteBuf frame, Set<Channel> channels) {
+        for (Channel ch : channels) {
+            if (!ch.isWritable()) {
+                dropped.increment();
+                continue;
+            }
+            ch.writeAndFlush(new PreEncodedFrame(frame.duplicate().retain()), ch.voidPromise());
+            delivered.increment();
+        }
+    }
+
+    /**
+     * 在ch的EventLoop中执行
+     */
+    private void subscribe(Channel ch, String topic) {
+        if (!ch.isActive()) {
+            return;
+        }
+        Set<String> subscribed = ch.attr(TOPICS).get();
+        if (subscribed == null) {
+            subscribed = new HashSet<>();
+            ch.attr(TOPICS).set(subscribed);
+            ch.closeFuture().addListener((ChannelFutureListener) future -> unsubscribeAll(ch));
+        }
+        if (subscribed.add(topic)) {
+            topics.compute(topic, (name, t) -> {
+                if (t == null) {
+                    t = new Topic();
+                }
+                t.add(ch);
+                return t;
+            });
+        }
+    }
+
+    /**
+     * 在ch的EventLoop中执行
+     */
+    private void unsubscribe(Channel ch, String topic) {
+        Set<String> subscribed = ch.attr(TOPICS).get();
+        if (subscribed != null && subscribed.remove(topic)) {
+            remove(ch, topic);
+        }
+    }
+
+    private void unsubscribeAll(Channel ch) {
+        Set<String> subscribed = ch.attr(TOPICS).get();
+        for (String topic : subscribed) {
+            remove(ch, topic);
+        }
+        subscribed.clear();
+    }
+
+    private void remove(Channel ch, String topic) {
+        // 最后一个订阅者退订时删除topic，和订阅在同一个key上互斥，不会把订阅者加到已经删除的Topic中
+        topics.computeIfPresent(topic, (name, t) -> {
+            t.remove(ch);
+            return t.isEmpty() ? null : t;
+        });
+    }
+}
@@ -0,0 +1,121 @@
+package com.luogh.netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+
+/**
+ * 服务端的请求id: 请求帧以TAG字节开头时，后面8字节是客户端分配的id，响应帧带上同样的前缀，
+ * 客户端可以在一个连接上同时发出多个请求，按id而不是按顺序匹配响应；不带前缀的请求得到不带前缀的响应。
+ *
+ * 同一个连接的响应按请求顺序写出，每个请求恰好一条ByteBuf响应，所以入站时把id按顺序放进FIFO，
+ * 出站的每个ByteBuf取出FIFO头部的id即可。PreEncodedFrame(广播消息)、FileRegion等不是响应，原样通过，不消耗id。
+ * 前缀是一个9字节的小buffer，和响应组合成CompositeByteBuf，不复制响应本身。
+ * 一个请求的响应之后还有一帧(FILE的文件内容)时，这一帧的长度字段以Continuation写出，带上和上一条响应同样的前缀。
+ * 放在FrameCodec和业务handler之间，只在连接所属的EventLoop中访问。
+ * @author luogh
+ */
+public class RequestIdCodec extends ChannelDuplexHandler {
+    /**
+     * 命令都是ASCII文本，不会以0x01开头
+     */
+    public static final byte TAG = 0x01;
+    public static final int TAG_LENGTH = 1 + 8;
+
+    private long[] ids = new long[16];
+    private boolean[] tagged = new boolean[16];
+    private int head;
+    private int tail;
+    /**
+     * 最近一条响应的id，Continuation使用
+     */
+    private long lastId;
+    private boolean lastTagged;
+
+    /**
+     * 紧跟在上一条响应之后、属于同一个请求的下一帧的长度字段，帧的内容之后单独写出(例如FileRegion)。
+     * 没有经过RequestIdCodec时就是普通的PreEncodedFrame；经过时如果上一条响应带id，换成包含同样前缀的长度字段，
+     * 这一帧的长度比bodyLength多TAG_LENGTH
+     */
+    public static final class Continuation extends PreEncodedFrame {
+        private final int bodyLength;
+
+        public Continuation(ByteBufAllocator alloc, int bodyLength) {
+            super(PreEncodedFrame.newFrame(alloc, bodyLength));
+            this.bodyLength = bodyLength;
+        }
+    }
+
+    /**
+     * 分配一个写好前缀的buffer，调用方接着写入请求或者响应
+     */
+    public static ByteBuf newTagged(ByteBufAllocator alloc, long id, int bodyLength) {
+        return alloc.buffer(TAG_LENGTH + bodyLength).writeByte(TAG).writeLong(id);
+    }
+
+    /**
+     * @return frame是否带有id前缀
+     */
+    public static boolean isTagged(ByteBuf frame) {
+        return frame.readableBytes() >= TAG_LENGTH && frame.getByte(frame.readerIndex()) == TAG;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (msg instanceof ByteBuf) {
+            ByteBuf frame = (ByteBuf) msg;
+            if (isTagged(frame)) {
+                push(frame.getLong(frame.readerIndex() + 1), true);
+                frame.skipBytes(TAG_LENGTH);
+            } else {
+                push(0, false);
+            }
+        }
+        ctx.fireChannelRead(msg);
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (msg instanceof ByteBuf && head != tail) {
+            lastTagged = tagged[head];
+            lastId = ids[head];
+            head = (head + 1) & (ids.length - 1);
+            if (lastTagged) {
+                msg = Unpooled.wrappedBuffer(newTagged(ctx.alloc(), lastId, 0), (ByteBuf) msg);
+            }
+        } else if (msg instanceof Continuation && lastTagged) {
+            Continuation continuation = (Continuation) msg;
+            ByteBuf header = PreEncodedFrame.newFrame(ctx.alloc(), TAG_LENGTH + continuation.bodyLength)
+                    .writeByte(TAG).writeLong(lastId);
+            continuation.release();
+            msg = new PreEncodedFrame(header);
+        }
+        ctx.write(msg, promise);
+    }
+
+    private void push(long id, boolean isTagged) {
+        ids[tail] = id;
+        tagged[tail] = isTagged;
+        tail = (tail + 1) & (ids.length - 1);
+        if (tail == head) {
+            grow();
+        }
+    }
+
+    private void grow() {
+        int n = ids.length - head;
+        long[] grownIds = new long[ids.length << 1];
+        boolean[] grownTagged = new boolean[ids.length << 1];
+        System.arraycopy(ids, head, grownIds, 0, n);
+        System.arraycopy(ids, 0, grownIds, n, head);
+        System.arraycopy(tagged, head, grownTagged, 0, n);
+        System.arraycopy(tagged, 0, grownTagged, n, head);
+        head = 0;
+        tail = ids.length;
+        ids = grownIds;
+        tagged = grownTagged;
+    }
+}
@@ -0,0 +1,174 @@
+package com.luogh.netty;
+
+import com.luogh.base.LatencyHistogram;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.util.CharsetUtil;
+import io.netty.util.concurrent.GlobalEventExecutor;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.lang.System.err;
+
+/**
+ * HelloNettyServer的全局统计: 连接数、收发字节数、请求数和速率、解码错误、过载拒绝数以及业务handler的耗时分布。
+ *
+ * 计数器都是LongAdder，耗时是LatencyHistogram，IO线程和业务线程更新时不加锁；
+ * 每个连接的统计在它自己的StatsHandler中，存活的连接保存在ChannelGroup里，关闭时自动移除。
+ * 通过JMX(com.luogh:type=ServerStats)和STATS命令查看。
+ * @author luogh
+ */
+public final class ServerStats implements ServerStatsMXBean {
+    public static final String OBJECT_NAME = "com.luogh:type=ServerStats";
+
+    final LongAdder connectionsOpened = new LongAdder();
+    final LongAdder connectionsClosed = new LongAdder();
+    final LongAdder bytesIn = new LongAdder();
+    final LongAdder bytesOut = new LongAdder();
+    final LongAdder messages = new LongAdder();
+    final LongAdder decodeErrors = new LongAdder();
+    final LongAdder shedRequests = new LongAdder();
+    final ChannelGroup channels = new DefaultChannelGroup("connections", GlobalEventExecutor.INSTANCE);
+    private final LatencyHistogram handlerTime = new LatencyHistogram();
+
+    private long rateSampleNanos = System.nanoTime();
+    private long rateSampleMessages;
+    private double messagesPerSecond;
+
+    /**
+     * 注册到platform MBeanServer，失败时只输出错误，不影响服务
+     */
+    public void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+        } catch (Exception e) {
+            err.println("failed to register " + OBJECT_NAME + ": " + e.getMessage());
+        }
+    }
+
+    public void unregisterMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(OBJECT_NAME));
+        } catch (Exception e) {
+            err.println("failed to unregister " + OBJECT_NAME + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * 业务handler处理完一个请求
+     */
+    void handled(long nanos) {
+        messages.increment();
+        handlerTime.record(nanos);
+    }
+
+    /**
+     * STATS命令: 回复全局统计和当前连接的统计，不接受参数
+     */
+    void statsCommand(ChannelHandlerContext ctx, ByteBuf args) {
+        StringBuilder sb = new StringBuilder(toString());
+        StatsHandler connection = ctx.pipeline().get(StatsHandler.class);
+        if (connection != null) {
+            sb.append("\nconnection ").append(connection);
+        }
+        BackpressureHandler backpressure = ctx.pipeline().get(BackpressureHandler.class);
+        if (backpressure != null) {
+            // 这两个handler的字段由IO线程写，这里读到的可能稍有滞后
+            sb.append(" pendingBytes=").append(backpressure.pendingBytes()).append(", ").append(backpressure);
+        }
+        ctx.write(ctx.alloc().buffer().writeBytes(sb.toString().getBytes(CharsetUtil.UTF_8)));
+    }
+
+    @Override
+    public long getConnectionsOpened() {
+        return connectionsOpened.sum();
+    }
+
+    @Override
+    public long getConnectionsClosed() {
+        return connectionsClosed.sum();
+    }
+
+    @Override
+    public long getActiveConnections() {
+        return channels.size();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public long getMessages() {
+        return messages.sum();
+    }
+
+    @Override
+    public synchronized double getMessagesPerSecond() {
+        long now = System.nanoTime();
+        long elapsed = now - rateSampleNanos;
+        if (elapsed >= TimeUnit.SECONDS.toNanos(1)) {
+            long count = messages.sum();
+            messagesPerSecond = (count - rateSampleMessages) * 1e9 / elapsed;
+            rateSampleMessages = count;
+            rateSampleNanos = now;
+        }
+        return messagesPerSecond;
+    }
+
+    @Override
+    public long getDecodeErrors() {
+        return decodeErrors.sum();
+    }
+
+    @Override
+    public long getShedRequests() {
+        return shedRequests.sum();
+    }
+
+    @Override
+    public String getHandlerTime() {
+        return handlerTime.summaryMicros();
+    }
+
+    @Override
+    public String[] getConnections() {
+        List<String> result = new ArrayList<>(channels.size());
+        for (Channel ch : channels) {
+            StatsHandler connection = ch.pipeline().get(StatsHandler.class);
+            if (connection != null) {
+                result.add(connection.toString());
+            }
+        }
+        return result.toArray(new String[result.size()]);
+    }
+
+    @Override
+    public void resetHandlerTime() {
+        handlerTime.reset();
+    }
+
+    @Override
+    public String toString() {
+        return "connections opened=" + getConnectionsOpened() + " closed=" + getConnectionsClosed()
+                + " active=" + getActiveConnections()
+                + "\nbytes in=" + getBytesIn() + " out=" + getBytesOut()
+                + "\nmessages total=" + getMessages() + String.format(" per-second=%.1f", getMessagesPerSecond())
+                + " decode-errors=" + getDecodeErrors() + " shed=" + getShedRequests()
+                + "\nhandler-time " + getHandlerTime();
+    }
+}
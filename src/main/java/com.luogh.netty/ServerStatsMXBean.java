@@ -0,0 +1,44 @@
+package com.luogh.netty;
+
+/**
+ * ServerStats的JMX接口
+ * @author luogh
+ */
+public interface ServerStatsMXBean {
+
+    long getConnectionsOpened();
+
+    long getConnectionsClosed();
+
+    long getActiveConnections();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    long getMessages();
+
+    /**
+     * 距离上一次读取至少1秒时重新计算的请求速率
+     */
+    double getMessagesPerSecond();
+
+    long getDecodeErrors();
+
+    /**
+     * OverloadGate拒绝的请求数
+     */
+    long getShedRequests();
+
+    /**
+     * 业务handler处理一个请求的耗时分布
+     */
+    String getHandlerTime();
+
+    /**
+     * 每个存活连接一行
+     */
+    String[] getConnections();
+
+    void resetHandlerTime();
+}
@@ -0,0 +1,99 @@
+package com.luogh.netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufHolder;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.FileRegion;
+
+/**
+ * 一个连接的统计，同时累加到ServerStats。
+ *
+ * 放在pipeline的最前面(靠近head)，统计的是socket上实际收发的字节数(出站按write时的大小计算，包括FileRegion)；
+ * 请求数和解码错误由业务handler调用handled()和decodeError()记录。
+ * 每个字段只有一个线程写(字节数在IO线程，请求数在业务线程)，volatile保证STATS和JMX能读到最新值。
+ * @author luogh
+ */
+public class StatsHandler extends ChannelDuplexHandler {
+    private final ServerStats stats;
+    private final long openedAt = System.currentTimeMillis();
+    private volatile String remote = "";
+    private volatile long bytesIn;
+    private volatile long bytesOut;
+    private volatile long messages;
+    private volatile long decodeErrors;
+
+    public StatsHandler(ServerStats stats) {
+        this.stats = stats;
+    }
+
+    /**
+     * 业务handler处理完一个请求，在业务线程中调用
+     */
+    public void handled(long nanos) {
+        messages++;
+        stats.handled(nanos);
+    }
+
+    /**
+     * 业务handler收到DecoderException，在业务线程中调用
+     */
+    public void decodeError() {
+        decodeErrors++;
+        stats.decodeErrors.increment();
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        remote = String.valueOf(ctx.channel().remoteAddress());
+        stats.connectionsOpened.increment();
+        stats.channels.add(ctx.channel());
+        ctx.fireChannelActive();
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        stats.connectionsClosed.increment();
+        ctx.fireChannelInactive();
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (msg instanceof ByteBuf) {
+            int n = ((ByteBuf) msg).readableBytes();
+            bytesIn += n;
+            stats.bytesIn.add(n);
+        }
+        ctx.fireChannelRead(msg);
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        long n = sizeOf(msg);
+        if (n > 0) {
+            bytesOut += n;
+            stats.bytesOut.add(n);
+        }
+        ctx.write(msg, promise);
+    }
+
+    @Override
+    public String toString() {
+        return remote + " age=" + (System.currentTimeMillis() - openedAt) + "ms bytesIn=" + bytesIn
+                + " bytesOut=" + bytesOut + " messages=" + messages + " decodeErrors=" + decodeErrors;
+    }
+
+    private static long sizeOf(Object msg) {
+        if (msg instanceof ByteBuf) {
+            return ((ByteBuf) msg).readableBytes();
+        }
+        if (msg instanceof ByteBufHolder) {
+            return ((ByteBufHolder) msg).content().readableBytes();
+        }
+        if (msg instanceof FileRegion) {
+            return ((FileRegion) msg).count();
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,62 @@
+package com.luogh.netty;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelPromise;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 客户端批量发送: 先在调用线程中攒一批请求，send()时作为一个任务提交给channel的EventLoop，
+ * 在EventLoop中依次write，最后只flush一次。
+ *
+ * 与每条消息调用一次writeAndFlush相比，既省掉了每条消息一次的跨线程任务提交，也省掉了每条消息一次的write系统调用。
+ * 不是线程安全的，每个发送线程使用自己的WriteBatch。
+ * @author luogh
+ */
+public final class WriteBatch {
+    private final Channel channel;
+    private List<Object> messages = new ArrayList<>();
+
+    public WriteBatch(Channel channel) {
+        this.channel = channel;
+    }
+
+    public WriteBatch add(Object message) {
+        messages.add(message);
+        return this;
+    }
+
+    public int size() {
+        return messages.size();
+    }
+
+    /**
+     * 发送已经攒下的所有消息并flush一次
+     * @return 最后一条消息写完时完成的future，中间的消息写失败时通过pipeline的exceptionCaught通知
+     */
+    public ChannelFuture send() {
+        ChannelPromise promise = channel.newPromise();
+        if (messages.isEmpty()) {
+            return promise.setSuccess();
+        }
+        List<Object> batch = messages;
+        messages = new ArrayList<>(batch.size());
+        if (channel.eventLoop().inEventLoop()) {
+            writeAll(batch, promise);
+        } else {
+            channel.eventLoop().execute(() -> writeAll(batch, promise));
+        }
+        return promise;
+    }
+
+    private void writeAll(List<Object> batch, ChannelPromise promise) {
+        int last = batch.size() - 1;
+        for (int i = 0; i < last; i++) {
+            channel.write(batch.get(i), channel.voidPromise());
+        }
+        channel.write(batch.get(last), promise);
+        channel.flush();
+    }
+}
@@ -0,0 +1,57 @@
+package com.luogh.base;
+
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+
+/**
+ * 立即释放DirectByteBuffer/MappedByteBuffer占用的内存或映射，不再等待GC。
+ *
+ * JDK9以上通过Unsafe.invokeCleaner，JDK8通过DirectBuffer.cleaner().clean()。
+ * 释放之后再访问这个buffer(包括它的duplicate/slice)会直接导致JVM崩溃，调用者必须保证没有其它线程还在使用。
+ * @author luogh
+ */
+public final class DirectBufferCleaner {
+    private static final Method INVOKE_CLEANER;
+    private static final Method CLEANER;
+    private static final Method CLEAN;
+
+    static {
+        Method invokeCleaner = null;
+        Method cleaner = null;
+        Method clean = null;
+        try {
+            invokeCleaner = UnsafeAccess.UNSAFE.getClass().getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (NoSuchMethodException e) {
+            try {
+                cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+                clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+            } catch (ReflectiveOperationException ex) {
+                throw new ExceptionInInitializerError(ex);
+            }
+        }
+        INVOKE_CLEANER = invokeCleaner;
+        CLEANER = cleaner;
+        CLEAN = clean;
+    }
+
+    private DirectBufferCleaner() {
+    }
+
+    public static void clean(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) {
+            return;
+        }
+        try {
+            if (INVOKE_CLEANER != null) {
+                INVOKE_CLEANER.invoke(UnsafeAccess.UNSAFE, buffer);
+            } else {
+                Object cleaner = CLEANER.invoke(buffer);
+                if (cleaner != null) {
+                    CLEAN.invoke(cleaner);
+                }
+            }
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("failed to clean direct buffer", e);
+        }
+    }
+}
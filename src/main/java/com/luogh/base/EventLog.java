@@ -0,0 +1,222 @@
+package com.luogh.base;
+
+import com.typesafe.config.Config;
+
+import java.io.Closeable;
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 异步、限流的事件日志，用来代替IO线程中的System.out.println。
+ *
+ * 调用线程只做三件事: 判断级别、按秒限流、把记录放进无锁队列(ConcurrentLinkedQueue)，
+ * 模板中的{}占位符由唯一的后台线程格式化并写出，PrintStream的锁只有这一个线程在用。
+ * 超过每秒上限或者队列已满的记录直接丢弃并计数，由后台线程定期报告丢弃的条数。
+ * 参数在真正格式化之前可能已经过了很久，只能传不可变的对象(String、数字、SocketAddress等)，不能传ByteBuf。
+ * @author luogh
+ */
+public final class EventLog implements Closeable {
+
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR, OFF
+    }
+
+    private final String name;
+    private final int threshold;
+    private final int maxPerSecond;
+    private final int capacity;
+    private final PrintStream stream;
+    private final Queue<Record> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicLong window = new AtomicLong(); // 高32位是秒，低32位是这一秒已经放行的条数
+    private final LongAdder dropped = new LongAdder();
+    private final Thread writer;
+    private volatile boolean running = true;
+
+    /**
+     * 从配置中读取level(debug/info/warn/error/off)、max-per-second和queue-capacity
+     */
+    public EventLog(String name, Config config) {
+        this(name, Level.valueOf(config.getString("level").toUpperCase()),
+                config.getInt("max-per-second"), config.getInt("queue-capacity"), System.out);
+    }
+
+    public EventLog(String name, Level level, int maxPerSecond, int capacity, PrintStream stream) {
+        this.name = name;
+        this.threshold = level.ordinal();
+        this.maxPerSecond = maxPerSecond;
+        this.capacity = capacity;
+        this.stream = stream;
+        if (level == Level.OFF) {
+            this.writer = null;
+            return;
+        }
+        this.writer = new Thread(this::drainLoop, "event-log-" + name);
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public boolean isEnabled(Level level) {
+        return level.ordinal() >= threshold;
+    }
+
+    public boolean isDebugEnabled() {
+        return isEnabled(Level.DEBUG);
+    }
+
+    public void debug(String template, Object a) {
+        log(Level.DEBUG, template, a, null, null);
+    }
+
+    public void debug(String template, Object a, Object b) {
+        log(Level.DEBUG, template, a, b, null);
+    }
+
+    public void info(String template, Object a) {
+        log(Level.INFO, template, a, null, null);
+    }
+
+    public void info(String template, Object a, Object b) {
+        log(Level.INFO, template, a, b, null);
+    }
+
+    public void warn(String template, Object a, Object b) {
+        log(Level.WARN, template, a, b, null);
+    }
+
+    public void error(String template, Object a, Object b) {
+        log(Level.ERROR, template, a, b, null);
+    }
+
+    /**
+     * @return 记录是否进入了队列，级别关闭、超过限流或者队列已满时返回false
+     */
+    public boolean log(Level level, String template, Object a, Object b, Object c) {
+        if (level.ordinal() < threshold) {
+            return false;
+        }
+        if (!acquire()) {
+            dropped.increment();
+            return false;
+        }
+        queue.offer(new Record(level, Thread.currentThread().getName(), template, a, b, c));
+        return true;
+    }
+
+    public long droppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * 写出队列中剩余的记录后停止后台线程
+     */
+    @Override
+    public void close() {
+        running = false;
+        if (writer != null) {
+            LockSupport.unpark(writer);
+            try {
+                writer.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * 按秒限流并占用一个队列位置。
+     * 秒和计数放在同一个long里用一次CAS更新，切换窗口和计数之间没有空档，不会丢掉或者多放行记录；
+     * 计数达到上限后不再增加，不会溢出到秒的部分。
+     */
+    private boolean acquire() {
+        long second = System.currentTimeMillis() / 1000;
+        for (;;) {
+            long current = window.get();
+            // 进入新的一秒时计数从0开始，拿到旧时间的线程计入当前窗口
+            long base = second > current >>> 32 ? second << 32 : current;
+            if ((base & 0xFFFFFFFFL) >= maxPerSecond) {
+                return false;
+            }
+            if (window.compareAndSet(current, base + 1)) {
+                break;
+            }
+        }
+        if (pending.incrementAndGet() > capacity) {
+            pending.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    private void drainLoop() {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+        StringBuilder line = new StringBuilder(256);
+        long reported = 0;
+        long lastReport = System.currentTimeMillis();
+        for (;;) {
+            Record record = queue.poll();
+            if (record == null) {
+                long now = System.currentTimeMillis();
+                long total = dropped.sum();
+                if (total != reported && now - lastReport >= 1000) {
+                    stream.println(format.format(new Date(now)) + " WARN  [" + name + "] dropped "
+                            + (total - reported) + " events");
+                    reported = total;
+                    lastReport = now;
+                }
+                stream.flush();
+                if (!running) {
+                    return;
+                }
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+                continue;
+            }
+            pending.decrementAndGet();
+            line.setLength(0);
+            line.append(format.format(new Date(record.millis))).append(' ');
+            line.append(String.format("%-5s", record.level)).append(" [").append(record.thread).append("] ");
+            appendFormatted(line, record);
+            stream.println(line);
+        }
+    }
+
+    private static void appendFormatted(StringBuilder line, Record record) {
+        Object[] args = {record.a, record.b, record.c};
+        String template = record.template;
+        int argIndex = 0;
+        int from = 0;
+        int at;
+        while (argIndex < args.length && (at = template.indexOf("{}", from)) >= 0) {
+            line.append(template, from, at).append(args[argIndex++]);
+            from = at + 2;
+        }
+        line.append(template, from, template.length());
+    }
+
+    private static final class Record {
+        final long millis = System.currentTimeMillis();
+        final Level level;
+        final String thread;
+        final String template;
+        final Object a;
+        final Object b;
+        final Object c;
+
+        Record(Level level, String thread, String template, Object a, Object b, Object c) {
+            this.level = level;
+            this.thread = thread;
+            this.template = template;
+            this.a = a;
+            this.b = b;
+            this.c = c;
+        }
+    }
+}
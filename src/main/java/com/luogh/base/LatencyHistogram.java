@@ -0,0 +1,140 @@
+package com.luogh.base;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 线程安全的对数-线性延迟直方图，记录非负的long值(通常是纳秒)。
+ *
+ * 小于128的值每个值一个桶；更大的值按2的幂分段，每段再线性分成64个桶，相对误差小于1/64。
+ * 所有long值一共3712个桶，计数放在AtomicLongArray中，record只有一次getAndIncrement，可以被多个IO线程同时调用。
+ *
+ * 闭环压测中一个慢请求会推迟后面请求的发送，这些"本该发生"的等待不会被测到(coordinated omission)，
+ * recordWithExpectedInterval按期望的发送间隔补记这些缺失的样本。
+ * @author luogh
+ */
+public class LatencyHistogram {
+    private static final int SUB_BITS = 7;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int HALF = SUB_COUNT >> 1;
+    private static final int BUCKETS = SUB_COUNT + (63 - SUB_BITS) * HALF;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("negative value: " + value);
+        }
+        counts.getAndIncrement(index(value));
+        total.getAndIncrement();
+        sum.getAndAdd(value);
+        long m;
+        while (value > (m = max.get()) && !max.compareAndSet(m, value)) {
+        }
+    }
+
+    /**
+     * 记录value，并且当value超过expectedInterval时补记value - expectedInterval, value - 2 * expectedInterval ...
+     * 直到不超过expectedInterval为止
+     * @param expectedInterval 期望的请求间隔，小于等于0时不做修正
+     */
+    public void recordWithExpectedInterval(long value, long expectedInterval) {
+        record(value);
+        if (expectedInterval <= 0) {
+            return;
+        }
+        for (long missing = value - expectedInterval; missing >= expectedInterval; missing -= expectedInterval) {
+            record(missing);
+        }
+    }
+
+    public long count() {
+        return total.get();
+    }
+
+    public long max() {
+        return max.get();
+    }
+
+    public double mean() {
+        long n = total.get();
+        return n == 0 ? 0.0 : (double) sum.get() / n;
+    }
+
+    /**
+     * @param percentile 0 ~ 100
+     * @return 第percentile百分位所在桶的上界，不超过记录过的最大值
+     */
+    public long percentile(double percentile) {
+        long n = total.get();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(upperBound(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * 把other的计数合并进来，合并期间other不应再有写入
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            long c = other.counts.get(i);
+            if (c != 0) {
+                counts.getAndAdd(i, c);
+            }
+        }
+        total.getAndAdd(other.total.get());
+        sum.getAndAdd(other.sum.get());
+        long m;
+        long value = other.max.get();
+        while (value > (m = max.get()) && !max.compareAndSet(m, value)) {
+        }
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        total.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    /**
+     * 按微秒输出p50/p99/p999/max，value是纳秒时使用
+     */
+    public String summaryMicros() {
+        return String.format("count=%d mean=%.1fus p50=%.1fus p99=%.1fus p999=%.1fus max=%.1fus",
+                count(), mean() / 1000, percentile(50) / 1000.0, percentile(99) / 1000.0,
+                percentile(99.9) / 1000.0, max() / 1000.0);
+    }
+
+    static int index(long value) {
+        if (value < SUB_COUNT) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BITS - 1);
+        return SUB_COUNT + (shift - 1) * HALF + (int) (value >>> shift) - HALF;
+    }
+
+    static long upperBound(int index) {
+        if (index < SUB_COUNT) {
+            return index;
+        }
+        int shift = (index - SUB_COUNT) / HALF + 1;
+        long sub = (index - SUB_COUNT) % HALF + HALF;
+        long upper = ((sub + 1) << shift) - 1;
+        return upper < 0 ? Long.MAX_VALUE : upper;
+    }
+}
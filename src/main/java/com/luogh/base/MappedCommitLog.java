@@ -0,0 +1,308 @@
+package com.luogh.base;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import static java.lang.System.out;
+
+/**
+ * 基于MemoryMappedFile的只追加日志。
+ *
+ * 日志由一组预分配好的segment文件组成，文件名是该segment第一个字节的全局偏移量(%020d.log)，
+ * 每个segment创建时就扩展到segmentSize并整体映射，追加时只写映射内存，不产生系统调用。
+ * 记录格式(8字节对齐):
+ *      int size: 记录总长度(包含8字节头)，0表示尚未写入，-1表示segment剩余空间不足，跳到下一个segment
+ *      int crc: payload的CRC32
+ *      payload
+ *
+ * 只允许一个线程append，不加锁；写完一条记录后用lazySet发布committed偏移量。
+ * 任意多个Reader按long偏移量读取committed之前的记录，不会看到写了一半的数据。
+ * @author luogh
+ */
+public class MappedCommitLog implements Closeable {
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024; //64MB
+    static final int HEADER_SIZE = 8;
+    static final int END_OF_SEGMENT = -1;
+
+    private final File dir;
+    private final int segmentSize;
+    private volatile MemoryMappedFile[] segments;
+    private volatile long firstOffset;
+    private final AtomicLong committed = new AtomicLong();
+    private final CRC32 crc = new CRC32();
+    private long writePosition;
+
+    public MappedCommitLog(File dir) throws IOException {
+        this(dir, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * 打开或创建日志目录，已有的日志会通过校验最后一个segment中的记录恢复写入位置
+     * @param segmentSize 单个segment文件的大小，必须是2的幂且不超过1GB
+     */
+    public MappedCommitLog(File dir, int segmentSize) throws IOException {
+        if (segmentSize < 4096 || segmentSize > MemoryMappedFile.DEFAULT_SEGMENT_SIZE
+                || Integer.bitCount(segmentSize) != 1) {
+            throw new IllegalArgumentException("segmentSize must be a power of two in [4KB, 1GB]: " + segmentSize);
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("can not create commit log directory " + dir);
+        }
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        recover();
+    }
+
+    public int segmentSize() {
+        return segmentSize;
+    }
+
+    /**
+     * 第一条可读记录的偏移量
+     */
+    public long firstOffset() {
+        return firstOffset;
+    }
+
+    /**
+     * 已经完整写入的日志末尾，Reader只会读取这个偏移量之前的记录
+     */
+    public long committedOffset() {
+        return committed.get();
+    }
+
+    public long append(byte[] payload) throws IOException {
+        return append(ByteBuffer.wrap(payload));
+    }
+
+    /**
+     * 追加一条记录，只能由唯一的写线程调用
+     * @return 记录的偏移量
+     */
+    public long append(ByteBuffer payload) throws IOException {
+        int size = HEADER_SIZE + payload.remaining();
+        long aligned = align(size);
+        if (aligned > segmentSize) {
+            throw new IllegalArgumentException("record of " + payload.remaining() + " bytes exceeds segment size " + segmentSize);
+        }
+        MemoryMappedFile[] segs = segments;
+        MemoryMappedFile segment = segs[segs.length - 1];
+        long segmentStart = segmentStart(writePosition);
+        if (segmentStart != writePosition && writePosition - segmentStart + aligned > segmentSize) {
+            segment.putInt(writePosition - segmentStart, END_OF_SEGMENT);
+            segment = roll(segmentStart + segmentSize);
+            writePosition = segmentStart + segmentSize;
+            segmentStart = writePosition;
+        } else if (segmentStart == writePosition && segmentStart != baseOffset(segment)) {
+            // 上一条记录刚好写满了segment
+            segment = roll(segmentStart);
+        }
+        long offset = writePosition;
+        long pos = offset - segmentStart;
+        crc.reset();
+        crc.update(payload.duplicate());
+        segment.put(pos + HEADER_SIZE, payload);
+        segment.putInt(pos + 4, (int) crc.getValue());
+        segment.putInt(pos, size);
+        writePosition = offset + aligned;
+        committed.lazySet(writePosition);
+        return offset;
+    }
+
+    public Reader reader(long offset) {
+        return new Reader(offset);
+    }
+
+    /**
+     * 把所有segment中未落盘的修改刷到磁盘
+     */
+    public void force() {
+        for (MemoryMappedFile segment : segments) {
+            segment.force();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (MemoryMappedFile segment : segments) {
+            segment.close();
+        }
+    }
+
+    /**
+     * 顺序读取日志的游标，每个读线程使用自己的Reader
+     */
+    public class Reader {
+        private long position;
+
+        Reader(long position) {
+            this.position = position;
+        }
+
+        public long position() {
+            return position;
+        }
+
+        /**
+         * @return 下一条记录的payload，没有已提交的新记录时返回null
+         */
+        public byte[] next() {
+            for (;;) {
+                if (position >= committed.get()) {
+                    return null;
+                }
+                long segmentStart = segmentStart(position);
+                MemoryMappedFile segment = segmentAt(segmentStart);
+                long pos = position - segmentStart;
+                int size = pos + HEADER_SIZE <= segmentSize ? segment.getInt(pos) : END_OF_SEGMENT;
+                if (size == END_OF_SEGMENT) {
+                    position = segmentStart + segmentSize;
+                    continue;
+                }
+                if (size < HEADER_SIZE || pos + size > segmentSize) {
+                    throw new IllegalStateException("corrupted record at offset " + position + " size " + size);
+                }
+                byte[] payload = new byte[size - HEADER_SIZE];
+                segment.get(pos + HEADER_SIZE, payload, 0, payload.length);
+                CRC32 checksum = new CRC32();
+                checksum.update(payload, 0, payload.length);
+                if ((int) checksum.getValue() != segment.getInt(pos + 4)) {
+                    throw new IllegalStateException("crc mismatch at offset " + position);
+                }
+                position += align(size);
+                return payload;
+            }
+        }
+    }
+
+    static long align(long size) {
+        return (size + 7) & ~7L;
+    }
+
+    private long segmentStart(long offset) {
+        return offset & ~((long) segmentSize - 1);
+    }
+
+    private MemoryMappedFile segmentAt(long segmentStart) {
+        MemoryMappedFile[] segs = segments;
+        long index = (segmentStart - baseOffset(segs[0])) / segmentSize;
+        if (index < 0 || index >= segs.length) {
+            throw new IndexOutOfBoundsException("offset " + segmentStart + " is not in the log");
+        }
+        return segs[(int) index];
+    }
+
+    private MemoryMappedFile roll(long baseOffset) throws IOException {
+        MemoryMappedFile segment = openSegment(baseOffset);
+        MemoryMappedFile[] segs = segments;
+        MemoryMappedFile[] grown = Arrays.copyOf(segs, segs.length + 1);
+        grown[segs.length] = segment;
+        segments = grown;
+        return segment;
+    }
+
+    private MemoryMappedFile openSegment(long baseOffset) throws IOException {
+        File file = new File(dir, String.format("%020d.log", baseOffset));
+        return new MemoryMappedFile(file, segmentSize, segmentSize, false);
+    }
+
+    private long baseOffset(MemoryMappedFile segment) {
+        String name = segment.file().getName();
+        return Long.parseLong(name.substring(0, name.length() - ".log".length()));
+    }
+
+    private void recover() throws IOException {
+        File[] files = dir.listFiles((d, name) -> name.matches("\\d{20}\\.log"));
+        if (files == null || files.length == 0) {
+            segments = new MemoryMappedFile[]{openSegment(0L)};
+            firstOffset = 0L;
+            committed.set(0L);
+            return;
+        }
+        Arrays.sort(files);
+        MemoryMappedFile[] segs = new MemoryMappedFile[files.length];
+        for (int i = 0; i < files.length; i++) {
+            segs[i] = new MemoryMappedFile(files[i], segmentSize, segmentSize, false);
+        }
+        segments = segs;
+        firstOffset = baseOffset(segs[0]);
+
+        // 扫描最后一个segment，第一条size为0或者校验失败的记录就是写入位置
+        MemoryMappedFile last = segs[segs.length - 1];
+        long base = baseOffset(last);
+        long pos = 0;
+        CRC32 checksum = new CRC32();
+        while (pos + HEADER_SIZE <= segmentSize) {
+            int size = last.getInt(pos);
+            if (size == END_OF_SEGMENT) {
+                pos = segmentSize;
+                break;
+            }
+            if (size < HEADER_SIZE || pos + size > segmentSize) {
+                break;
+            }
+            byte[] payload = new byte[size - HEADER_SIZE];
+            last.get(pos + HEADER_SIZE, payload, 0, payload.length);
+            checksum.reset();
+            checksum.update(payload, 0, payload.length);
+            if ((int) checksum.getValue() != last.getInt(pos + 4)) {
+                break;
+            }
+            pos += align(size);
+        }
+        pos = Math.min(pos, segmentSize);
+        clearTail(last, pos);
+        writePosition = base + pos;
+        committed.set(writePosition);
+    }
+
+    /**
+     * 把写入位置之后的残留数据清零并落盘。
+     * 映射的页面不按顺序写回磁盘，损坏的记录之后可能还有上一次运行写完整的记录；新的追加只覆盖其中一部分，
+     * 再次崩溃后恢复时可能在某个8字节对齐的位置上把残留的旧记录当成已提交的记录。
+     * 只清除到最后一个非零的8字节，预分配之后从未写过的部分保持不动
+     */
+    private void clearTail(MemoryMappedFile segment, long pos) {
+        long end = segmentSize;
+        while (end > pos && segment.getLong(end - 8) == 0L) {
+            end -= 8;
+        }
+        if (end > pos) {
+            segment.fill(pos, end - pos, (byte) 0);
+            segment.force();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        MappedCommitLog log = new MappedCommitLog(new File("E://commit_log_test"), 4 * 1024 * 1024);
+        Reader reader = log.reader(log.committedOffset());
+        Thread tailer = new Thread(() -> {
+            int received = 0;
+            while (received < 100000) {
+                byte[] record = reader.next();
+                if (record == null) {
+                    Thread.yield();
+                    continue;
+                }
+                received++;
+            }
+            out.println("tailer received " + received + " records, position: " + reader.position());
+        });
+        tailer.start();
+
+        byte[] message = "QUERY TIME ORDER".getBytes("UTF-8");
+        long start = System.nanoTime();
+        for (int i = 0; i < 100000; i++) {
+            log.append(message);
+        }
+        out.println("append cost: " + (System.nanoTime() - start) / 1000000 + "ms, committed: " + log.committedOffset());
+        tailer.join();
+        log.force();
+        log.close();
+    }
+}
@@ -0,0 +1,101 @@
+package com.luogh.base;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static java.lang.System.err;
+
+/**
+ * 映射文件的生命周期管理：后台定期刷盘，关闭时刷盘并立即解除映射。
+ *
+ * 后台线程每checkIntervalMillis检查一次所有注册的文件，满足任一条件就调用force()只刷脏页:
+ *      1.脏页字节数达到dirtyBytesThreshold
+ *      2.存在脏页，并且距离上次刷盘已经超过flushIntervalMillis
+ * 写线程不会因为刷盘阻塞在系统调用上，持久化的延迟也有明确上限。
+ * @author luogh
+ */
+public class MappedFileFlusher implements Closeable {
+    private final long flushIntervalMillis;
+    private final long dirtyBytesThreshold;
+    private final Map<MemoryMappedFile, Long> files = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * @param flushIntervalMillis 脏页最长停留时间
+     * @param dirtyBytesThreshold 脏页累计达到多少字节时立即刷盘
+     * @param checkIntervalMillis 后台线程的检查周期
+     */
+    public MappedFileFlusher(long flushIntervalMillis, long dirtyBytesThreshold, long checkIntervalMillis) {
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.dirtyBytesThreshold = dirtyBytesThreshold;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "mapped-file-flusher");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(this::flushDue, checkIntervalMillis, checkIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void register(MemoryMappedFile file) {
+        files.put(file, System.currentTimeMillis());
+    }
+
+    /**
+     * 停止后台刷盘、刷掉剩余的脏页并解除映射
+     */
+    public void close(MemoryMappedFile file) throws IOException {
+        files.remove(file);
+        try {
+            if (!file.isReadOnly()) {
+                file.force();
+            }
+        } finally {
+            file.close();
+        }
+    }
+
+    void flushDue() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<MemoryMappedFile, Long> entry : files.entrySet()) {
+            MemoryMappedFile file = entry.getKey();
+            long dirty = file.dirtyBytes();
+            if (dirty >= dirtyBytesThreshold || (dirty > 0 && now - entry.getValue() >= flushIntervalMillis)) {
+                try {
+                    file.force();
+                    entry.setValue(now);
+                } catch (RuntimeException e) {
+                    err.println("failed to flush " + file.file() + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * 关闭后台线程，并刷盘、关闭所有仍然注册着的文件
+     */
+    @Override
+    public void close() throws IOException {
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        IOException failure = null;
+        for (MemoryMappedFile file : files.keySet()) {
+            try {
+                close(file);
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
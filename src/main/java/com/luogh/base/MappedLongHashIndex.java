@@ -0,0 +1,296 @@
+package com.luogh.base;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.lang.System.out;
+
+/**
+ * 完全保存在映射文件中的long -> long开放寻址哈希索引，用于把job id、设备id、bitmap key的哈希等映射到记录偏移量。
+ *
+ * 文件格式(LITTLE_ENDIAN):
+ *      header(64字节): long magic, long capacity, long size, long zeroKeyValue, long hasZeroKey
+ *      slots: capacity个(long key, long value)，key为0表示空槽，key为0的数据单独放在header中
+ *
+ * 线性探测，装载因子超过0.6时把所有数据rehash到两倍容量的新文件，再原子rename替换原文件。
+ * 只允许一个写线程；读线程不加锁：写线程先有序写value再有序写key，读到key的线程一定能读到对应的value。
+ * 每个表有一个引用计数，索引本身持有一个，读线程在一次查找期间各持有一个；rehash之后索引释放旧表的引用，
+ * 最后一个还在旧表上探测的读线程结束时解除映射，旧表不会一直占着地址空间和已经被替换掉的文件。
+ * 重启时直接重新映射文件，不需要任何预热或重建。
+ * @author luogh
+ */
+public class MappedLongHashIndex implements Closeable {
+    private static final long MAGIC = 0x315844494853414DL; // "MASHIDX1"
+    private static final int HEADER_SIZE = 64;
+    private static final int SLOT_SIZE = 16;
+    private static final double LOAD_FACTOR = 0.6;
+
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int SIZE_OFFSET = 16;
+    private static final int ZERO_VALUE_OFFSET = 24;
+    private static final int HAS_ZERO_OFFSET = 32;
+
+    private final File file;
+    private volatile Table table;
+
+    /**
+     * 打开已有的索引文件，文件不存在时按initialCapacity创建
+     */
+    public MappedLongHashIndex(File file, long initialCapacity) throws IOException {
+        this.file = file;
+        if (file.isFile() && file.length() > 0) {
+            table = Table.open(file);
+        } else {
+            table = Table.create(file, tableSizeFor(initialCapacity));
+        }
+    }
+
+    public long size() {
+        return table.size();
+    }
+
+    public long capacity() {
+        return table.capacity;
+    }
+
+    public boolean containsKey(long key) {
+        Table t = acquire();
+        try {
+            return t.find(key) != Table.NOT_FOUND;
+        } finally {
+            t.release();
+        }
+    }
+
+    /**
+     * @return key对应的value，不存在时返回missing
+     */
+    public long get(long key, long missing) {
+        Table t = acquire();
+        try {
+            long slot = t.find(key);
+            if (slot == Table.NOT_FOUND) {
+                return missing;
+            }
+            return slot == Table.ZERO_SLOT
+                    ? t.mapped.getLongVolatile(ZERO_VALUE_OFFSET)
+                    : t.mapped.getLongVolatile(slot + 8);
+        } finally {
+            t.release();
+        }
+    }
+
+    /**
+     * 插入或覆盖，只能由唯一的写线程调用
+     */
+    public void put(long key, long value) throws IOException {
+        Table t = table;
+        if (key == 0L) {
+            t.mapped.putLongOrdered(ZERO_VALUE_OFFSET, value);
+            if (t.mapped.getLong(HAS_ZERO_OFFSET) == 0L) {
+                t.mapped.putLongOrdered(HAS_ZERO_OFFSET, 1L);
+                t.mapped.putLongOrdered(SIZE_OFFSET, t.size() + 1);
+            }
+            return;
+        }
+        if (!t.putIfPresent(key, value)) {
+            if (t.size() + 1 > (long) (t.capacity * LOAD_FACTOR)) {
+                t = rehash(t);
+            }
+            t.insert(key, value);
+        }
+    }
+
+    public void force() {
+        table.mapped.force();
+    }
+
+    /**
+     * 释放索引持有的引用，正在查找的读线程结束后解除映射
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            table.release();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * 读线程取得当前表的引用。retain失败说明这个表已经被rehash替换并且释放，table已经指向新表，重新读取即可
+     */
+    private Table acquire() {
+        for (;;) {
+            Table t = table;
+            if (t.retain()) {
+                return t;
+            }
+        }
+    }
+
+    private Table rehash(Table old) throws IOException {
+        File tmp = new File(file.getPath() + ".resize");
+        Table grown = Table.create(tmp, old.capacity << 1);
+        for (long i = 0; i < old.capacity; i++) {
+            long slot = HEADER_SIZE + i * SLOT_SIZE;
+            long key = old.mapped.getLong(slot);
+            if (key != 0L) {
+                grown.insert(key, old.mapped.getLong(slot + 8));
+            }
+        }
+        if (old.mapped.getLong(HAS_ZERO_OFFSET) != 0L) {
+            grown.mapped.putLong(ZERO_VALUE_OFFSET, old.mapped.getLong(ZERO_VALUE_OFFSET));
+            grown.mapped.putLong(HAS_ZERO_OFFSET, 1L);
+            grown.mapped.putLongOrdered(SIZE_OFFSET, grown.size() + 1);
+        }
+        grown.mapped.force();
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        // 先发布新表再释放旧表，之后的读线程不会再取得旧表的引用
+        table = grown;
+        old.release();
+        return grown;
+    }
+
+    private static long tableSizeFor(long expected) {
+        long capacity = Long.highestOneBit(Math.max(16L, (long) (expected / LOAD_FACTOR)) - 1) << 1;
+        return Math.max(16L, capacity);
+    }
+
+    static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    private static final class Table {
+        static final long NOT_FOUND = -1L;
+        static final long ZERO_SLOT = -2L;
+
+        final MemoryMappedFile mapped;
+        final long capacity;
+        final long mask;
+        /** 索引持有的1个加上正在查找的读线程数，降到0时解除映射 */
+        final AtomicInteger refs = new AtomicInteger(1);
+
+        Table(MemoryMappedFile mapped, long capacity) {
+            this.mapped = mapped;
+            this.capacity = capacity;
+            this.mask = capacity - 1;
+        }
+
+        static Table create(File file, long capacity) throws IOException {
+            Files.deleteIfExists(file.toPath());
+            long length = HEADER_SIZE + capacity * SLOT_SIZE;
+            int segmentSize = (int) Math.min(MemoryMappedFile.DEFAULT_SEGMENT_SIZE, Long.highestOneBit(length - 1) << 1);
+            MemoryMappedFile mapped = new MemoryMappedFile(file, length, segmentSize, false);
+            mapped.putLong(CAPACITY_OFFSET, capacity);
+            mapped.putLongOrdered(0, MAGIC);
+            return new Table(mapped, capacity);
+        }
+
+        static Table open(File file) throws IOException {
+            long length = file.length();
+            int segmentSize = (int) Math.min(MemoryMappedFile.DEFAULT_SEGMENT_SIZE, Long.highestOneBit(length - 1) << 1);
+            MemoryMappedFile mapped = new MemoryMappedFile(file, 0L, segmentSize, false);
+            if (mapped.getLongVolatile(0) != MAGIC) {
+                mapped.close();
+                throw new IOException(file + " is not a hash index file");
+            }
+            return new Table(mapped, mapped.getLong(CAPACITY_OFFSET));
+        }
+
+        long size() {
+            return mapped.getLongVolatile(SIZE_OFFSET);
+        }
+
+        boolean retain() {
+            for (;;) {
+                int r = refs.get();
+                if (r == 0) {
+                    return false;
+                }
+                if (refs.compareAndSet(r, r + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        void release() {
+            if (refs.decrementAndGet() == 0) {
+                try {
+                    mapped.close();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }
+
+        /**
+         * @return key所在槽位的偏移量，key为0时返回ZERO_SLOT，不存在时返回NOT_FOUND
+         */
+        long find(long key) {
+            if (key == 0L) {
+                return mapped.getLongVolatile(HAS_ZERO_OFFSET) != 0L ? ZERO_SLOT : NOT_FOUND;
+            }
+            for (long i = mix(key) & mask; ; i = (i + 1) & mask) {
+                long slot = HEADER_SIZE + i * SLOT_SIZE;
+                long k = mapped.getLongVolatile(slot);
+                if (k == key) {
+                    return slot;
+                }
+                if (k == 0L) {
+                    return NOT_FOUND;
+                }
+            }
+        }
+
+        boolean putIfPresent(long key, long value) {
+            long slot = find(key);
+            if (slot == NOT_FOUND) {
+                return false;
+            }
+            mapped.putLongOrdered(slot + 8, value);
+            return true;
+        }
+
+        void insert(long key, long value) {
+            for (long i = mix(key) & mask; ; i = (i + 1) & mask) {
+                long slot = HEADER_SIZE + i * SLOT_SIZE;
+                if (mapped.getLong(slot) == 0L) {
+                    mapped.putLongOrdered(slot + 8, value);
+                    mapped.putLongOrdered(slot, key);
+                    mapped.putLongOrdered(SIZE_OFFSET, size() + 1);
+                    return;
+                }
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        File file = new File("E://job_offset_index");
+        MappedLongHashIndex index = new MappedLongHashIndex(file, 1024);
+        long start = System.nanoTime();
+        for (long jobId = 1; jobId <= 10000000; jobId++) {
+            index.put(jobId, jobId << 4);
+        }
+        out.println("put cost: " + (System.nanoTime() - start) / 1000000 + "ms, size: " + index.size()
+                + ", capacity: " + index.capacity());
+        index.force();
+        index.close();
+
+        // 重启后直接重新映射
+        start = System.nanoTime();
+        MappedLongHashIndex reopened = new MappedLongHashIndex(file, 1024);
+        out.println("reopen cost: " + (System.nanoTime() - start) / 1000 + "us, offset of job 758: " + reopened.get(758, -1));
+        reopened.close();
+    }
+}
@@ -0,0 +1,213 @@
+package com.luogh.base;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+import static java.lang.System.out;
+
+/**
+ * 基于MemoryMappedFile的共享内存环形队列，同一台机器上的两个JVM映射同一个文件即可交换消息，不经过loopback TCP。
+ *
+ * 文件格式:
+ *      header(4096字节): long magic, long capacity; tail(生产位置)和head(消费位置)各自独占一个cache line
+ *      data: capacity字节(2的幂)的环形区域
+ * 消息格式(8字节对齐): int length(包含8字节头), int type, payload。
+ *
+ * 生产者先用CAS(多生产者)或者有序写(单生产者)移动tail占住空间，写入type和payload，最后有序写length发布消息；
+ * 唯一的消费者看到length大于0才读取，处理完把这段空间清零，再有序写head归还空间。
+ * 剩余空间放不下一条消息时写入一条PADDING消息填满到环的末尾，从头开始写。
+ * @author luogh
+ */
+public class MappedRingBuffer implements Closeable {
+    public static final int PADDING_TYPE = -1;
+
+    private static final long MAGIC = 0x31474E4952504D4DL; // "MMPRING1"
+    private static final int HEADER_SIZE = 4096;
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int TAIL_OFFSET = 128;
+    private static final int HEAD_OFFSET = 256;
+    private static final int RECORD_HEADER = 8;
+
+    private final MemoryMappedFile mapped;
+    private final int capacity;
+    private final int mask;
+    private final int maxMessageLength;
+    private final boolean singleProducer;
+
+    /**
+     * 消费者收到的消息，payload直接位于映射内存中，只能在回调内读取
+     */
+    public interface MessageHandler {
+        void onMessage(int type, MemoryMappedFile buffer, long offset, int length);
+    }
+
+    /**
+     * 打开或创建队列文件，通常由消费者一端先创建
+     * @param capacity 数据区大小，必须是2的幂
+     * @param singleProducer 只有一个生产者时不需要CAS
+     */
+    public MappedRingBuffer(File file, int capacity, boolean singleProducer) throws IOException {
+        if (capacity < 1024 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("capacity must be a power of two >= 1024: " + capacity);
+        }
+        long length = HEADER_SIZE + (long) capacity;
+        int segmentSize = (int) Math.min(MemoryMappedFile.DEFAULT_SEGMENT_SIZE, Long.highestOneBit(length - 1) << 1);
+        this.mapped = new MemoryMappedFile(file, length, segmentSize, false);
+        if (mapped.getLongVolatile(0) != MAGIC) {
+            mapped.putLong(CAPACITY_OFFSET, capacity);
+            mapped.putLongOrdered(0, MAGIC);
+        } else if (mapped.getLong(CAPACITY_OFFSET) != capacity) {
+            mapped.close();
+            throw new IOException(file + " was created with capacity " + mapped.getLong(CAPACITY_OFFSET));
+        }
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.maxMessageLength = (capacity >> 1) - RECORD_HEADER;
+        this.singleProducer = singleProducer;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public int maxMessageLength() {
+        return maxMessageLength;
+    }
+
+    /**
+     * 当前队列中未消费的字节数
+     */
+    public long size() {
+        return mapped.getLongVolatile(TAIL_OFFSET) - mapped.getLongVolatile(HEAD_OFFSET);
+    }
+
+    public boolean write(int type, byte[] src) {
+        return write(type, src, 0, src.length);
+    }
+
+    /**
+     * @param type 消息类型，不能为负数
+     * @return 队列已满时返回false，调用者自行决定重试或丢弃
+     */
+    public boolean write(int type, byte[] src, int srcOff, int len) {
+        if (type < 0) {
+            throw new IllegalArgumentException("message type must not be negative: " + type);
+        }
+        if (len > maxMessageLength) {
+            throw new IllegalArgumentException("message of " + len + " bytes exceeds " + maxMessageLength);
+        }
+        int recordLength = RECORD_HEADER + len;
+        int aligned = align(recordLength);
+        long tail;
+        int padding;
+        for (;;) {
+            long head = mapped.getLongVolatile(HEAD_OFFSET);
+            tail = mapped.getLongVolatile(TAIL_OFFSET);
+            int toEnd = capacity - (int) (tail & mask);
+            padding = aligned > toEnd ? toEnd : 0;
+            long next = tail + padding + aligned;
+            if (next - head > capacity) {
+                return false;
+            }
+            if (singleProducer) {
+                mapped.putLongOrdered(TAIL_OFFSET, next);
+                break;
+            }
+            if (mapped.compareAndSwapLong(TAIL_OFFSET, tail, next)) {
+                break;
+            }
+        }
+        long record = HEADER_SIZE + (tail & mask);
+        if (padding > 0) {
+            mapped.putInt(record + 4, PADDING_TYPE);
+            mapped.putIntOrdered(record, padding);
+            record = HEADER_SIZE;
+        }
+        mapped.putInt(record + 4, type);
+        mapped.put(record + RECORD_HEADER, src, srcOff, len);
+        mapped.putIntOrdered(record, recordLength);
+        return true;
+    }
+
+    /**
+     * 消费最多limit条消息，只能由唯一的消费线程调用
+     * @return 实际消费的消息条数(不包括PADDING)
+     */
+    public int read(MessageHandler handler, int limit) {
+        long head = mapped.getLong(HEAD_OFFSET);
+        long start = head;
+        int count = 0;
+        try {
+            while (count < limit) {
+                long record = HEADER_SIZE + (head & mask);
+                int recordLength = mapped.getIntVolatile(record);
+                if (recordLength <= 0) {
+                    break;
+                }
+                int type = mapped.getInt(record + 4);
+                if (type != PADDING_TYPE) {
+                    count++;
+                    handler.onMessage(type, mapped, record + RECORD_HEADER, recordLength - RECORD_HEADER);
+                }
+                head += align(recordLength);
+            }
+        } finally {
+            if (head != start) {
+                release(start, head);
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mapped.close();
+    }
+
+    /**
+     * 把消费过的区域清零，保证下一圈的length读到0，然后再发布head
+     */
+    private void release(long from, long to) {
+        long index = from & mask;
+        long length = to - from;
+        long first = Math.min(length, capacity - index);
+        mapped.fill(HEADER_SIZE + index, first, (byte) 0);
+        if (length > first) {
+            mapped.fill(HEADER_SIZE, length - first, (byte) 0);
+        }
+        mapped.putLongOrdered(HEAD_OFFSET, to);
+    }
+
+    private static int align(int length) {
+        return (length + 7) & ~7;
+    }
+
+    /**
+     * 分别在两个JVM中运行: MappedRingBuffer consumer / MappedRingBuffer producer
+     */
+    public static void main(String[] args) throws Exception {
+        MappedRingBuffer ring = new MappedRingBuffer(new File("/dev/shm/hello_ring"), 16 * 1024 * 1024, false);
+        int messages = 10000000;
+        if (args.length > 0 && "producer".equals(args[0])) {
+            byte[] message = "QUERY TIME ORDER".getBytes("UTF-8");
+            long start = System.nanoTime();
+            for (int i = 0; i < messages; i++) {
+                while (!ring.write(1, message)) {
+                    Thread.yield();
+                }
+            }
+            out.println("produced " + messages + " messages in " + (System.nanoTime() - start) / 1000000 + "ms");
+        } else {
+            long[] received = new long[1];
+            long start = System.nanoTime();
+            while (received[0] < messages) {
+                if (ring.read((type, buffer, offset, length) -> received[0]++, 1024) == 0) {
+                    Thread.yield();
+                }
+            }
+            out.println("consumed " + received[0] + " messages in " + (System.nanoTime() - start) / 1000000 + "ms");
+        }
+        ring.close();
+    }
+}
@@ -1,36 +1,585 @@
 package com.luogh.base;
 
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
+import static com.luogh.base.UnsafeAccess.UNSAFE;
 import static java.lang.System.out;
 
 /**
+ * 分段内存映射文件。
+ *
+ * 单个MappedByteBuffer使用int寻址，一次映射最多只能覆盖2GB。这里把文件切成固定大小(2的幂)的segment，
+ * 每个segment对应一个MappedByteBuffer，对外统一使用long偏移量读写byte/int/long以及字节区间：
+ *      1.offset >>> segmentShift 定位segment, offset & segmentMask 定位segment内的偏移
+ *      2.跨segment边界的读写退化为逐字节处理，对齐访问永远不会跨边界
+ *      3.写入超过当前容量时按segment整块扩展文件并映射新的segment，已有的映射保持不变
+ *
+ * 字节序固定为LITTLE_ENDIAN，保证文件在不同平台上内容一致。
+ * 读操作可以多线程并发执行；写操作(包括扩容)同一时刻只允许一个线程。
+ * 写入时按4KB页记录脏页，force()只刷脏页，可以交给MappedFileFlusher在后台定期执行；
+ * close()会立即解除映射，不依赖GC。
  * @author luogh
  */
-public class MemoryMappedFile {
+public class MemoryMappedFile implements Closeable {
+    public static final int DEFAULT_SEGMENT_SIZE = 1 << 30; //1GB
+    private static final int FILL_PAGE_SIZE = 64 * 1024;
+    private static final int PAGE_SHIFT = 12;
+    private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+    /** JDK13新增的MappedByteBuffer.force(int, int)，不存在时为null */
+    private static final Method FORCE_RANGE;
+
+    private static final boolean NATIVE_LITTLE_ENDIAN = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+    private static final long BUFFER_ADDRESS_OFFSET;
+
+    static {
+        try {
+            BUFFER_ADDRESS_OFFSET = UNSAFE.objectFieldOffset(Buffer.class.getDeclaredField("address"));
+        } catch (NoSuchFieldException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+        Method forceRange;
+        try {
+            forceRange = MappedByteBuffer.class.getMethod("force", int.class, int.class);
+        } catch (NoSuchMethodException e) {
+            forceRange = null;
+        }
+        FORCE_RANGE = forceRange;
+    }
+
+    private final File file;
+    private final RandomAccessFile rf;
+    private final FileChannel channel;
+    private final boolean readOnly;
+    private final int segmentSize;
+    private final int segmentShift;
+    private final int segmentMask;
+    private volatile Segment[] segments;
+    private final AtomicLong dirtyBytes = new AtomicLong();
+
+    /**
+     * 以读写方式打开文件，文件至少会扩展到initialSize(向上取整到segment大小)
+     */
+    public MemoryMappedFile(File file, long initialSize) throws IOException {
+        this(file, initialSize, DEFAULT_SEGMENT_SIZE, false);
+    }
+
+    /**
+     * @param segmentSize 每个映射段的大小，必须是2的幂
+     * @param readOnly 只读方式打开时按文件实际长度映射，不能写入也不会扩容
+     */
+    public MemoryMappedFile(File file, long initialSize, int segmentSize, boolean readOnly) throws IOException {
+        if (segmentSize <= 0 || Integer.bitCount(segmentSize) != 1) {
+            throw new IllegalArgumentException("segmentSize must be a power of two: " + segmentSize);
+        }
+        this.file = file;
+        this.readOnly = readOnly;
+        this.segmentSize = segmentSize;
+        this.segmentShift = Integer.numberOfTrailingZeros(segmentSize);
+        this.segmentMask = segmentSize - 1;
+        this.rf = new RandomAccessFile(file, readOnly ? "r" : "rw");
+        this.channel = rf.getChannel();
+        this.segments = new Segment[0];
+        try {
+            if (readOnly) {
+                mapReadOnly(rf.length());
+            } else {
+                ensureCapacity(Math.max(initialSize, rf.length()));
+            }
+        } catch (IOException | RuntimeException e) {
+            rf.close();
+            throw e;
+        }
+    }
+
+    public File file() {
+        return file;
+    }
+
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    public int segmentSize() {
+        return segmentSize;
+    }
+
+    /**
+     * 当前已映射的字节数
+     */
+    public long capacity() {
+        Segment[] segs = segments;
+        if (segs.length == 0) {
+            return 0L;
+        }
+        return ((long) (segs.length - 1) << segmentShift) + segs[segs.length - 1].buffer.capacity();
+    }
+
+    /**
+     * 保证[0, required)已映射，不足时按segment整块扩展文件
+     */
+    public synchronized void ensureCapacity(long required) throws IOException {
+        checkWritable();
+        Segment[] segs = segments;
+        long mapped = (long) segs.length << segmentShift;
+        if (required <= mapped) {
+            return;
+        }
+        int count = (int) ((required + segmentMask) >>> segmentShift);
+        long length = (long) count << segmentShift;
+        if (rf.length() < length) {
+            rf.setLength(length);
+        }
+        Segment[] grown = new Segment[count];
+        System.arraycopy(segs, 0, grown, 0, segs.length);
+        for (int i = segs.length; i < count; i++) {
+            grown[i] = new Segment(map(FileChannel.MapMode.READ_WRITE, (long) i << segmentShift, segmentSize), dirtyBytes);
+        }
+        segments = grown;
+    }
+
+    public byte getByte(long pos) {
+        return segment(pos).buffer.get(offset(pos));
+    }
+
+    public void putByte(long pos, byte value) {
+        Segment s = writableSegment(pos, 1);
+        s.buffer.put(offset(pos), value);
+        s.markDirty(offset(pos), 1);
+    }
+
+    public short getShort(long pos) {
+        int off = offset(pos);
+        if (off <= segmentSize - 2) {
+            return segment(pos).buffer.getShort(off);
+        }
+        return (short) ((getByte(pos) & 0xFF) | (getByte(pos + 1) << 8));
+    }
+
+    public void putShort(long pos, short value) {
+        int off = offset(pos);
+        if (off <= segmentSize - 2) {
+            Segment s = writableSegment(pos, 2);
+            s.buffer.putShort(off, value);
+            s.markDirty(off, 2);
+            return;
+        }
+        putByte(pos, (byte) value);
+        putByte(pos + 1, (byte) (value >>> 8));
+    }
+
+    public int getInt(long pos) {
+        int off = offset(pos);
+        if (off <= segmentSize - 4) {
+            return segment(pos).buffer.getInt(off);
+        }
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            value |= (getByte(pos + i) & 0xFF) << (i << 3);
+        }
+        return value;
+    }
+
+    public void putInt(long pos, int value) {
+        int off = offset(pos);
+        if (off <= segmentSize - 4) {
+            Segment s = writableSegment(pos, 4);
+            s.buffer.putInt(off, value);
+            s.markDirty(off, 4);
+            return;
+        }
+        for (int i = 0; i < 4; i++) {
+            putByte(pos + i, (byte) (value >>> (i << 3)));
+        }
+    }
+
+    public long getLong(long pos) {
+        int off = offset(pos);
+        if (off <= segmentSize - 8) {
+            return segment(pos).buffer.getLong(off);
+        }
+        long value = 0L;
+        for (int i = 0; i < 8; i++) {
+            value |= (getByte(pos + i) & 0xFFL) << (i << 3);
+        }
+        return value;
+    }
+
+    public void putLong(long pos, long value) {
+        int off = offset(pos);
+        if (off <= segmentSize - 8) {
+            Segment s = writableSegment(pos, 8);
+            s.buffer.putLong(off, value);
+            s.markDirty(off, 8);
+            return;
+        }
+        for (int i = 0; i < 8; i++) {
+            putByte(pos + i, (byte) (value >>> (i << 3)));
+        }
+    }
+
+    /**
+     * volatile语义读取，pos必须8字节对齐。与putLongOrdered/compareAndSwapLong配合，
+     * 可以在多个线程甚至映射同一个文件的多个进程之间发布数据
+     */
+    public long getLongVolatile(long pos) {
+        long value = UNSAFE.getLongVolatile(null, address(segment(pos), pos, 8));
+        return NATIVE_LITTLE_ENDIAN ? value : Long.reverseBytes(value);
+    }
+
+    /**
+     * 有序写(store-store屏障)，写之前的所有写入对读到这个值的线程可见，pos必须8字节对齐
+     */
+    public void putLongOrdered(long pos, long value) {
+        Segment s = writableSegment(pos, 8);
+        UNSAFE.putOrderedLong(null, address(s, pos, 8), NATIVE_LITTLE_ENDIAN ? value : Long.reverseBytes(value));
+        s.markDirty(offset(pos), 8);
+    }
+
+    public boolean compareAndSwapLong(long pos, long expected, long value) {
+        Segment s = writableSegment(pos, 8);
+        boolean swapped = NATIVE_LITTLE_ENDIAN
+                ? UNSAFE.compareAndSwapLong(null, address(s, pos, 8), expected, value)
+                : UNSAFE.compareAndSwapLong(null, address(s, pos, 8), Long.reverseBytes(expected), Long.reverseBytes(value));
+        if (swapped) {
+            s.markDirty(offset(pos), 8);
+        }
+        return swapped;
+    }
+
+    /**
+     * volatile语义读取，pos必须4字节对齐
+     */
+    public int getIntVolatile(long pos) {
+        int value = UNSAFE.getIntVolatile(null, address(segment(pos), pos, 4));
+        return NATIVE_LITTLE_ENDIAN ? value : Integer.reverseBytes(value);
+    }
+
+    /**
+     * 有序写，pos必须4字节对齐
+     */
+    public void putIntOrdered(long pos, int value) {
+        Segment s = writableSegment(pos, 4);
+        UNSAFE.putOrderedInt(null, address(s, pos, 4), NATIVE_LITTLE_ENDIAN ? value : Integer.reverseBytes(value));
+        s.markDirty(offset(pos), 4);
+    }
+
+    /**
+     * 读取[pos, pos + len)到dst[dstOff, dstOff + len)，可以跨segment
+     */
+    public void get(long pos, byte[] dst, int dstOff, int len) {
+        while (len > 0) {
+            int off = offset(pos);
+            int n = Math.min(len, segmentSize - off);
+            ByteBuffer view = segment(pos).buffer.duplicate();
+            view.position(off);
+            view.get(dst, dstOff, n);
+            pos += n;
+            dstOff += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * 把src[srcOff, srcOff + len)写入[pos, pos + len)，必要时扩容
+     */
+    public void put(long pos, byte[] src, int srcOff, int len) {
+        while (len > 0) {
+            int off = offset(pos);
+            int n = Math.min(len, segmentSize - off);
+            Segment s = writableSegment(pos, n);
+            ByteBuffer view = s.buffer.duplicate();
+            view.position(off);
+            view.put(src, srcOff, n);
+            s.markDirty(off, n);
+            pos += n;
+            srcOff += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * 读取[pos, pos + dst.remaining())到dst，dst的position前移
+     */
+    public void get(long pos, ByteBuffer dst) {
+        while (dst.hasRemaining()) {
+            int off = offset(pos);
+            int n = Math.min(dst.remaining(), segmentSize - off);
+            ByteBuffer view = segment(pos).buffer.duplicate();
+            view.position(off).limit(off + n);
+            dst.put(view);
+            pos += n;
+        }
+    }
+
+    /**
+     * 把src剩余的字节写入pos开始的位置，src的position前移
+     */
+    public void put(long pos, ByteBuffer src) {
+        while (src.hasRemaining()) {
+            int off = offset(pos);
+            int n = Math.min(src.remaining(), segmentSize - off);
+            Segment s = writableSegment(pos, n);
+            ByteBuffer view = s.buffer.duplicate();
+            view.position(off);
+            ByteBuffer chunk = src.duplicate();
+            chunk.limit(chunk.position() + n);
+            view.put(chunk);
+            src.position(src.position() + n);
+            s.markDirty(off, n);
+            pos += n;
+        }
+    }
+
+    /**
+     * 把[pos, pos + len)全部填充为value。
+     * 按页把一个填好的数组整块写入，代替逐字节put，大块数据的拷贝由JVM转成memcpy
+     */
+    public void fill(long pos, long len, byte value) {
+        byte[] page = new byte[(int) Math.min(len, FILL_PAGE_SIZE)];
+        if (value != 0) {
+            Arrays.fill(page, value);
+        }
+        while (len > 0) {
+            int off = offset(pos);
+            int n = (int) Math.min(Math.min(len, segmentSize - off), page.length);
+            Segment s = writableSegment(pos, n);
+            ByteBuffer view = s.buffer.duplicate();
+            view.position(off);
+            view.put(page, 0, n);
+            s.markDirty(off, n);
+            pos += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * 把src的[srcOff, srcOff + len)复制到当前文件的[dstOff, dstOff + len)。
+     * 两个映射之间直接做direct buffer到direct buffer的拷贝，不经过堆内数组。
+     * 同一个文件内源区间和目标区间不能重叠
+     */
+    public void copy(MemoryMappedFile src, long srcOff, long dstOff, long len) {
+        if (src == this && srcOff < dstOff + len && dstOff < srcOff + len) {
+            throw new IllegalArgumentException("overlapping copy [" + srcOff + ", " + (srcOff + len)
+                    + ") -> [" + dstOff + ", " + (dstOff + len) + ")");
+        }
+        while (len > 0) {
+            int srcPos = src.offset(srcOff);
+            int dstPos = offset(dstOff);
+            int n = (int) Math.min(len, Math.min(src.segmentSize - srcPos, segmentSize - dstPos));
+            ByteBuffer from = src.segment(srcOff).buffer.duplicate();
+            from.position(srcPos).limit(srcPos + n);
+            Segment s = writableSegment(dstOff, n);
+            ByteBuffer to = s.buffer.duplicate();
+            to.position(dstPos);
+            to.put(from);
+            s.markDirty(dstPos, n);
+            srcOff += n;
+            dstOff += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * 尚未刷盘的字节数，按页(4KB)统计
+     */
+    public long dirtyBytes() {
+        return dirtyBytes.get();
+    }
+
+    /**
+     * 把所有被修改过的页刷到磁盘。
+     * JDK13以上按连续的脏页区间调用MappedByteBuffer.force(index, length)，之前的版本只能刷整个segment
+     */
+    public synchronized void force() {
+        for (Segment s : segments) {
+            s.flush();
+        }
+    }
+
+    /**
+     * 关闭文件并立即解除所有映射，不依赖GC回收MappedByteBuffer。
+     * 调用之前必须保证没有其它线程还在读写这个文件，否则访问已解除的映射会导致JVM崩溃
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        Segment[] segs = segments;
+        segments = new Segment[0];
+        try {
+            rf.close();
+        } finally {
+            for (Segment s : segs) {
+                DirectBufferCleaner.clean(s.buffer);
+            }
+        }
+    }
+
+    private void mapReadOnly(long length) throws IOException {
+        int count = (int) ((length + segmentMask) >>> segmentShift);
+        Segment[] segs = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            long start = (long) i << segmentShift;
+            segs[i] = new Segment(map(FileChannel.MapMode.READ_ONLY, start, Math.min(segmentSize, length - start)), dirtyBytes);
+        }
+        segments = segs;
+    }
+
+    private MappedByteBuffer map(FileChannel.MapMode mode, long start, long size) throws IOException {
+        MappedByteBuffer buffer = channel.map(mode, start, size);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        return buffer;
+    }
+
+    /**
+     * 映射内存的绝对地址，越界或者未对齐的访问会直接导致JVM崩溃，所以在这里统一检查
+     */
+    private long address(Segment s, long pos, int size) {
+        int off = offset(pos);
+        if ((off & (size - 1)) != 0 || off > s.buffer.capacity() - size) {
+            throw new IllegalArgumentException("unaligned or out of range access of " + size + " bytes at " + pos);
+        }
+        return s.address + off;
+    }
+
+    private int offset(long pos) {
+        return (int) (pos & segmentMask);
+    }
+
+    private Segment segment(long pos) {
+        Segment[] segs = segments;
+        long index = pos >>> segmentShift;
+        if (pos < 0 || index >= segs.length) {
+            throw new IndexOutOfBoundsException("position " + pos + " out of mapped range " + capacity());
+        }
+        return segs[(int) index];
+    }
+
+    private Segment writableSegment(long pos, int len) {
+        // Unsafe写只读映射会直接导致SIGSEGV，所有写路径都在这里检查
+        checkWritable();
+        Segment[] segs = segments;
+        long index = pos >>> segmentShift;
+        if (pos >= 0 && index < segs.length) {
+            return segs[(int) index];
+        }
+        try {
+            ensureCapacity(pos + len);
+        } catch (IOException e) {
+            throw new IllegalStateException("failed to grow " + file + " to " + (pos + len), e);
+        }
+        return segment(pos);
+    }
+
+    private void checkWritable() {
+        if (readOnly) {
+            throw new IllegalStateException(file + " is mapped read only");
+        }
+    }
+
+    /**
+     * 一个映射段，以及它的脏页位图(每一位对应4KB)。
+     * 写线程先写数据再置位，刷盘线程先清位再force，所以任何写入要么被这次force覆盖，要么留下脏标记等待下一次
+     */
+    private static final class Segment {
+        final MappedByteBuffer buffer;
+        final long address;
+        final AtomicLongArray dirtyPages;
+        final AtomicLong dirtyBytes;
+
+        Segment(MappedByteBuffer buffer, AtomicLong dirtyBytes) {
+            this.buffer = buffer;
+            this.address = UNSAFE.getLong(buffer, BUFFER_ADDRESS_OFFSET);
+            this.dirtyBytes = dirtyBytes;
+            int pages = (buffer.capacity() + PAGE_SIZE - 1) >>> PAGE_SHIFT;
+            this.dirtyPages = new AtomicLongArray((pages + 63) >>> 6);
+        }
+
+        void markDirty(int off, int len) {
+            int last = (off + len - 1) >>> PAGE_SHIFT;
+            for (int page = off >>> PAGE_SHIFT; page <= last; page++) {
+                int index = page >>> 6;
+                long bit = 1L << page;
+                long word = dirtyPages.get(index);
+                while ((word & bit) == 0) {
+                    if (dirtyPages.compareAndSet(index, word, word | bit)) {
+                        dirtyBytes.addAndGet(PAGE_SIZE);
+                        break;
+                    }
+                    word = dirtyPages.get(index);
+                }
+            }
+        }
+
+        void flush() {
+            long[] snapshot = new long[dirtyPages.length()];
+            boolean dirty = false;
+            for (int i = 0; i < snapshot.length; i++) {
+                if (dirtyPages.get(i) != 0) {
+                    snapshot[i] = dirtyPages.getAndSet(i, 0L);
+                    dirty = true;
+                }
+            }
+            if (!dirty) {
+                return;
+            }
+            BitSet pages = BitSet.valueOf(snapshot);
+            if (FORCE_RANGE == null) {
+                buffer.force();
+            } else {
+                for (int page = pages.nextSetBit(0); page >= 0; page = pages.nextSetBit(page)) {
+                    int end = pages.nextClearBit(page);
+                    int from = page << PAGE_SHIFT;
+                    forceRange(buffer, from, Math.min(end << PAGE_SHIFT, buffer.capacity()) - from);
+                    page = end;
+                }
+            }
+            dirtyBytes.addAndGet(-(long) pages.cardinality() * PAGE_SIZE);
+        }
+    }
+
+    private static void forceRange(MappedByteBuffer buffer, int index, int length) {
+        try {
+            FORCE_RANGE.invoke(buffer, index, length);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("failed to force mapped range", e);
+        }
+    }
+
     private static final int count = 10485760; //10MB
     public static void main(String[] arg) throws Exception {
-        RandomAccessFile rf = new RandomAccessFile("E://bitmap_test", "rw");
         // Mapping a file into memory
-        MappedByteBuffer buffer = rf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, count);
+        MemoryMappedFile file = new MemoryMappedFile(new File("E://bitmap_test"), count);
 
-        out.println((char)buffer.get());
-        buffer.rewind();
+        out.println((char)file.getByte(0));
         // writing into Memory Mapped File
-        for (int i=0; i<count; i++) {
-            buffer.put((byte)'A');
-        }
+        file.fill(0, count, (byte)'A');
+        // 写到2GB之后，超过单个MappedByteBuffer的寻址范围
+        file.putLong(3L << 30, 0x4242424242424242L);
         out.println("Writing to Memory Mapped File is completed.");
 
         // reading from memory file in Java
-        for (int i=0;i < 10; i++) {
-            out.println((char)buffer.get(i));
+        byte[] head = new byte[10];
+        file.get(0, head, 0, head.length);
+        for (byte b : head) {
+            out.println((char)b);
         }
+        out.println((char)file.getByte(3L << 30));
         out.println("Reading from Memory Mapped File is completed.");
 
-        rf.close();
+        file.force();
+        file.close();
     }
 
 }
@@ -0,0 +1,117 @@
+package com.luogh.base.bitmap;
+
+import com.luogh.base.MemoryMappedFile;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * 有序short数组容器，元素超过4096个时转换为BitmapContainer
+ * @author luogh
+ */
+final class ArrayContainer extends Container {
+    private short[] content;
+    private int cardinality;
+
+    ArrayContainer() {
+        this(new short[4], 0);
+    }
+
+    ArrayContainer(short[] content, int cardinality) {
+        this.content = content;
+        this.cardinality = cardinality;
+    }
+
+    @Override
+    byte type() {
+        return ARRAY;
+    }
+
+    @Override
+    Container add(short x) {
+        int index = unsignedBinarySearch(content, 0, cardinality, x & 0xFFFF);
+        if (index >= 0) {
+            return this;
+        }
+        if (cardinality >= MAX_ARRAY_SIZE) {
+            return toBitmapContainer().add(x);
+        }
+        index = -index - 1;
+        if (cardinality == content.length) {
+            content = Arrays.copyOf(content, Math.min(content.length << 1, MAX_ARRAY_SIZE));
+        }
+        System.arraycopy(content, index, content, index + 1, cardinality - index);
+        content[index] = x;
+        cardinality++;
+        return this;
+    }
+
+    @Override
+    Container remove(short x) {
+        int index = unsignedBinarySearch(content, 0, cardinality, x & 0xFFFF);
+        if (index >= 0) {
+            System.arraycopy(content, index + 1, content, index, cardinality - index - 1);
+            cardinality--;
+        }
+        return this;
+    }
+
+    @Override
+    boolean contains(short x) {
+        return unsignedBinarySearch(content, 0, cardinality, x & 0xFFFF) >= 0;
+    }
+
+    @Override
+    int cardinality() {
+        return cardinality;
+    }
+
+    @Override
+    void forEach(int high, IntConsumer consumer) {
+        for (int i = 0; i < cardinality; i++) {
+            consumer.accept(high | (content[i] & 0xFFFF));
+        }
+    }
+
+    @Override
+    void orInto(long[] words) {
+        for (int i = 0; i < cardinality; i++) {
+            int v = content[i] & 0xFFFF;
+            words[v >>> 6] |= 1L << v;
+        }
+    }
+
+    @Override
+    int numberOfRuns() {
+        int runs = 0;
+        int previous = -2;
+        for (int i = 0; i < cardinality; i++) {
+            int v = content[i] & 0xFFFF;
+            if (v != previous + 1) {
+                runs++;
+            }
+            previous = v;
+        }
+        return runs;
+    }
+
+    @Override
+    int serializedSize() {
+        return cardinality << 1;
+    }
+
+    @Override
+    void serialize(MemoryMappedFile file, long pos) {
+        ByteBuffer bytes = ByteBuffer.allocate(serializedSize()).order(ByteOrder.LITTLE_ENDIAN);
+        bytes.asShortBuffer().put(content, 0, cardinality);
+        file.put(pos, bytes.array(), 0, bytes.capacity());
+    }
+
+    private BitmapContainer toBitmapContainer() {
+        long[] words = new long[WORDS];
+        orInto(words);
+        return new BitmapContainer(words, cardinality);
+    }
+}
@@ -0,0 +1,156 @@
+package com.luogh.base.bitmap;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+import static java.lang.System.out;
+
+/**
+ * 基于ForkJoin的位图集合运算引擎。
+ *
+ * 先算出表达式结果可能包含的容器key，再像ForkJoinWorker.CountTask一样按key区间二分拆成子任务，
+ * 区间足够小时逐个key调用BitmapExpression求值:
+ *      1.cardinality: 只统计每个容器结果的bitCount并累加，不生成结果位图
+ *      2.evaluate: 把每个容器的结果转换成Container，最后按key顺序拼成RoaringBitmap
+ * @author luogh
+ */
+public class BitmapAlgebra {
+    public static final int DEFAULT_THRESHOLD = 8;
+
+    private final ForkJoinPool pool;
+    private final int threshold;
+
+    public BitmapAlgebra() {
+        this(ForkJoinPool.commonPool(), DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * @param threshold 一个子任务最多处理的容器个数
+     */
+    public BitmapAlgebra(ForkJoinPool pool, int threshold) {
+        this.pool = pool;
+        this.threshold = Math.max(1, threshold);
+    }
+
+    public long cardinality(BitmapExpression expression) {
+        int[] keys = expression.candidateKeys();
+        return pool.invoke(new CardinalityTask(expression, keys, 0, keys.length, threshold));
+    }
+
+    public RoaringBitmap evaluate(BitmapExpression expression) {
+        int[] keys = expression.candidateKeys();
+        Container[] results = new Container[keys.length];
+        pool.invoke(new EvaluateTask(expression, keys, results, 0, keys.length, threshold));
+        RoaringBitmap bitmap = new RoaringBitmap();
+        for (int i = 0; i < keys.length; i++) {
+            if (results[i] != null) {
+                bitmap.append(keys[i], results[i]);
+            }
+        }
+        return bitmap;
+    }
+
+    static class CardinalityTask extends RecursiveTask<Long> {
+        private static final long serialVersionUID = 1L;
+
+        private final BitmapExpression expression;
+        private final int[] keys;
+        private final int start;
+        private final int end;
+        private final int threshold;
+
+        CardinalityTask(BitmapExpression expression, int[] keys, int start, int end, int threshold) {
+            this.expression = expression;
+            this.keys = keys;
+            this.start = start;
+            this.end = end;
+            this.threshold = threshold;
+        }
+
+        @Override
+        protected Long compute() {
+            // 如果任务足够小，就直接执行任务
+            if (end - start <= threshold) {
+                BitmapExpression.WordsPool words = new BitmapExpression.WordsPool(expression.depth() + 1);
+                long[] result = words.take();
+                long sum = 0L;
+                for (int i = start; i < end; i++) {
+                    if (expression.evaluate(keys[i], result, words)) {
+                        sum += Container.cardinality(result);
+                    }
+                }
+                return sum;
+            }
+            // 如果任务大于阀值，就分裂两个子任务来执行，当前线程直接计算右半部分
+            int mid = start + (end - start) / 2;
+            CardinalityTask leftTask = new CardinalityTask(expression, keys, start, mid, threshold);
+            CardinalityTask rightTask = new CardinalityTask(expression, keys, mid, end, threshold);
+            leftTask.fork();
+            long rightResult = rightTask.compute();
+            return leftTask.join() + rightResult;
+        }
+    }
+
+    static class EvaluateTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final BitmapExpression expression;
+        private final int[] keys;
+        private final Container[] results;
+        private final int start;
+        private final int end;
+        private final int threshold;
+
+        EvaluateTask(BitmapExpression expression, int[] keys, Container[] results, int start, int end, int threshold) {
+            this.expression = expression;
+            this.keys = keys;
+            this.results = results;
+            this.start = start;
+            this.end = end;
+            this.threshold = threshold;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start <= threshold) {
+                BitmapExpression.WordsPool words = new BitmapExpression.WordsPool(expression.depth() + 1);
+                long[] result = words.take();
+                for (int i = start; i < end; i++) {
+                    if (expression.evaluate(keys[i], result, words)) {
+                        int cardinality = Container.cardinality(result);
+                        if (cardinality > 0) {
+                            results[i] = Container.fromWords(result, cardinality);
+                        }
+                    }
+                }
+                return;
+            }
+            int mid = start + (end - start) / 2;
+            invokeAll(new EvaluateTask(expression, keys, results, start, mid, threshold),
+                    new EvaluateTask(expression, keys, results, mid, end, threshold));
+        }
+    }
+
+    public static void main(String[] args) {
+        RoaringBitmap a = new RoaringBitmap();
+        RoaringBitmap b = new RoaringBitmap();
+        RoaringBitmap c = new RoaringBitmap();
+        for (int i = 0; i < 30000000; i++) {
+            if (i % 2 == 0) a.add(i);
+            if (i % 3 == 0) b.add(i);
+            if (i % 5 == 0) c.add(i);
+        }
+        BitmapExpression expression = BitmapExpression.parse("(a AND b) ANDNOT c",
+                name -> "a".equals(name) ? a : "b".equals(name) ? b : "c".equals(name) ? c : null);
+
+        BitmapAlgebra algebra = new BitmapAlgebra();
+        long start = System.nanoTime();
+        long cardinality = algebra.cardinality(expression);
+        out.println("cardinality: " + cardinality + " cost: " + (System.nanoTime() - start) / 1000000 + "ms");
+
+        start = System.nanoTime();
+        RoaringBitmap result = algebra.evaluate(expression);
+        out.println("evaluate: " + result.cardinality() + " cost: " + (System.nanoTime() - start) / 1000000 + "ms");
+    }
+}
@@ -0,0 +1,99 @@
+package com.luogh.base.bitmap;
+
+import com.luogh.base.MemoryMappedFile;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.function.IntConsumer;
+
+/**
+ * 65536位的位图容器，元素减少到4096个以下时转换回ArrayContainer
+ * @author luogh
+ */
+final class BitmapContainer extends Container {
+    private final long[] words;
+    private int cardinality;
+
+    BitmapContainer(long[] words, int cardinality) {
+        this.words = words;
+        this.cardinality = cardinality;
+    }
+
+    @Override
+    byte type() {
+        return BITMAP;
+    }
+
+    @Override
+    Container add(short x) {
+        int v = x & 0xFFFF;
+        long before = words[v >>> 6];
+        long after = before | (1L << v);
+        if (before != after) {
+            words[v >>> 6] = after;
+            cardinality++;
+        }
+        return this;
+    }
+
+    @Override
+    Container remove(short x) {
+        int v = x & 0xFFFF;
+        long before = words[v >>> 6];
+        long after = before & ~(1L << v);
+        if (before != after) {
+            words[v >>> 6] = after;
+            cardinality--;
+            if (cardinality <= MAX_ARRAY_SIZE) {
+                return fromWords(words, cardinality);
+            }
+        }
+        return this;
+    }
+
+    @Override
+    boolean contains(short x) {
+        int v = x & 0xFFFF;
+        return (words[v >>> 6] & (1L << v)) != 0;
+    }
+
+    @Override
+    int cardinality() {
+        return cardinality;
+    }
+
+    @Override
+    void forEach(int high, IntConsumer consumer) {
+        for (int i = 0; i < WORDS; i++) {
+            long w = words[i];
+            while (w != 0) {
+                consumer.accept(high | ((i << 6) + Long.numberOfTrailingZeros(w)));
+                w &= w - 1;
+            }
+        }
+    }
+
+    @Override
+    void orInto(long[] target) {
+        for (int i = 0; i < WORDS; i++) {
+            target[i] |= words[i];
+        }
+    }
+
+    @Override
+    int numberOfRuns() {
+        return numberOfRuns(words);
+    }
+
+    @Override
+    int serializedSize() {
+        return WORDS << 3;
+    }
+
+    @Override
+    void serialize(MemoryMappedFile file, long pos) {
+        ByteBuffer bytes = ByteBuffer.allocate(serializedSize()).order(ByteOrder.LITTLE_ENDIAN);
+        bytes.asLongBuffer().put(words);
+        file.put(pos, bytes.array(), 0, bytes.capacity());
+    }
+}
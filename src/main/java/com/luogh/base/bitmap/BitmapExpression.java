@@ -0,0 +1,306 @@
+package com.luogh.base.bitmap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * 位图集合运算表达式，例如 (a AND b) ANDNOT c。
+ *
+ * 表达式按容器key逐个求值：每次只计算一个key对应的65536位结果，结果写入调用者提供的1024个long中，
+ * 不会物化中间位图。AND/ANDNOT的优先级高于OR/XOR，同级运算从左到右结合。
+ * @author luogh
+ */
+public abstract class BitmapExpression {
+
+    public static BitmapExpression bitmap(ImmutableBitmap bitmap) {
+        return new Leaf(bitmap);
+    }
+
+    public static BitmapExpression and(BitmapExpression left, BitmapExpression right) {
+        return new Binary(Operator.AND, left, right);
+    }
+
+    public static BitmapExpression or(BitmapExpression left, BitmapExpression right) {
+        return new Binary(Operator.OR, left, right);
+    }
+
+    public static BitmapExpression andNot(BitmapExpression left, BitmapExpression right) {
+        return new Binary(Operator.ANDNOT, left, right);
+    }
+
+    public static BitmapExpression xor(BitmapExpression left, BitmapExpression right) {
+        return new Binary(Operator.XOR, left, right);
+    }
+
+    /**
+     * 解析表达式，bitmap名称通过resolver查找(例如取BitmapStore.acquire()得到的Handle中的bitmap，求值结束后再close)
+     */
+    public static BitmapExpression parse(String expression, Function<String, ? extends ImmutableBitmap> resolver) {
+        Parser parser = new Parser(expression, resolver);
+        BitmapExpression result = parser.parseOr();
+        if (parser.peek() != null) {
+            throw new IllegalArgumentException("unexpected token '" + parser.peek() + "' in " + expression);
+        }
+        return result;
+    }
+
+    /**
+     * 结果可能包含的容器key，升序
+     */
+    abstract int[] candidateKeys();
+
+    /**
+     * 计算key对应容器的结果，写入words
+     * @return false表示结果一定为空，此时words的内容无意义
+     */
+    abstract boolean evaluate(int key, long[] words, WordsPool pool);
+
+    /**
+     * 运算需要的临时位图个数
+     */
+    abstract int depth();
+
+    enum Operator {
+        AND, OR, ANDNOT, XOR
+    }
+
+    private static final class Leaf extends BitmapExpression {
+        private final ImmutableBitmap bitmap;
+
+        Leaf(ImmutableBitmap bitmap) {
+            this.bitmap = bitmap;
+        }
+
+        @Override
+        int[] candidateKeys() {
+            int[] keys = new int[bitmap.containerCount()];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = bitmap.keyAt(i);
+            }
+            return keys;
+        }
+
+        @Override
+        boolean evaluate(int key, long[] words, WordsPool pool) {
+            int index = bitmap.indexOfKey(key);
+            if (index < 0) {
+                return false;
+            }
+            Arrays.fill(words, 0L);
+            bitmap.orInto(index, words);
+            return true;
+        }
+
+        @Override
+        int depth() {
+            return 0;
+        }
+    }
+
+    private static final class Binary extends BitmapExpression {
+        private final Operator operator;
+        private final BitmapExpression left;
+        private final BitmapExpression right;
+
+        Binary(Operator operator, BitmapExpression left, BitmapExpression right) {
+            this.operator = operator;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        int[] candidateKeys() {
+            int[] l = left.candidateKeys();
+            switch (operator) {
+                case AND:
+                    return intersect(l, right.candidateKeys());
+                case ANDNOT:
+                    return l;
+                default:
+                    return union(l, right.candidateKeys());
+            }
+        }
+
+        @Override
+        boolean evaluate(int key, long[] words, WordsPool pool) {
+            boolean l = left.evaluate(key, words, pool);
+            if (!l && (operator == Operator.AND || operator == Operator.ANDNOT)) {
+                return false;
+            }
+            long[] other = pool.take();
+            try {
+                boolean r = right.evaluate(key, other, pool);
+                if (!r) {
+                    return operator != Operator.AND && l;
+                }
+                if (!l) {
+                    System.arraycopy(other, 0, words, 0, words.length);
+                    return true;
+                }
+                switch (operator) {
+                    case AND:
+                        for (int i = 0; i < words.length; i++) {
+                            words[i] &= other[i];
+                        }
+                        break;
+                    case OR:
+                        for (int i = 0; i < words.length; i++) {
+                            words[i] |= other[i];
+                        }
+                        break;
+                    case ANDNOT:
+                        for (int i = 0; i < words.length; i++) {
+                            words[i] &= ~other[i];
+                        }
+                        break;
+                    default:
+                        for (int i = 0; i < words.length; i++) {
+                            words[i] ^= other[i];
+                        }
+                }
+                return true;
+            } finally {
+                pool.give(other);
+            }
+        }
+
+        @Override
+        int depth() {
+            return Math.max(left.depth(), right.depth() + 1);
+        }
+    }
+
+    /**
+     * 每个计算任务私有的临时位图栈，避免每个容器都重新分配8KB的数组
+     */
+    static final class WordsPool {
+        private final long[][] stack;
+        private int size;
+
+        WordsPool(int depth) {
+            stack = new long[depth][];
+            for (int i = 0; i < depth; i++) {
+                stack[i] = new long[Container.WORDS];
+            }
+            size = depth;
+        }
+
+        long[] take() {
+            return stack[--size];
+        }
+
+        void give(long[] words) {
+            stack[size++] = words;
+        }
+    }
+
+    static int[] intersect(int[] a, int[] b) {
+        int[] result = new int[Math.min(a.length, b.length)];
+        int i = 0, j = 0, n = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                result[n++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(result, n);
+    }
+
+    static int[] union(int[] a, int[] b) {
+        int[] result = new int[a.length + b.length];
+        int i = 0, j = 0, n = 0;
+        while (i < a.length || j < b.length) {
+            if (j == b.length || (i < a.length && a[i] < b[j])) {
+                result[n++] = a[i++];
+            } else if (i == a.length || b[j] < a[i]) {
+                result[n++] = b[j++];
+            } else {
+                result[n++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(result, n);
+    }
+
+    private static final class Parser {
+        private final String expression;
+        private final Function<String, ? extends ImmutableBitmap> resolver;
+        private final List<String> tokens = new ArrayList<>();
+        private int position;
+
+        Parser(String expression, Function<String, ? extends ImmutableBitmap> resolver) {
+            this.expression = expression;
+            this.resolver = resolver;
+            int i = 0;
+            while (i < expression.length()) {
+                char c = expression.charAt(i);
+                if (Character.isWhitespace(c)) {
+                    i++;
+                } else if (c == '(' || c == ')') {
+                    tokens.add(String.valueOf(c));
+                    i++;
+                } else {
+                    int start = i;
+                    while (i < expression.length() && !Character.isWhitespace(expression.charAt(i))
+                            && expression.charAt(i) != '(' && expression.charAt(i) != ')') {
+                        i++;
+                    }
+                    tokens.add(expression.substring(start, i));
+                }
+            }
+        }
+
+        String peek() {
+            return position < tokens.size() ? tokens.get(position) : null;
+        }
+
+        BitmapExpression parseOr() {
+            BitmapExpression result = parseAnd();
+            for (String op = peek(); "OR".equalsIgnoreCase(op) || "XOR".equalsIgnoreCase(op); op = peek()) {
+                position++;
+                BitmapExpression right = parseAnd();
+                result = "OR".equalsIgnoreCase(op) ? or(result, right) : xor(result, right);
+            }
+            return result;
+        }
+
+        BitmapExpression parseAnd() {
+            BitmapExpression result = parsePrimary();
+            for (String op = peek(); "AND".equalsIgnoreCase(op) || "ANDNOT".equalsIgnoreCase(op); op = peek()) {
+                position++;
+                BitmapExpression right = parsePrimary();
+                result = "AND".equalsIgnoreCase(op) ? and(result, right) : andNot(result, right);
+            }
+            return result;
+        }
+
+        BitmapExpression parsePrimary() {
+            String token = peek();
+            if (token == null) {
+                throw new IllegalArgumentException("unexpected end of " + expression);
+            }
+            position++;
+            if ("(".equals(token)) {
+                BitmapExpression result = parseOr();
+                if (!")".equals(peek())) {
+                    throw new IllegalArgumentException("missing ')' in " + expression);
+                }
+                position++;
+                return result;
+            }
+            ImmutableBitmap bitmap = resolver.apply(token);
+            if (bitmap == null) {
+                throw new IllegalArgumentException("unknown bitmap '" + token + "' in " + expression);
+            }
+            return bitmap(bitmap);
+        }
+    }
+}
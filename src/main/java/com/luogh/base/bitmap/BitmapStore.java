@@ -0,0 +1,243 @@
+package com.luogh.base.bitmap;
+
+import com.luogh.base.MemoryMappedFile;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+import static java.lang.System.out;
+
+/**
+ * 以bitmap id(例如DDC任务中的inputBitmapKey)为key的位图存储。
+ *
+ * 每个bitmap保存为目录下的一个 key.bitmap 文件：写入时先序列化到临时文件、截断到序列化的长度，再原子rename，
+ * 读取时只读映射并返回MappedRoaringBitmap，同一个key只映射一次。
+ * 映射按引用计数管理: 缓存本身持有一个引用，acquire()返回的Handle各持有一个引用，
+ * put/remove替换或删除一个key时只是从缓存中摘下旧的映射，最后一个Handle关闭之后才解除映射，
+ * 正在读取旧bitmap的线程不会访问已经unmap的内存。
+ * 同一个key的打开、替换和删除在ConcurrentHashMap.compute中互斥，put之后不会再缓存旧文件的映射。
+ * @author luogh
+ */
+public class BitmapStore implements Closeable {
+    private static final Pattern KEY = Pattern.compile("[0-9A-Za-z_\\-]+");
+    private static final String SUFFIX = ".bitmap";
+
+    private final File dir;
+    private final ConcurrentMap<String, Entry> opened = new ConcurrentHashMap<>();
+
+    /**
+     * 一个打开的映射和它的引用计数
+     */
+    private static final class Entry {
+        final MappedRoaringBitmap bitmap;
+        final AtomicInteger refs = new AtomicInteger(1);
+
+        Entry(MappedRoaringBitmap bitmap) {
+            this.bitmap = bitmap;
+        }
+
+        boolean retain() {
+            for (;;) {
+                int r = refs.get();
+                if (r == 0) {
+                    return false;
+                }
+                if (refs.compareAndSet(r, r + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        void release() throws IOException {
+            if (refs.decrementAndGet() == 0) {
+                bitmap.file().close();
+            }
+        }
+    }
+
+    /**
+     * 持有一个映射的引用，close()之前bitmap()一直可以安全读取，即使这个key已经被put替换或者remove
+     */
+    public static final class Handle implements Closeable {
+        private final Entry entry;
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        private Handle(Entry entry) {
+            this.entry = entry;
+        }
+
+        public MappedRoaringBitmap bitmap() {
+            if (closed.get()) {
+                throw new IllegalStateException("handle closed");
+            }
+            return entry.bitmap;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed.compareAndSet(false, true)) {
+                entry.release();
+            }
+        }
+    }
+
+    public BitmapStore(File dir) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("can not create bitmap store directory " + dir);
+        }
+        this.dir = dir;
+    }
+
+    public void put(String key, RoaringBitmap bitmap) throws IOException {
+        File tmp = new File(dir, checkKey(key) + SUFFIX + ".tmp");
+        long size = bitmap.serializedSizeInBytes();
+        try (MemoryMappedFile file = new MemoryMappedFile(tmp, size, segmentSizeFor(size), false)) {
+            bitmap.serialize(file, 0L);
+            file.force();
+        }
+        // 映射按segment整块扩展了文件，解除映射之后截掉多余的部分
+        try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw")) {
+            raf.setLength(size);
+        }
+        // 先替换文件再摘下旧映射，和acquire在同一个key上互斥
+        release(replace(key, () -> Files.move(tmp.toPath(), fileOf(key).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)));
+    }
+
+    /**
+     * @return 持有映射引用的Handle，用完必须close；key不存在时返回null
+     */
+    public Handle acquire(String key) throws IOException {
+        Entry entry = opened.get(checkKey(key));
+        if (entry != null && entry.retain()) {
+            return new Handle(entry);
+        }
+        try {
+            entry = opened.compute(key, (k, current) -> {
+                if (current != null && current.retain()) {
+                    return current;
+                }
+                File file = fileOf(k);
+                if (!file.isFile()) {
+                    return null;
+                }
+                Entry created = open(file);
+                created.retain();
+                return created;
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return entry == null ? null : new Handle(entry);
+    }
+
+    public boolean contains(String key) {
+        return opened.containsKey(checkKey(key)) || fileOf(key).isFile();
+    }
+
+    public boolean remove(String key) throws IOException {
+        boolean[] deleted = new boolean[1];
+        release(replace(checkKey(key), () -> deleted[0] = Files.deleteIfExists(fileOf(key).toPath())));
+        return deleted[0];
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (String key : opened.keySet()) {
+            release(opened.remove(key));
+        }
+    }
+
+    private interface FileAction {
+        void run() throws IOException;
+    }
+
+    /**
+     * 在key的锁内修改文件并摘下缓存的映射
+     * @return 摘下的映射，由调用方在锁外release
+     */
+    private Entry replace(String key, FileAction action) throws IOException {
+        Entry[] removed = new Entry[1];
+        try {
+            opened.compute(key, (k, current) -> {
+                try {
+                    action.run();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                removed[0] = current;
+                return null;
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return removed[0];
+    }
+
+    private static Entry open(File file) {
+        try {
+            MemoryMappedFile mapped = new MemoryMappedFile(file, 0L, MemoryMappedFile.DEFAULT_SEGMENT_SIZE, true);
+            try {
+                return new Entry(new MappedRoaringBitmap(mapped, 0L));
+            } catch (RuntimeException e) {
+                mapped.close();
+                throw e;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void release(Entry entry) throws IOException {
+        if (entry != null) {
+            entry.release();
+        }
+    }
+
+    private File fileOf(String key) {
+        return new File(dir, key + SUFFIX);
+    }
+
+    private static String checkKey(String key) {
+        if (key == null || !KEY.matcher(key).matches()) {
+            throw new IllegalArgumentException("illegal bitmap key: " + key);
+        }
+        return key;
+    }
+
+    /**
+     * 小bitmap用一个刚好够用的segment，大bitmap按默认1GB分段
+     */
+    private static int segmentSizeFor(long size) {
+        if (size >= MemoryMappedFile.DEFAULT_SEGMENT_SIZE) {
+            return MemoryMappedFile.DEFAULT_SEGMENT_SIZE;
+        }
+        return Math.max(4096, Integer.highestOneBit((int) Math.max(size - 1, 1)) << 1);
+    }
+
+    public static void main(String[] args) throws IOException {
+        BitmapStore store = new BitmapStore(new File("E://bitmap_test_store"));
+        RoaringBitmap devices = new RoaringBitmap();
+        for (int i = 0; i < 30000000; i += 3) {
+            devices.add(i);
+        }
+        devices.runOptimize();
+        store.put("2ddd39ac1d5f444ab0df86fe13ae6800", devices);
+
+        try (Handle handle = store.acquire("2ddd39ac1d5f444ab0df86fe13ae6800")) {
+            MappedRoaringBitmap mapped = handle.bitmap();
+            out.println("cardinality: " + mapped.cardinality() + ", contains 29999997: " + mapped.contains(29999997));
+        }
+        store.close();
+    }
+}
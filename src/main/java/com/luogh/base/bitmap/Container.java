@@ -0,0 +1,139 @@
+package com.luogh.base.bitmap;
+
+import com.luogh.base.MemoryMappedFile;
+
+import java.util.function.IntConsumer;
+
+/**
+ * Roaring bitmap中一个16位key对应的容器，保存低16位的取值。
+ *
+ * 三种实现:
+ *      1.ArrayContainer: 有序short数组，元素个数不超过4096时最省空间
+ *      2.BitmapContainer: 1024个long组成的65536位的位图，元素个数超过4096时使用
+ *      3.RunContainer: (start, length-1)组成的run数组，适合连续区间，由runOptimize()生成
+ *
+ * add/remove返回修改后的容器，容器类型可能因此发生变化，调用者需要用返回值替换原来的容器。
+ * @author luogh
+ */
+abstract class Container {
+    static final byte ARRAY = 0;
+    static final byte BITMAP = 1;
+    static final byte RUN = 2;
+
+    static final int MAX_ARRAY_SIZE = 4096;
+    static final int WORDS = 1024;
+
+    abstract byte type();
+
+    abstract Container add(short x);
+
+    abstract Container remove(short x);
+
+    abstract boolean contains(short x);
+
+    abstract int cardinality();
+
+    /**
+     * 依次回调 high | low
+     */
+    abstract void forEach(int high, IntConsumer consumer);
+
+    /**
+     * 把容器内容按位或到1024个long的位图中
+     */
+    abstract void orInto(long[] words);
+
+    abstract int numberOfRuns();
+
+    abstract int serializedSize();
+
+    abstract void serialize(MemoryMappedFile file, long pos);
+
+    /**
+     * 选择序列化后最小的容器类型
+     */
+    Container runOptimize() {
+        int runs = numberOfRuns();
+        if (RunContainer.serializedSize(runs) < serializedSize()) {
+            return RunContainer.fromContainer(this, runs);
+        }
+        return this;
+    }
+
+    /**
+     * 根据位图内容生成array或bitmap容器，words会被复制
+     */
+    static Container fromWords(long[] words, int cardinality) {
+        if (cardinality <= MAX_ARRAY_SIZE) {
+            short[] content = new short[Math.max(cardinality, 4)];
+            int n = 0;
+            for (int i = 0; i < WORDS; i++) {
+                long w = words[i];
+                while (w != 0) {
+                    content[n++] = (short) ((i << 6) + Long.numberOfTrailingZeros(w));
+                    w &= w - 1;
+                }
+            }
+            return new ArrayContainer(content, n);
+        }
+        return new BitmapContainer(words.clone(), cardinality);
+    }
+
+    static int cardinality(long[] words) {
+        int card = 0;
+        for (int i = 0; i < WORDS; i++) {
+            card += Long.bitCount(words[i]);
+        }
+        return card;
+    }
+
+    static int numberOfRuns(long[] words) {
+        int runs = 0;
+        long carry = 0L;
+        for (int i = 0; i < WORDS; i++) {
+            long w = words[i];
+            runs += Long.bitCount(w & ~((w << 1) | carry));
+            carry = w >>> 63;
+        }
+        return runs;
+    }
+
+    /**
+     * 把[start, end)区间的位置1
+     */
+    static void setRange(long[] words, int start, int end) {
+        int first = start >>> 6;
+        int last = (end - 1) >>> 6;
+        long firstMask = -1L << start;
+        long lastMask = -1L >>> -end;
+        if (first == last) {
+            words[first] |= firstMask & lastMask;
+            return;
+        }
+        words[first] |= firstMask;
+        for (int i = first + 1; i < last; i++) {
+            words[i] = -1L;
+        }
+        words[last] |= lastMask;
+    }
+
+    /**
+     * 按无符号short比较的二分查找，找不到时返回 -(插入位置) - 1
+     */
+    static int unsignedBinarySearch(short[] array, int from, int to, int key) {
+        int low = from;
+        int high = to - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int value = array[mid] & 0xFFFF;
+            if (value < key) {
+                low = mid + 1;
+            } else if (value > key) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+}
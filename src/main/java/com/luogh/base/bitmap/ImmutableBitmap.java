@@ -0,0 +1,41 @@
+package com.luogh.base.bitmap;
+
+import java.util.function.IntConsumer;
+
+/**
+ * 堆内RoaringBitmap和映射文件上的MappedRoaringBitmap共同的只读视图。
+ *
+ * 元素按无符号32位整数处理，高16位为容器的key，低16位保存在容器中。
+ * 按下标访问容器的方法供集合运算按容器逐个处理，不需要把整个bitmap物化到堆上。
+ * @author luogh
+ */
+public interface ImmutableBitmap {
+
+    boolean contains(int value);
+
+    long cardinality();
+
+    /**
+     * 按无符号升序回调每个元素
+     */
+    void forEach(IntConsumer consumer);
+
+    int containerCount();
+
+    /**
+     * 第index个容器的key(高16位)，按升序排列
+     */
+    int keyAt(int index);
+
+    /**
+     * @return key对应容器的下标，不存在时返回负数
+     */
+    int indexOfKey(int key);
+
+    int containerCardinality(int index);
+
+    /**
+     * 把第index个容器按位或到1024个long组成的位图中
+     */
+    void orInto(int index, long[] words);
+}
@@ -0,0 +1,199 @@
+package com.luogh.base.bitmap;
+
+import com.luogh.base.MemoryMappedFile;
+
+import java.util.function.IntConsumer;
+
+import static com.luogh.base.bitmap.RoaringBitmap.DIRECTORY_ENTRY_SIZE;
+import static com.luogh.base.bitmap.RoaringBitmap.HEADER_SIZE;
+import static com.luogh.base.bitmap.RoaringBitmap.MAGIC;
+
+/**
+ * 直接在映射文件上读取RoaringBitmap序列化结果的只读位图。
+ *
+ * 打开时只校验header，不做任何反序列化；contains/forEach等操作直接按偏移量读取映射内存，
+ * 数据由操作系统的page cache负责缓存，不占用堆空间。
+ * @author luogh
+ */
+public class MappedRoaringBitmap implements ImmutableBitmap {
+    private final MemoryMappedFile file;
+    private final long base;
+    private final int size;
+    private final long cardinality;
+
+    public MappedRoaringBitmap(MemoryMappedFile file, long base) {
+        if (file.getInt(base) != MAGIC) {
+            throw new IllegalArgumentException(file.file() + " has no roaring bitmap at offset " + base);
+        }
+        this.file = file;
+        this.base = base;
+        this.size = file.getInt(base + 4);
+        this.cardinality = file.getLong(base + 8);
+    }
+
+    public MemoryMappedFile file() {
+        return file;
+    }
+
+    @Override
+    public boolean contains(int value) {
+        int index = indexOfKey(value >>> 16);
+        if (index < 0) {
+            return false;
+        }
+        int low = value & 0xFFFF;
+        long pos = dataOffset(index);
+        switch (type(index)) {
+            case Container.ARRAY:
+                return arrayIndexOf(pos, containerCardinality(index), low) >= 0;
+            case Container.BITMAP:
+                return (file.getLong(pos + ((low >>> 6) << 3)) & (1L << low)) != 0;
+            default:
+                return runContains(pos, low);
+        }
+    }
+
+    @Override
+    public long cardinality() {
+        return cardinality;
+    }
+
+    @Override
+    public void forEach(IntConsumer consumer) {
+        for (int i = 0; i < size; i++) {
+            int high = keyAt(i) << 16;
+            long pos = dataOffset(i);
+            switch (type(i)) {
+                case Container.ARRAY:
+                    int card = containerCardinality(i);
+                    for (int j = 0; j < card; j++) {
+                        consumer.accept(high | (file.getShort(pos + (j << 1)) & 0xFFFF));
+                    }
+                    break;
+                case Container.BITMAP:
+                    for (int w = 0; w < Container.WORDS; w++) {
+                        long word = file.getLong(pos + (w << 3));
+                        while (word != 0) {
+                            consumer.accept(high | ((w << 6) + Long.numberOfTrailingZeros(word)));
+                            word &= word - 1;
+                        }
+                    }
+                    break;
+                default:
+                    int nRuns = file.getInt(pos);
+                    for (int r = 0; r < nRuns; r++) {
+                        int start = file.getShort(pos + 8 + (r << 2)) & 0xFFFF;
+                        int end = start + (file.getShort(pos + 10 + (r << 2)) & 0xFFFF);
+                        for (int v = start; v <= end; v++) {
+                            consumer.accept(high | v);
+                        }
+                    }
+            }
+        }
+    }
+
+    @Override
+    public int containerCount() {
+        return size;
+    }
+
+    @Override
+    public int keyAt(int index) {
+        return file.getInt(entry(index)) & 0xFFFF;
+    }
+
+    @Override
+    public int indexOfKey(int key) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int k = keyAt(mid);
+            if (k < key) {
+                low = mid + 1;
+            } else if (k > key) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    @Override
+    public int containerCardinality(int index) {
+        return file.getInt(entry(index) + 4);
+    }
+
+    @Override
+    public void orInto(int index, long[] words) {
+        long pos = dataOffset(index);
+        switch (type(index)) {
+            case Container.ARRAY:
+                int card = containerCardinality(index);
+                for (int j = 0; j < card; j++) {
+                    int v = file.getShort(pos + (j << 1)) & 0xFFFF;
+                    words[v >>> 6] |= 1L << v;
+                }
+                break;
+            case Container.BITMAP:
+                for (int w = 0; w < Container.WORDS; w++) {
+                    words[w] |= file.getLong(pos + (w << 3));
+                }
+                break;
+            default:
+                int nRuns = file.getInt(pos);
+                for (int r = 0; r < nRuns; r++) {
+                    int start = file.getShort(pos + 8 + (r << 2)) & 0xFFFF;
+                    int length = file.getShort(pos + 10 + (r << 2)) & 0xFFFF;
+                    Container.setRange(words, start, start + length + 1);
+                }
+        }
+    }
+
+    private long entry(int index) {
+        return base + HEADER_SIZE + (long) index * DIRECTORY_ENTRY_SIZE;
+    }
+
+    private byte type(int index) {
+        return (byte) (file.getInt(entry(index)) >>> 16);
+    }
+
+    private long dataOffset(int index) {
+        return file.getLong(entry(index) + 8);
+    }
+
+    private int arrayIndexOf(long pos, int cardinality, int key) {
+        int low = 0;
+        int high = cardinality - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int v = file.getShort(pos + (mid << 1)) & 0xFFFF;
+            if (v < key) {
+                low = mid + 1;
+            } else if (v > key) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    private boolean runContains(long pos, int v) {
+        int low = 0;
+        int high = file.getInt(pos) - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int start = file.getShort(pos + 8 + (mid << 2)) & 0xFFFF;
+            if (v < start) {
+                high = mid - 1;
+            } else if (v > start + (file.getShort(pos + 10 + (mid << 2)) & 0xFFFF)) {
+                low = mid + 1;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,191 @@
+package com.luogh.base.bitmap;
+
+import com.luogh.base.MemoryMappedFile;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * 堆内可修改的Roaring压缩位图。
+ *
+ * 序列化格式(LITTLE_ENDIAN，所有容器数据8字节对齐)，MappedRoaringBitmap直接在映射文件上按此格式读取:
+ *      header:    int magic, int containerCount, long cardinality
+ *      directory: 每个容器16字节, int (key | type << 16), int cardinality, long offset
+ *      container: array为cardinality个short; bitmap为1024个long; run为int nRuns, int 0, nRuns个(start, length - 1)
+ * @author luogh
+ */
+public class RoaringBitmap implements ImmutableBitmap {
+    static final int MAGIC = 0x314D4252; // "RBM1"
+    static final int HEADER_SIZE = 16;
+    static final int DIRECTORY_ENTRY_SIZE = 16;
+
+    private int[] keys;
+    private Container[] containers;
+    private int size;
+
+    public RoaringBitmap() {
+        keys = new int[4];
+        containers = new Container[4];
+    }
+
+    public static RoaringBitmap of(int... values) {
+        RoaringBitmap bitmap = new RoaringBitmap();
+        for (int v : values) {
+            bitmap.add(v);
+        }
+        return bitmap;
+    }
+
+    public void add(int value) {
+        int key = value >>> 16;
+        int index = indexOfKey(key);
+        if (index >= 0) {
+            containers[index] = containers[index].add((short) value);
+        } else {
+            insert(-index - 1, key, new ArrayContainer().add((short) value));
+        }
+    }
+
+    public void remove(int value) {
+        int index = indexOfKey(value >>> 16);
+        if (index < 0) {
+            return;
+        }
+        Container c = containers[index].remove((short) value);
+        if (c.cardinality() == 0) {
+            System.arraycopy(keys, index + 1, keys, index, size - index - 1);
+            System.arraycopy(containers, index + 1, containers, index, size - index - 1);
+            containers[--size] = null;
+        } else {
+            containers[index] = c;
+        }
+    }
+
+    @Override
+    public boolean contains(int value) {
+        int index = indexOfKey(value >>> 16);
+        return index >= 0 && containers[index].contains((short) value);
+    }
+
+    @Override
+    public long cardinality() {
+        long card = 0L;
+        for (int i = 0; i < size; i++) {
+            card += containers[i].cardinality();
+        }
+        return card;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    public void forEach(IntConsumer consumer) {
+        for (int i = 0; i < size; i++) {
+            containers[i].forEach(keys[i] << 16, consumer);
+        }
+    }
+
+    @Override
+    public int containerCount() {
+        return size;
+    }
+
+    @Override
+    public int keyAt(int index) {
+        return keys[index];
+    }
+
+    @Override
+    public int indexOfKey(int key) {
+        return Arrays.binarySearch(keys, 0, size, key);
+    }
+
+    @Override
+    public int containerCardinality(int index) {
+        return containers[index].cardinality();
+    }
+
+    @Override
+    public void orInto(int index, long[] words) {
+        containers[index].orInto(words);
+    }
+
+    /**
+     * 把每个容器替换成序列化后最小的类型，连续区间较多时会生成RunContainer
+     */
+    public void runOptimize() {
+        for (int i = 0; i < size; i++) {
+            containers[i] = containers[i].runOptimize();
+        }
+    }
+
+    public long serializedSizeInBytes() {
+        long bytes = HEADER_SIZE + (long) size * DIRECTORY_ENTRY_SIZE;
+        for (int i = 0; i < size; i++) {
+            bytes += align(containers[i].serializedSize());
+        }
+        return bytes;
+    }
+
+    /**
+     * 从pos开始写入映射文件
+     * @return 写入的字节数
+     */
+    public long serialize(MemoryMappedFile file, long pos) {
+        long cardinality = 0L;
+        long dataPos = pos + HEADER_SIZE + (long) size * DIRECTORY_ENTRY_SIZE;
+        for (int i = 0; i < size; i++) {
+            Container c = containers[i];
+            long entry = pos + HEADER_SIZE + (long) i * DIRECTORY_ENTRY_SIZE;
+            file.putInt(entry, keys[i] | (c.type() << 16));
+            file.putInt(entry + 4, c.cardinality());
+            file.putLong(entry + 8, dataPos);
+            c.serialize(file, dataPos);
+            dataPos += align(c.serializedSize());
+            cardinality += c.cardinality();
+        }
+        file.putInt(pos, MAGIC);
+        file.putInt(pos + 4, size);
+        file.putLong(pos + 8, cardinality);
+        return dataPos - pos;
+    }
+
+    /**
+     * 把任意只读bitmap复制成可修改的堆内bitmap
+     */
+    public static RoaringBitmap copyOf(ImmutableBitmap source) {
+        RoaringBitmap bitmap = new RoaringBitmap();
+        long[] words = new long[Container.WORDS];
+        for (int i = 0; i < source.containerCount(); i++) {
+            Arrays.fill(words, 0L);
+            source.orInto(i, words);
+            bitmap.append(source.keyAt(i), Container.fromWords(words, source.containerCardinality(i)));
+        }
+        return bitmap;
+    }
+
+    /**
+     * 按key升序追加容器，调用者保证key大于已有的所有key
+     */
+    void append(int key, Container container) {
+        insert(size, key, container);
+    }
+
+    static long align(long bytes) {
+        return (bytes + 7) & ~7L;
+    }
+
+    private void insert(int index, int key, Container container) {
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size << 1);
+            containers = Arrays.copyOf(containers, size << 1);
+        }
+        System.arraycopy(keys, index, keys, index + 1, size - index);
+        System.arraycopy(containers, index, containers, index + 1, size - index);
+        keys[index] = key;
+        containers[index] = container;
+        size++;
+    }
+}
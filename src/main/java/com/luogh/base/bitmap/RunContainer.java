@@ -0,0 +1,144 @@
+package com.luogh.base.bitmap;
+
+import com.luogh.base.MemoryMappedFile;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.function.IntConsumer;
+
+/**
+ * 行程编码容器，runs中依次存放(start, length - 1)。
+ *
+ * 只由runOptimize()生成，被修改时先转换成array/bitmap容器，需要时再次runOptimize()压缩。
+ * @author luogh
+ */
+final class RunContainer extends Container {
+    private final short[] runs;
+    private final int nRuns;
+    private final int cardinality;
+
+    RunContainer(short[] runs, int nRuns) {
+        this.runs = runs;
+        this.nRuns = nRuns;
+        int card = 0;
+        for (int i = 0; i < nRuns; i++) {
+            card += (runs[(i << 1) + 1] & 0xFFFF) + 1;
+        }
+        this.cardinality = card;
+    }
+
+    static int serializedSize(int nRuns) {
+        return 8 + (nRuns << 2);
+    }
+
+    static RunContainer fromContainer(Container container, int nRuns) {
+        long[] words = new long[WORDS];
+        container.orInto(words);
+        short[] runs = new short[nRuns << 1];
+        int n = 0;
+        int start = -1;
+        for (int v = 0; v <= 0xFFFF; v++) {
+            boolean set = (words[v >>> 6] & (1L << v)) != 0;
+            if (set && start < 0) {
+                start = v;
+            } else if (!set && start >= 0) {
+                runs[n++] = (short) start;
+                runs[n++] = (short) (v - 1 - start);
+                start = -1;
+            }
+        }
+        if (start >= 0) {
+            runs[n++] = (short) start;
+            runs[n++] = (short) (0xFFFF - start);
+        }
+        return new RunContainer(runs, n >>> 1);
+    }
+
+    @Override
+    byte type() {
+        return RUN;
+    }
+
+    @Override
+    Container add(short x) {
+        return contains(x) ? this : toBitmapOrArray().add(x);
+    }
+
+    @Override
+    Container remove(short x) {
+        return contains(x) ? toBitmapOrArray().remove(x) : this;
+    }
+
+    @Override
+    boolean contains(short x) {
+        int v = x & 0xFFFF;
+        int low = 0;
+        int high = nRuns - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int start = runs[mid << 1] & 0xFFFF;
+            if (v < start) {
+                high = mid - 1;
+            } else if (v > start + (runs[(mid << 1) + 1] & 0xFFFF)) {
+                low = mid + 1;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    int cardinality() {
+        return cardinality;
+    }
+
+    @Override
+    void forEach(int high, IntConsumer consumer) {
+        for (int i = 0; i < nRuns; i++) {
+            int start = runs[i << 1] & 0xFFFF;
+            int end = start + (runs[(i << 1) + 1] & 0xFFFF);
+            for (int v = start; v <= end; v++) {
+                consumer.accept(high | v);
+            }
+        }
+    }
+
+    @Override
+    void orInto(long[] words) {
+        for (int i = 0; i < nRuns; i++) {
+            int start = runs[i << 1] & 0xFFFF;
+            setRange(words, start, start + (runs[(i << 1) + 1] & 0xFFFF) + 1);
+        }
+    }
+
+    @Override
+    int numberOfRuns() {
+        return nRuns;
+    }
+
+    @Override
+    Container runOptimize() {
+        int other = cardinality <= MAX_ARRAY_SIZE ? cardinality << 1 : WORDS << 3;
+        return other < serializedSize() ? toBitmapOrArray() : this;
+    }
+
+    @Override
+    int serializedSize() {
+        return serializedSize(nRuns);
+    }
+
+    @Override
+    void serialize(MemoryMappedFile file, long pos) {
+        ByteBuffer bytes = ByteBuffer.allocate(serializedSize()).order(ByteOrder.LITTLE_ENDIAN);
+        bytes.putInt(nRuns).putInt(0);
+        bytes.asShortBuffer().put(runs, 0, nRuns << 1);
+        file.put(pos, bytes.array(), 0, bytes.capacity());
+    }
+
+    private Container toBitmapOrArray() {
+        long[] words = new long[WORDS];
+        orInto(words);
+        return fromWords(words, cardinality);
+    }
+}
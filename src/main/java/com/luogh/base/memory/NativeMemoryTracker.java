@@ -0,0 +1,261 @@
+package com.luogh.base.memory;
+
+import com.luogh.base.DirectBufferCleaner;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.ObjectName;
+
+import static com.luogh.base.UnsafeAccess.UNSAFE;
+import static java.lang.System.err;
+import static java.lang.System.out;
+
+/**
+ * 堆外内存的统一分配入口，按调用方的tag统计存活的分配次数和字节数。
+ *
+ *      1.Unsafe内存: allocate(tag, size) / free(tag, address, size)，释放时必须传入分配时的tag和大小
+ *      2.direct ByteBuffer: allocateDirect(tag, capacity)，用PhantomReference跟踪，
+ *        被GC回收或者调用freeDirect()显式释放时扣减统计
+ *      3.泄漏排查: 按1/sampleRate的概率记录分配时的调用栈，leakReport()列出存活时间超过阈值的采样分配
+ *
+ * 采样率由-Dluogh.memory.sampleRate指定，默认1024，0表示不采样；统计数据通过JMX(com.luogh:type=NativeMemoryTracker)暴露。
+ * @author luogh
+ */
+public final class NativeMemoryTracker implements NativeMemoryTrackerMXBean {
+    public static final String OBJECT_NAME = "com.luogh:type=NativeMemoryTracker";
+
+    private static final NativeMemoryTracker INSTANCE = new NativeMemoryTracker(
+            Integer.getInteger("luogh.memory.sampleRate", 1024));
+    private static final long BUFFER_ADDRESS_OFFSET;
+
+    static {
+        try {
+            BUFFER_ADDRESS_OFFSET = UNSAFE.objectFieldOffset(Buffer.class.getDeclaredField("address"));
+        } catch (NoSuchFieldException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE, new ObjectName(OBJECT_NAME));
+        } catch (Exception e) {
+            err.println("failed to register " + OBJECT_NAME + ": " + e.getMessage());
+        }
+    }
+
+    private final int sampleRate;
+    private final Map<String, TagStats> tags = new ConcurrentHashMap<>();
+    private final Map<Long, Sample> samples = new ConcurrentHashMap<>();
+    private final Map<Long, DirectBufferReference> directBuffers = new ConcurrentHashMap<>();
+    private final ReferenceQueue<ByteBuffer> collected = new ReferenceQueue<>();
+    private final LongAdder totalAllocatedBytes = new LongAdder();
+
+    private NativeMemoryTracker(int sampleRate) {
+        this.sampleRate = sampleRate;
+    }
+
+    public static NativeMemoryTracker get() {
+        return INSTANCE;
+    }
+
+    public static long allocate(String tag, long size) {
+        long address = UNSAFE.allocateMemory(size);
+        INSTANCE.onAllocate(tag, address, size);
+        return address;
+    }
+
+    /**
+     * 统计出错(例如tag和分配时不一致)时仍然先释放内存，再抛出异常
+     */
+    public static void free(String tag, long address, long size) {
+        try {
+            INSTANCE.onFree(tag, address, size);
+        } finally {
+            UNSAFE.freeMemory(address);
+        }
+    }
+
+    public static ByteBuffer allocateDirect(String tag, int capacity) {
+        INSTANCE.drainCollected();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(capacity);
+        long address = UNSAFE.getLong(buffer, BUFFER_ADDRESS_OFFSET);
+        INSTANCE.directBuffers.put(address, new DirectBufferReference(buffer, INSTANCE.collected, tag, address, capacity));
+        INSTANCE.onAllocate(tag, address, capacity);
+        return buffer;
+    }
+
+    /**
+     * 立即释放allocateDirect()分配的buffer，之后不能再访问它
+     */
+    public static void freeDirect(ByteBuffer buffer) {
+        long address = UNSAFE.getLong(buffer, BUFFER_ADDRESS_OFFSET);
+        DirectBufferReference ref = INSTANCE.directBuffers.remove(address);
+        try {
+            if (ref != null) {
+                ref.clear();
+                INSTANCE.onFree(ref.tag, address, ref.size);
+            }
+        } finally {
+            DirectBufferCleaner.clean(buffer);
+        }
+    }
+
+    /**
+     * @return 存活时间超过minAgeMillis的采样分配及其调用栈
+     */
+    public List<String> leakSuspects(long minAgeMillis) {
+        drainCollected();
+        long now = System.currentTimeMillis();
+        List<String> suspects = new ArrayList<>();
+        samples.forEach((address, sample) -> {
+            if (now - sample.timestamp >= minAgeMillis) {
+                StringWriter trace = new StringWriter();
+                sample.stack.printStackTrace(new PrintWriter(trace));
+                suspects.add(String.format("[%s] %d bytes at 0x%x, age %dms%n%s",
+                        sample.tag, sample.size, address, now - sample.timestamp, trace));
+            }
+        });
+        return suspects;
+    }
+
+    @Override
+    public long getLiveBytes() {
+        drainCollected();
+        long bytes = 0;
+        for (TagStats stats : tags.values()) {
+            bytes += stats.liveBytes.sum();
+        }
+        return bytes;
+    }
+
+    @Override
+    public long getLiveAllocations() {
+        drainCollected();
+        long count = 0;
+        for (TagStats stats : tags.values()) {
+            count += stats.liveCount.sum();
+        }
+        return count;
+    }
+
+    @Override
+    public long getTotalAllocatedBytes() {
+        return totalAllocatedBytes.sum();
+    }
+
+    @Override
+    public Map<String, Long> getLiveBytesByTag() {
+        drainCollected();
+        Map<String, Long> result = new TreeMap<>();
+        tags.forEach((tag, stats) -> result.put(tag, stats.liveBytes.sum()));
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getLiveAllocationsByTag() {
+        drainCollected();
+        Map<String, Long> result = new TreeMap<>();
+        tags.forEach((tag, stats) -> result.put(tag, stats.liveCount.sum()));
+        return result;
+    }
+
+    @Override
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    @Override
+    public String getLeakReport() {
+        return String.join(System.lineSeparator(), leakSuspects(60000));
+    }
+
+    private void onAllocate(String tag, long address, long size) {
+        TagStats stats = tags.computeIfAbsent(tag, t -> new TagStats());
+        stats.liveCount.increment();
+        stats.liveBytes.add(size);
+        totalAllocatedBytes.add(size);
+        if (sampleRate > 0 && ThreadLocalRandom.current().nextInt(sampleRate) == 0) {
+            samples.put(address, new Sample(tag, size, new Throwable("allocated by " + Thread.currentThread().getName())));
+        }
+    }
+
+    private void onFree(String tag, long address, long size) {
+        TagStats stats = tags.get(tag);
+        if (stats == null) {
+            throw new IllegalArgumentException("free with unknown tag " + tag + " at 0x" + Long.toHexString(address));
+        }
+        stats.liveCount.decrement();
+        stats.liveBytes.add(-size);
+        if (!samples.isEmpty()) {
+            samples.remove(address);
+        }
+    }
+
+    /**
+     * 扣减已经被GC回收的direct ByteBuffer
+     */
+    private void drainCollected() {
+        Reference<? extends ByteBuffer> ref;
+        while ((ref = collected.poll()) != null) {
+            DirectBufferReference buffer = (DirectBufferReference) ref;
+            if (directBuffers.remove(buffer.address, buffer)) {
+                onFree(buffer.tag, buffer.address, buffer.size);
+            }
+        }
+    }
+
+    private static final class TagStats {
+        final LongAdder liveCount = new LongAdder();
+        final LongAdder liveBytes = new LongAdder();
+    }
+
+    private static final class Sample {
+        final String tag;
+        final long size;
+        final long timestamp = System.currentTimeMillis();
+        final Throwable stack;
+
+        Sample(String tag, long size, Throwable stack) {
+            this.tag = tag;
+            this.size = size;
+            this.stack = stack;
+        }
+    }
+
+    private static final class DirectBufferReference extends PhantomReference<ByteBuffer> {
+        final String tag;
+        final long address;
+        final long size;
+
+        DirectBufferReference(ByteBuffer buffer, ReferenceQueue<ByteBuffer> queue, String tag, long address, long size) {
+            super(buffer, queue);
+            this.tag = tag;
+            this.address = address;
+            this.size = size;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        long address = allocate("demo", 100);
+        for (int i = 0; i < 1000; i++) {
+            allocateDirect("demo-direct", 4096);
+        }
+        out.println("live: " + get().getLiveBytesByTag());
+        System.gc();
+        Thread.sleep(100);
+        out.println("after gc: " + get().getLiveBytesByTag());
+        free("demo", address, 100);
+        out.println("after free: " + get().getLiveBytesByTag());
+    }
+}
@@ -0,0 +1,27 @@
+package com.luogh.base.memory;
+
+import java.util.Map;
+
+/**
+ * NativeMemoryTracker的JMX接口
+ * @author luogh
+ */
+public interface NativeMemoryTrackerMXBean {
+
+    long getLiveBytes();
+
+    long getLiveAllocations();
+
+    long getTotalAllocatedBytes();
+
+    Map<String, Long> getLiveBytesByTag();
+
+    Map<String, Long> getLiveAllocationsByTag();
+
+    int getSampleRate();
+
+    /**
+     * 存活超过1分钟的采样分配及其调用栈
+     */
+    String getLeakReport();
+}
@@ -0,0 +1,275 @@
+package com.luogh.base.memory;
+
+import java.io.Closeable;
+
+import static com.luogh.base.UnsafeAccess.UNSAFE;
+import static java.lang.System.out;
+
+/**
+ * 表数据保存在Unsafe分配的堆外内存中的long -> long开放寻址哈希表。
+ *
+ * 每个槽位16字节(key, value)，key为0表示空槽，key为0的数据单独保存在字段中；线性探测，
+ * 装载因子超过0.7时分配两倍大小的新表rehash，删除使用backward shift，不需要墓碑。
+ * 与collection.mutable.HashMap[Long, Long]相比没有装箱和Entry对象，GC完全看不到表中的数据。
+ * 非线程安全，用完必须调用close()释放堆外内存，关闭之后的访问抛出IllegalStateException。
+ * @author luogh
+ */
+public class OffHeapLongLongMap implements Closeable {
+    private static final int SLOT_SIZE = 16;
+    private static final double LOAD_FACTOR = 0.7;
+    private static final String TRACKER_TAG = "OffHeapLongLongMap";
+
+    private long address;
+    private long capacity;
+    private long mask;
+    private long size;
+    private long threshold;
+    private boolean hasZeroKey;
+    private long zeroValue;
+
+    /**
+     * 遍历回调
+     */
+    public interface LongLongProcedure {
+        void apply(long key, long value);
+    }
+
+    public OffHeapLongLongMap() {
+        this(1024);
+    }
+
+    public OffHeapLongLongMap(long expectedSize) {
+        long capacity = Long.highestOneBit(Math.max(16L, (long) (expectedSize / LOAD_FACTOR)) - 1) << 1;
+        allocateTable(Math.max(16L, capacity));
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public long capacity() {
+        return capacity;
+    }
+
+    public boolean containsKey(long key) {
+        checkOpen();
+        return key == 0L ? hasZeroKey : findSlot(key) >= 0;
+    }
+
+    /**
+     * @return key对应的value，不存在时返回missing
+     */
+    public long get(long key, long missing) {
+        checkOpen();
+        if (key == 0L) {
+            return hasZeroKey ? zeroValue : missing;
+        }
+        long slot = findSlot(key);
+        return slot >= 0 ? UNSAFE.getLong(slot + 8) : missing;
+    }
+
+    public void put(long key, long value) {
+        checkOpen();
+        if (key == 0L) {
+            if (!hasZeroKey) {
+                hasZeroKey = true;
+                size++;
+            }
+            zeroValue = value;
+            return;
+        }
+        UNSAFE.putLong(insertSlot(key) + 8, value);
+    }
+
+    /**
+     * 计数器累加，key不存在时从0开始
+     * @return 累加后的值
+     */
+    public long addTo(long key, long delta) {
+        checkOpen();
+        if (key == 0L) {
+            if (!hasZeroKey) {
+                hasZeroKey = true;
+                size++;
+            }
+            return zeroValue += delta;
+        }
+        long slot = insertSlot(key);
+        long value = UNSAFE.getLong(slot + 8) + delta;
+        UNSAFE.putLong(slot + 8, value);
+        return value;
+    }
+
+    /**
+     * @return 是否删除了数据
+     */
+    public boolean remove(long key) {
+        checkOpen();
+        if (key == 0L) {
+            if (!hasZeroKey) {
+                return false;
+            }
+            hasZeroKey = false;
+            zeroValue = 0L;
+            size--;
+            return true;
+        }
+        long slot = findSlot(key);
+        if (slot < 0) {
+            return false;
+        }
+        // backward shift: 把后面探测链上的数据前移填补空槽
+        long hole = (slot - address) / SLOT_SIZE;
+        for (long i = (hole + 1) & mask; ; i = (i + 1) & mask) {
+            long k = UNSAFE.getLong(slotAddress(i));
+            if (k == 0L) {
+                break;
+            }
+            long home = mix(k) & mask;
+            if (((i - home) & mask) >= ((i - hole) & mask)) {
+                UNSAFE.putLong(slotAddress(hole), k);
+                UNSAFE.putLong(slotAddress(hole) + 8, UNSAFE.getLong(slotAddress(i) + 8));
+                hole = i;
+            }
+        }
+        UNSAFE.putLong(slotAddress(hole), 0L);
+        UNSAFE.putLong(slotAddress(hole) + 8, 0L);
+        size--;
+        return true;
+    }
+
+    /**
+     * 按槽位顺序遍历所有数据，回调中不能修改这个map
+     */
+    public void forEach(LongLongProcedure procedure) {
+        checkOpen();
+        if (hasZeroKey) {
+            procedure.apply(0L, zeroValue);
+        }
+        long end = address + capacity * SLOT_SIZE;
+        for (long slot = address; slot < end; slot += SLOT_SIZE) {
+            long k = UNSAFE.getLong(slot);
+            if (k != 0L) {
+                procedure.apply(k, UNSAFE.getLong(slot + 8));
+            }
+        }
+    }
+
+    public void clear() {
+        checkOpen();
+        UNSAFE.setMemory(address, capacity * SLOT_SIZE, (byte) 0);
+        size = 0;
+        hasZeroKey = false;
+        zeroValue = 0L;
+    }
+
+    @Override
+    public void close() {
+        if (address != 0L) {
+            NativeMemoryTracker.free(TRACKER_TAG, address, capacity * SLOT_SIZE);
+            address = 0L;
+        }
+    }
+
+    static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    private void checkOpen() {
+        if (address == 0L) {
+            throw new IllegalStateException("map closed");
+        }
+    }
+
+    private long slotAddress(long index) {
+        return address + index * SLOT_SIZE;
+    }
+
+    /**
+     * @return key所在槽位的地址，不存在时返回-1
+     */
+    private long findSlot(long key) {
+        for (long i = mix(key) & mask; ; i = (i + 1) & mask) {
+            long slot = slotAddress(i);
+            long k = UNSAFE.getLong(slot);
+            if (k == key) {
+                return slot;
+            }
+            if (k == 0L) {
+                return -1L;
+            }
+        }
+    }
+
+    /**
+     * @return key所在槽位的地址，不存在时插入value为0的新数据
+     */
+    private long insertSlot(long key) {
+        for (long i = mix(key) & mask; ; i = (i + 1) & mask) {
+            long slot = slotAddress(i);
+            long k = UNSAFE.getLong(slot);
+            if (k == key) {
+                return slot;
+            }
+            if (k == 0L) {
+                if (size + 1 > threshold) {
+                    rehash(capacity << 1);
+                    return insertSlot(key);
+                }
+                UNSAFE.putLong(slot, key);
+                size++;
+                return slot;
+            }
+        }
+    }
+
+    private void allocateTable(long capacity) {
+        long bytes = capacity * SLOT_SIZE;
+        this.address = NativeMemoryTracker.allocate(TRACKER_TAG, bytes);
+        UNSAFE.setMemory(address, bytes, (byte) 0);
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.threshold = (long) (capacity * LOAD_FACTOR);
+    }
+
+    private void rehash(long newCapacity) {
+        long oldAddress = address;
+        long oldBytes = capacity * SLOT_SIZE;
+        long oldEnd = oldAddress + oldBytes;
+        allocateTable(newCapacity);
+        for (long slot = oldAddress; slot < oldEnd; slot += SLOT_SIZE) {
+            long k = UNSAFE.getLong(slot);
+            if (k != 0L) {
+                for (long i = mix(k) & mask; ; i = (i + 1) & mask) {
+                    long target = slotAddress(i);
+                    if (UNSAFE.getLong(target) == 0L) {
+                        UNSAFE.putLong(target, k);
+                        UNSAFE.putLong(target + 8, UNSAFE.getLong(slot + 8));
+                        break;
+                    }
+                }
+            }
+        }
+        NativeMemoryTracker.free(TRACKER_TAG, oldAddress, oldBytes);
+    }
+
+    public static void main(String[] args) {
+        // 按job id统计任务执行次数
+        try (OffHeapLongLongMap counters = new OffHeapLongLongMap()) {
+            long start = System.nanoTime();
+            for (int i = 0; i < 50000000; i++) {
+                counters.addTo(758 + i % 5000000, 1);
+            }
+            out.println("addTo cost: " + (System.nanoTime() - start) / 1000000 + "ms, size: " + counters.size()
+                    + ", capacity: " + counters.capacity() + ", job 758: " + counters.get(758, 0));
+            long[] total = new long[1];
+            counters.forEach((jobId, count) -> total[0] += count);
+            out.println("total: " + total[0]);
+        }
+    }
+}
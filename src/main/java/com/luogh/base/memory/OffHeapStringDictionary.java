@@ -0,0 +1,296 @@
+package com.luogh.base.memory;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static java.lang.System.out;
+
+/**
+ * 只追加的堆外字符串字典，把重复出现的字符串映射成从0开始的连续int id。
+ *
+ * 字符串的UTF-8字节顺序写入1MB的direct ByteBuffer slab(通过NativeMemoryTracker分配)，超过slab大小的字符串单独占一个buffer；
+ * 堆上只保留每个id的位置(long: slab下标 << 32 | slab内偏移)、长度和哈希值，以及一个int开放寻址表。
+ * 查找直接对UTF-8字节计算哈希并与slab中的字节比较，不创建String；bytes(id)返回slab的只读视图，不复制数据。
+ * 写入(add)不是线程安全的，写入完成后可以被多个线程并发读取；close()之后的访问抛出IllegalStateException。
+ * @author luogh
+ */
+public class OffHeapStringDictionary implements Closeable {
+    public static final int DEFAULT_SLAB_SIZE = 1 << 20; //1MB
+    private static final String TRACKER_TAG = "OffHeapStringDictionary";
+
+    private final int slabSize;
+    private final List<ByteBuffer> slabs = new ArrayList<>();
+    private ByteBuffer current;
+    private int currentIndex;
+    private long[] locations = new long[1024];
+    private int[] lengths = new int[1024];
+    private int[] hashes = new int[1024];
+    private int[] table = new int[2048]; // id + 1，0表示空
+    private int size;
+    private boolean closed;
+
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+    private ByteBuffer scratch = ByteBuffer.allocate(256);
+
+    public OffHeapStringDictionary() {
+        this(DEFAULT_SLAB_SIZE);
+    }
+
+    public OffHeapStringDictionary(int slabSize) {
+        if (slabSize < 1024) {
+            throw new IllegalArgumentException("slabSize must be >= 1024: " + slabSize);
+        }
+        this.slabSize = slabSize;
+    }
+
+    /**
+     * 字典中字符串的个数，id的范围是[0, size)
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return 字符串的id，不存在时先加入字典
+     */
+    public int add(byte[] utf8, int off, int len) {
+        checkOpen();
+        int hash = hash(utf8, off, len);
+        int slot = find(hash, utf8, off, len);
+        if (table[slot] != 0) {
+            return table[slot] - 1;
+        }
+        return insert(slot, hash, utf8, off, len);
+    }
+
+    public int add(byte[] utf8) {
+        return add(utf8, 0, utf8.length);
+    }
+
+    /**
+     * 把字符编码到内部复用的缓冲区后再查找，不创建中间的String和byte[]
+     */
+    public int add(CharSequence text) {
+        ByteBuffer utf8 = encode(text);
+        return add(utf8.array(), 0, utf8.position());
+    }
+
+    /**
+     * @return 字符串的id，不存在时返回-1
+     */
+    public int idOf(byte[] utf8, int off, int len) {
+        checkOpen();
+        int slot = find(hash(utf8, off, len), utf8, off, len);
+        return table[slot] - 1;
+    }
+
+    public int idOf(CharSequence text) {
+        ByteBuffer utf8 = encode(text);
+        return idOf(utf8.array(), 0, utf8.position());
+    }
+
+    /**
+     * @return id对应的UTF-8字节，是slab的只读视图，字典close()之后不能再访问
+     */
+    public ByteBuffer bytes(int id) {
+        checkId(id);
+        long location = locations[id];
+        ByteBuffer view = slabs.get((int) (location >>> 32)).duplicate();
+        int offset = (int) location;
+        view.limit(offset + lengths[id]).position(offset);
+        return view.slice().asReadOnlyBuffer();
+    }
+
+    public int length(int id) {
+        checkId(id);
+        return lengths[id];
+    }
+
+    /**
+     * 输出或者调试时使用，会创建新的String
+     */
+    public String toString(int id) {
+        return StandardCharsets.UTF_8.decode(bytes(id)).toString();
+    }
+
+    /**
+     * 释放所有slab，之前通过bytes()得到的视图都失效
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (ByteBuffer slab : slabs) {
+            NativeMemoryTracker.freeDirect(slab);
+        }
+        slabs.clear();
+        current = null;
+        size = 0;
+        Arrays.fill(table, 0);
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("dictionary closed");
+        }
+    }
+
+    private void checkId(int id) {
+        checkOpen();
+        if (id < 0 || id >= size) {
+            throw new IndexOutOfBoundsException("id " + id + " not in [0, " + size + ")");
+        }
+    }
+
+    private int find(int hash, byte[] utf8, int off, int len) {
+        int mask = table.length - 1;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            int entry = table[slot];
+            if (entry == 0) {
+                return slot;
+            }
+            int id = entry - 1;
+            if (hashes[id] == hash && lengths[id] == len && equalsAt(id, utf8, off, len)) {
+                return slot;
+            }
+        }
+    }
+
+    private boolean equalsAt(int id, byte[] utf8, int off, int len) {
+        long location = locations[id];
+        ByteBuffer slab = slabs.get((int) (location >>> 32));
+        int offset = (int) location;
+        for (int i = 0; i < len; i++) {
+            if (slab.get(offset + i) != utf8[off + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int insert(int slot, int hash, byte[] utf8, int off, int len) {
+        if (size == locations.length) {
+            locations = Arrays.copyOf(locations, size << 1);
+            lengths = Arrays.copyOf(lengths, size << 1);
+            hashes = Arrays.copyOf(hashes, size << 1);
+        }
+        int id = size++;
+        locations[id] = store(utf8, off, len);
+        lengths[id] = len;
+        hashes[id] = hash;
+        table[slot] = id + 1;
+        if (size * 2 > table.length) {
+            rehash();
+        }
+        return id;
+    }
+
+    /**
+     * 把字节写入slab，返回位置
+     */
+    private long store(byte[] utf8, int off, int len) {
+        if (len > slabSize) {
+            // 超长的字符串单独占用一个buffer，后面的短字符串继续写入current
+            ByteBuffer own = NativeMemoryTracker.allocateDirect(TRACKER_TAG, len);
+            own.put(utf8, off, len);
+            slabs.add(own);
+            return (long) (slabs.size() - 1) << 32;
+        }
+        if (current == null || current.remaining() < len) {
+            current = NativeMemoryTracker.allocateDirect(TRACKER_TAG, slabSize);
+            slabs.add(current);
+            currentIndex = slabs.size() - 1;
+        }
+        int position = current.position();
+        current.put(utf8, off, len);
+        return (long) currentIndex << 32 | position;
+    }
+
+    private void rehash() {
+        int[] grown = new int[table.length << 1];
+        int mask = grown.length - 1;
+        for (int id = 0; id < size; id++) {
+            int slot = hashes[id] & mask;
+            while (grown[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            grown[slot] = id + 1;
+        }
+        table = grown;
+    }
+
+    private ByteBuffer encode(CharSequence text) {
+        int maxBytes = (int) (text.length() * (double) encoder.maxBytesPerChar());
+        if (scratch.capacity() < maxBytes) {
+            scratch = ByteBuffer.allocate(Math.max(maxBytes, scratch.capacity() << 1));
+        }
+        scratch.clear();
+        encoder.reset();
+        CoderResult result = encoder.encode(CharBuffer.wrap(text), scratch, true);
+        if (result.isError()) {
+            throw new IllegalArgumentException("can not encode " + text + " as UTF-8: " + result);
+        }
+        encoder.flush(scratch);
+        return scratch;
+    }
+
+    /**
+     * murmur3 32位哈希，按4字节一组读取
+     */
+    static int hash(byte[] data, int off, int len) {
+        int h = 0x9747b28c;
+        int end = off + (len & ~3);
+        for (int i = off; i < end; i += 4) {
+            int k = (data[i] & 0xff) | (data[i + 1] & 0xff) << 8 | (data[i + 2] & 0xff) << 16 | data[i + 3] << 24;
+            k *= 0xcc9e2d51;
+            k = Integer.rotateLeft(k, 15);
+            k *= 0x1b873593;
+            h ^= k;
+            h = Integer.rotateLeft(h, 13);
+            h = h * 5 + 0xe6546b64;
+        }
+        // 剩余的1~3字节，等价于murmur3中逐级fall through的switch
+        int tail = len & 3;
+        if (tail > 0) {
+            int k = data[end] & 0xff;
+            if (tail > 1) {
+                k ^= (data[end + 1] & 0xff) << 8;
+            }
+            if (tail > 2) {
+                k ^= (data[end + 2] & 0xff) << 16;
+            }
+            k *= 0xcc9e2d51;
+            k = Integer.rotateLeft(k, 15);
+            k *= 0x1b873593;
+            h ^= k;
+        }
+        h ^= len;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    public static void main(String[] args) {
+        String[] emails = {"luogh@talkingdata.com", "test@talkingdata.com", "admin@talkingdata.com"};
+        String[] taskTypes = {"中间结果合并筛选", "过滤刷量设备", "人群画像"};
+        try (OffHeapStringDictionary dictionary = new OffHeapStringDictionary()) {
+            int[] rows = new int[1000000];
+            for (int i = 0; i < rows.length; i++) {
+                rows[i] = dictionary.add(i % 2 == 0 ? emails[i % emails.length] : taskTypes[i % taskTypes.length]);
+            }
+            out.println("rows: " + rows.length + ", distinct: " + dictionary.size());
+            for (int id = 0; id < dictionary.size(); id++) {
+                out.println(id + " -> " + dictionary.toString(id) + " (" + dictionary.length(id) + " bytes)");
+            }
+        }
+    }
+}
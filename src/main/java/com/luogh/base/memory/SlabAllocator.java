@@ -0,0 +1,429 @@
+package com.luogh.base.memory;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.luogh.base.UnsafeAccess.UNSAFE;
+import static java.lang.System.out;
+
+/**
+ * 基于Unsafe.allocateMemory的堆外slab分配器。
+ *
+ * 内存按2的幂分成16B ~ 64KB共13个size class，每个size class从1MB的slab中切分固定大小的块:
+ *      1.线程缓存: 每个线程每个size class缓存若干空闲块，分配和释放都不需要同步
+ *      2.中心空闲链表: 线程缓存空了或者满了时，按批(BATCH个)和中心链表交换，中心链表加锁
+ *      3.超过64KB的分配直接调用allocateMemory
+ *      4.Arena: 在独占的slab上顺序分配，不支持单独释放，用完后一次性整体释放
+ *
+ * free需要传入分配时的大小(sized free)，分配器不在块前保存任何头信息。
+ * 线程退出前应当调用releaseThreadCache()把缓存的空闲块还给中心链表，否则这些块只能在close()时回收。
+ * close()释放slab、大块内存和所有Arena，之后allocate/free/newArena都抛出IllegalStateException；
+ * close()不能和其它线程上的分配、释放并发执行。
+ * 向操作系统申请的内存都经过NativeMemoryTracker，tag为SlabAllocator。
+ * @author luogh
+ */
+public final class SlabAllocator implements Closeable {
+    public static final int DEFAULT_SLAB_SIZE = 1 << 20; //1MB
+    static final int MIN_SHIFT = 4;
+    static final int MAX_SHIFT = 16;
+    static final int CLASSES = MAX_SHIFT - MIN_SHIFT + 1;
+    static final int BATCH = 32;
+    static final String TRACKER_TAG = "SlabAllocator";
+
+    private final int slabSize;
+    private final CentralFreeList[] centrals = new CentralFreeList[CLASSES];
+    private final ThreadLocal<ThreadCache> threadCache = ThreadLocal.withInitial(this::newThreadCache);
+    private final List<ThreadCache> caches = new CopyOnWriteArrayList<>();
+    private final List<Long> slabs = new ArrayList<>();
+    /**
+     * 超过64KB的大块，地址 -> 大小，close()时释放
+     */
+    private final Map<Long, Long> hugeBlocks = new ConcurrentHashMap<>();
+    private final Set<Arena> arenas = ConcurrentHashMap.newKeySet();
+    private final AtomicLong reservedBytes = new AtomicLong();
+    private final AtomicLong hugeBytes = new AtomicLong();
+    private final AtomicLong arenaBytes = new AtomicLong();
+    private final AtomicLong peakBytes = new AtomicLong();
+    private volatile boolean closed;
+
+    public SlabAllocator() {
+        this(DEFAULT_SLAB_SIZE);
+    }
+
+    public SlabAllocator(int slabSize) {
+        if (Integer.bitCount(slabSize) != 1 || slabSize < (1 << MAX_SHIFT)) {
+            throw new IllegalArgumentException("slabSize must be a power of two >= 64KB: " + slabSize);
+        }
+        this.slabSize = slabSize;
+        for (int i = 0; i < CLASSES; i++) {
+            centrals[i] = new CentralFreeList(1 << (i + MIN_SHIFT));
+        }
+    }
+
+    /**
+     * @return 至少size字节、16字节对齐的内存地址
+     */
+    public long allocate(long size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("size must be positive: " + size);
+        }
+        checkOpen();
+        if (size > (1 << MAX_SHIFT)) {
+            long address = allocateRaw(size);
+            hugeBlocks.put(address, size);
+            hugeBytes.addAndGet(size);
+            reservedBytes.addAndGet(size);
+            updatePeak();
+            return address;
+        }
+        return threadCache.get().allocate(sizeClass(size));
+    }
+
+    /**
+     * @param size 必须与allocate时传入的大小一致
+     */
+    public void free(long address, long size) {
+        checkOpen();
+        if (size > (1 << MAX_SHIFT)) {
+            if (hugeBlocks.remove(address) == null) {
+                throw new IllegalArgumentException("address " + address + " was not allocated as a huge block");
+            }
+            freeRaw(address, size);
+            hugeBytes.addAndGet(-size);
+            reservedBytes.addAndGet(-size);
+            return;
+        }
+        threadCache.get().free(sizeClass(size), address);
+    }
+
+    public Arena newArena() {
+        checkOpen();
+        Arena arena = new Arena();
+        arenas.add(arena);
+        return arena;
+    }
+
+    /**
+     * 把当前线程缓存的空闲块全部还给中心链表
+     */
+    public void releaseThreadCache() {
+        ThreadCache cache = threadCache.get();
+        for (int i = 0; i < CLASSES; i++) {
+            cache.drain(i, cache.counts[i]);
+        }
+    }
+
+    public Stats stats() {
+        return new Stats(liveBytes(), updatePeak(), reservedBytes.get());
+    }
+
+    /**
+     * 释放所有slab、大块内存和Arena，之前分配的所有地址都失效。
+     * 中心链表和线程缓存中的空闲块一起清空，关闭之后的allocate/free抛出IllegalStateException，不会再用到已释放的内存
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (CentralFreeList central : centrals) {
+            central.clear();
+        }
+        for (ThreadCache cache : caches) {
+            cache.clear();
+        }
+        caches.clear();
+        for (Arena arena : arenas) {
+            arena.release();
+        }
+        arenas.clear();
+        for (Map.Entry<Long, Long> block : hugeBlocks.entrySet()) {
+            freeRaw(block.getKey(), block.getValue());
+            hugeBytes.addAndGet(-block.getValue());
+            reservedBytes.addAndGet(-block.getValue());
+        }
+        hugeBlocks.clear();
+        for (long slab : slabs) {
+            freeRaw(slab, slabSize);
+            reservedBytes.addAndGet(-slabSize);
+        }
+        slabs.clear();
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    static int sizeClass(long size) {
+        int shift = 64 - Long.numberOfLeadingZeros(size - 1);
+        return Math.max(shift, MIN_SHIFT) - MIN_SHIFT;
+    }
+
+    long allocateRaw(long size) {
+        return NativeMemoryTracker.allocate(TRACKER_TAG, size);
+    }
+
+    void freeRaw(long address, long size) {
+        NativeMemoryTracker.free(TRACKER_TAG, address, size);
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("allocator closed");
+        }
+    }
+
+    private synchronized long newSlab() {
+        checkOpen();
+        long slab = allocateRaw(slabSize);
+        slabs.add(slab);
+        reservedBytes.addAndGet(slabSize);
+        return slab;
+    }
+
+    private long liveBytes() {
+        long live = hugeBytes.get() + arenaBytes.get();
+        for (ThreadCache cache : caches) {
+            live += cache.allocatedBytes - cache.freedBytes;
+        }
+        return live;
+    }
+
+    private long updatePeak() {
+        long live = liveBytes();
+        long peak;
+        while (live > (peak = peakBytes.get())) {
+            if (peakBytes.compareAndSet(peak, live)) {
+                return live;
+            }
+        }
+        return peak;
+    }
+
+    private ThreadCache newThreadCache() {
+        ThreadCache cache = new ThreadCache();
+        caches.add(cache);
+        return cache;
+    }
+
+    /**
+     * 某个size class的中心空闲链表，以及正在切分的slab
+     */
+    private final class CentralFreeList {
+        final int blockSize;
+        long[] free = new long[BATCH * 4];
+        int count;
+        long slabCursor;
+        long slabEnd;
+
+        CentralFreeList(int blockSize) {
+            this.blockSize = blockSize;
+        }
+
+        synchronized void refill(long[] dst, int offset, int n) {
+            for (int i = 0; i < n; i++) {
+                if (count > 0) {
+                    dst[offset + i] = free[--count];
+                } else {
+                    if (slabCursor == slabEnd) {
+                        slabCursor = newSlab();
+                        slabEnd = slabCursor + slabSize;
+                    }
+                    dst[offset + i] = slabCursor;
+                    slabCursor += blockSize;
+                }
+            }
+        }
+
+        synchronized void clear() {
+            count = 0;
+            slabCursor = slabEnd = 0;
+        }
+
+        synchronized void release(long[] src, int offset, int n) {
+            if (count + n > free.length) {
+                free = Arrays.copyOf(free, Math.max(free.length << 1, count + n));
+            }
+            System.arraycopy(src, offset, free, count, n);
+            count += n;
+        }
+    }
+
+    /**
+     * 线程私有的空闲块缓存，每个size class最多缓存2 * BATCH个块。
+     * 统计字段只由所属线程写，不使用volatile避免分配路径上的内存屏障，其它线程读取时允许有短暂的延迟
+     */
+    private final class ThreadCache {
+        final long[][] blocks = new long[CLASSES][BATCH * 2];
+        final int[] counts = new int[CLASSES];
+        long allocatedBytes;
+        long freedBytes;
+
+        long allocate(int sizeClass) {
+            if (counts[sizeClass] == 0) {
+                centrals[sizeClass].refill(blocks[sizeClass], 0, BATCH);
+                counts[sizeClass] = BATCH;
+                allocatedBytes += 1 << (sizeClass + MIN_SHIFT);
+                updatePeak();
+            } else {
+                allocatedBytes += 1 << (sizeClass + MIN_SHIFT);
+            }
+            return blocks[sizeClass][--counts[sizeClass]];
+        }
+
+        void free(int sizeClass, long address) {
+            if (counts[sizeClass] == blocks[sizeClass].length) {
+                drain(sizeClass, BATCH);
+            }
+            blocks[sizeClass][counts[sizeClass]++] = address;
+            freedBytes += 1 << (sizeClass + MIN_SHIFT);
+        }
+
+        /**
+         * 丢弃缓存的块，只在close()时调用
+         */
+        void clear() {
+            Arrays.fill(counts, 0);
+            allocatedBytes = freedBytes = 0;
+        }
+
+        void drain(int sizeClass, int n) {
+            int remaining = counts[sizeClass] - n;
+            centrals[sizeClass].release(blocks[sizeClass], remaining, n);
+            counts[sizeClass] = remaining;
+        }
+    }
+
+    /**
+     * 顺序分配、整体释放的内存区域，只能由一个线程使用
+     */
+    public final class Arena implements Closeable {
+        private final List<long[]> chunks = new ArrayList<>();
+        private long cursor;
+        private long end;
+        private long used;
+
+        private Arena() {
+        }
+
+        /**
+         * @return 8字节对齐的地址，在release()之前一直有效
+         */
+        public long allocate(long size) {
+            checkOpen();
+            long aligned = (size + 7) & ~7L;
+            if (cursor + aligned > end) {
+                long chunkSize = Math.max(slabSize, aligned);
+                long chunk = allocateRaw(chunkSize);
+                chunks.add(new long[]{chunk, chunkSize});
+                reservedBytes.addAndGet(chunkSize);
+                cursor = chunk;
+                end = chunk + chunkSize;
+            }
+            long address = cursor;
+            cursor += aligned;
+            used += aligned;
+            arenaBytes.addAndGet(aligned);
+            return address;
+        }
+
+        public long usedBytes() {
+            return used;
+        }
+
+        /**
+         * 一次性释放这个Arena分配的所有内存
+         */
+        public void release() {
+            for (long[] chunk : chunks) {
+                freeRaw(chunk[0], chunk[1]);
+                reservedBytes.addAndGet(-chunk[1]);
+            }
+            chunks.clear();
+            arenaBytes.addAndGet(-used);
+            used = 0;
+            cursor = end = 0;
+        }
+
+        @Override
+        public void close() {
+            release();
+            arenas.remove(this);
+        }
+    }
+
+    public static final class Stats {
+        private final long liveBytes;
+        private final long peakBytes;
+        private final long reservedBytes;
+
+        Stats(long liveBytes, long peakBytes, long reservedBytes) {
+            this.liveBytes = liveBytes;
+            this.peakBytes = peakBytes;
+            this.reservedBytes = reservedBytes;
+        }
+
+        /**
+         * 已分配且未释放的字节数，按size class的块大小计算
+         */
+        public long liveBytes() {
+            return liveBytes;
+        }
+
+        public long peakBytes() {
+            return peakBytes;
+        }
+
+        /**
+         * 向操作系统申请的字节数
+         */
+        public long reservedBytes() {
+            return reservedBytes;
+        }
+
+        /**
+         * 已申请但没有被使用的比例，包括缓存中的空闲块和slab中尚未切分的部分
+         */
+        public double fragmentation() {
+            return reservedBytes == 0 ? 0.0 : 1.0 - (double) liveBytes / reservedBytes;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("live=%d peak=%d reserved=%d fragmentation=%.2f%%",
+                    liveBytes, peakBytes, reservedBytes, fragmentation() * 100);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        SlabAllocator allocator = new SlabAllocator();
+        long[] addresses = new long[1000000];
+        long start = System.nanoTime();
+        for (int i = 0; i < addresses.length; i++) {
+            addresses[i] = allocator.allocate(24 + i % 100);
+            UNSAFE.putLong(addresses[i], i);
+        }
+        out.println("allocate cost: " + (System.nanoTime() - start) / 1000000 + "ms, " + allocator.stats());
+        for (int i = 0; i < addresses.length; i += 2) {
+            allocator.free(addresses[i], 24 + i % 100);
+        }
+        out.println("after free half: " + allocator.stats());
+
+        try (Arena arena = allocator.newArena()) {
+            for (int i = 0; i < 100000; i++) {
+                arena.allocate(100);
+            }
+            out.println("with arena: " + allocator.stats());
+        }
+        out.println("arena released: " + allocator.stats());
+        allocator.close();
+    }
+}
@@ -3,6 +3,7 @@ package com.luogh
 import java.io.{FileOutputStream, PrintWriter}
 
 import com.luogh.DDCStat.TaskStatus.TaskStatus
+import com.luogh.base.memory.{OffHeapLongLongMap, OffHeapStringDictionary}
 import org.json4s._
 import org.json4s.jackson.JsonMethods._
 
@@ -65,22 +66,21 @@ object DDCStat {
   def outputStatistic(list: Iterator[DDCStat.RowData], fileName: String = "ddc_stat_20161015_statistic"): Unit = {
     val printer = new PrintWriter(new FileOutputStream(fileName))
     printer.println("邮箱\t任务类型\t执行次数")
-    val set = list.filter(_.status == TaskStatus.SUCCEEDED).map {
-      data =>
-        (data.email, data.taskType)
-    }.foldLeft(new collection.mutable.HashMap[(String, String), Int]()) {
-      (statSet, next) =>
-        if (statSet.contains(next)) {
-          statSet.put(next, statSet.get(next).get + 1)
-        } else {
-          statSet.put(next, 1)
-        }
-        statSet
-    }
-    set.foreach {
-      case ((email, taskType), taskCount) =>
-        printer.println(s"$email\t$taskType\t$taskCount")
-      case _ =>
+    // 邮箱和任务类型大量重复，转成字典id后按(emailId << 32 | taskTypeId)在堆外计数
+    val dictionary = new OffHeapStringDictionary()
+    val counters = new OffHeapLongLongMap()
+    try {
+      list.filter(_.status == TaskStatus.SUCCEEDED).foreach {
+        data =>
+          counters.addTo(dictionary.add(data.email).toLong << 32 | dictionary.add(data.taskType), 1)
+      }
+      counters.forEach(new OffHeapLongLongMap.LongLongProcedure {
+        override def apply(key: Long, taskCount: Long): Unit =
+          printer.println(s"${dictionary.toString((key >>> 32).toInt)}\t${dictionary.toString(key.toInt)}\t$taskCount")
+      })
+    } finally {
+      counters.close()
+      dictionary.close()
     }
     printer.flush()
     printer.close()
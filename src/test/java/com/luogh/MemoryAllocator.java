@@ -1,10 +1,6 @@
 package com.luogh;
 
-import sun.misc.Unsafe;
-
-import java.lang.reflect.Field;
-import java.util.ArrayList;
-import java.util.List;
+import com.luogh.base.memory.NativeMemoryTracker;
 
 /**
  * @author luogh
@@ -12,22 +8,15 @@ import java.util.List;
  */
 public class MemoryAllocator {
 
-    private static Unsafe _UNSAFE;
-
-    static {
+    public static void main(String[] args) {
+        long addr = NativeMemoryTracker.allocate("MemoryAllocator", 100l);
         try {
-            Field cause1 = Unsafe.class.getDeclaredField("theUnsafe");
-            cause1.setAccessible(true);
-            _UNSAFE = (Unsafe)cause1.get((Object)null);
-        } catch (Throwable var3) {
-            _UNSAFE = null;
+            System.out.println("addr:"+addr);
+            System.out.println("int max:"+Math.pow(2,32)*8);
+            System.out.println("live:"+NativeMemoryTracker.get().getLiveBytesByTag());
+        } finally {
+            NativeMemoryTracker.free("MemoryAllocator", addr, 100l);
         }
-    }
-
-
-    public static void main(String[] args) {
-        long addr = _UNSAFE.allocateMemory(100l);
-        System.out.println("addr:"+addr);
-        System.out.println("int max:"+Math.pow(2,32)*8);
+        System.out.println("after free:"+NativeMemoryTracker.get().getLiveBytesByTag());
     }
 }
@@ -0,0 +1,69 @@
+package com.luogh;
+
+import com.luogh.base.MemoryMappedFile;
+
+import java.io.File;
+
+import static java.lang.System.out;
+
+/**
+ * 对比MemoryMappedFile逐字节读写和按页批量读写的吞吐量
+ * @author luogh
+ */
+public class MemoryMappedFileBenchmark {
+    private static final int count = 256 * 1024 * 1024; //256MB
+    private static final int rounds = 5;
+
+    public static void main(String[] args) throws Exception {
+        File f = File.createTempFile("mmf_benchmark", ".dat");
+        f.deleteOnExit();
+        MemoryMappedFile file = new MemoryMappedFile(f, count);
+        MemoryMappedFile target = new MemoryMappedFile(File.createTempFile("mmf_benchmark_copy", ".dat"), count);
+        target.file().deleteOnExit();
+
+        for (int round = 0; round < rounds; round++) {
+            long start = System.nanoTime();
+            for (long i = 0; i < count; i++) {
+                file.putByte(i, (byte) 'A');
+            }
+            report("byte loop write", start);
+
+            start = System.nanoTime();
+            for (long i = 0; i < count; i += 8) {
+                file.putLong(i, 0x4141414141414141L);
+            }
+            report("putLong write", start);
+
+            start = System.nanoTime();
+            file.fill(0, count, (byte) 'A');
+            report("fill", start);
+
+            start = System.nanoTime();
+            long sum = 0;
+            for (long i = 0; i < count; i++) {
+                sum += file.getByte(i);
+            }
+            report("byte loop read", start);
+
+            start = System.nanoTime();
+            byte[] page = new byte[64 * 1024];
+            for (long i = 0; i < count; i += page.length) {
+                file.get(i, page, 0, page.length);
+                sum += page[0];
+            }
+            report("bulk read", start);
+
+            start = System.nanoTime();
+            target.copy(file, 0, 0, count);
+            report("copy", start);
+            out.println("checksum " + sum);
+        }
+        file.close();
+        target.close();
+    }
+
+    private static void report(String name, long start) {
+        long cost = System.nanoTime() - start;
+        out.println(String.format("%-16s %8.1f MB/s", name, count / 1048576.0 / (cost / 1e9)));
+    }
+}
@@ -0,0 +1,60 @@
+package com.luogh.test
+
+import com.luogh.base.EventLog
+import com.luogh.netty.BackpressureHandler
+import io.netty.buffer.{ByteBuf, Unpooled}
+import io.netty.channel.embedded.EmbeddedChannel
+import org.scalatest.{FunSuite, Matchers}
+
+/**
+  * @author luogh
+  */
+class BackpressureHandlerTestSuite extends FunSuite with Matchers {
+
+  private def channel(handler: BackpressureHandler): EmbeddedChannel = {
+    val ch = new EmbeddedChannel(handler)
+    // 先降低水位再降高水位，任何时刻低水位都不大于高水位
+    ch.config().setWriteBufferLowWaterMark(8)
+    ch.config().setWriteBufferHighWaterMark(16)
+    ch
+  }
+
+  private def releaseOutbound(ch: EmbeddedChannel): Int = {
+    Iterator.continually(ch.readOutbound().asInstanceOf[ByteBuf]).takeWhile(_ != null).map { buf =>
+      try buf.readableBytes() finally buf.release()
+    }.sum
+  }
+
+  test("pending bytes follow the outbound buffer") {
+    val handler = new BackpressureHandler(new EventLog("test", EventLog.Level.OFF, 1, 1, System.out))
+    val ch = channel(handler)
+    ch.write(Unpooled.wrappedBuffer(new Array[Byte](5)))
+    ch.write(Unpooled.wrappedBuffer(new Array[Byte](7)), ch.voidPromise())
+    handler.pendingBytes() should be (12)
+    ch.flush()
+    handler.pendingBytes() should be (0)
+    handler.maxPendingBytes() should be (12)
+    releaseOutbound(ch) should be (12)
+    ch.finish()
+  }
+
+  test("reading is suspended above the high water mark and resumed after the flush") {
+    val handler = new BackpressureHandler(new EventLog("test", EventLog.Level.OFF, 1, 1, System.out))
+    val ch = channel(handler)
+    ch.write(Unpooled.wrappedBuffer(new Array[Byte](32)))
+    ch.runPendingTasks()
+    ch.isWritable should be (false)
+    ch.config().isAutoRead should be (false)
+    handler.suspendCount() should be (1)
+
+    ch.flush()
+    ch.runPendingTasks()
+    ch.isWritable should be (true)
+    ch.config().isAutoRead should be (true)
+    handler.suspendCount() should be (1)
+    handler.maxPendingBytes() should be (32)
+    handler.toString should startWith ("maxPendingBytes=32, suspended 1 times")
+    releaseOutbound(ch) should be (32)
+    ch.finish()
+  }
+}
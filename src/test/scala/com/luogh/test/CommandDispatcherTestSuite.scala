@@ -0,0 +1,65 @@
+package com.luogh.test
+
+import com.luogh.netty.{Command, CommandDispatcher}
+import io.netty.buffer.{ByteBuf, Unpooled}
+import io.netty.channel.ChannelHandlerContext
+import io.netty.util.CharsetUtil
+import org.scalatest.{FunSuite, Matchers}
+
+/**
+  * @author luogh
+  */
+class CommandDispatcherTestSuite extends FunSuite with Matchers {
+
+  /** 记录命令名和参数 */
+  private class Recorder(name: String, calls: StringBuilder) extends Command {
+    override def execute(ctx: ChannelHandlerContext, args: ByteBuf): Unit =
+      calls.append(name).append('(').append(args.toString(CharsetUtil.UTF_8)).append(')')
+  }
+
+  private def fixture(): (CommandDispatcher, StringBuilder) = {
+    val calls = new StringBuilder
+    val dispatcher = new CommandDispatcher()
+      .register("QUERY TIME ORDER", new Recorder("time", calls))
+      .register("QUERY", new Recorder("query", calls))
+      .register("stats", new Recorder("stats", calls))
+    (dispatcher, calls)
+  }
+
+  private def dispatch(dispatcher: CommandDispatcher, calls: StringBuilder, frame: String): String = {
+    calls.clear()
+    val buf = Unpooled.copiedBuffer(frame, CharsetUtil.UTF_8)
+    try {
+      if (dispatcher.dispatch(null, buf)) calls.toString else {
+        buf.readerIndex() should be (0)
+        "none"
+      }
+    } finally buf.release()
+  }
+
+  test("the longest name ending at a space or the frame end wins") {
+    val (dispatcher, calls) = fixture()
+    dispatch(dispatcher, calls, "QUERY TIME ORDER") should be ("time()")
+    dispatch(dispatcher, calls, "QUERY TIME ORDER now") should be ("time(now)")
+    dispatch(dispatcher, calls, "QUERY TIME") should be ("query(TIME)")
+    dispatch(dispatcher, calls, "QUERY TIME ORDERS") should be ("query(TIME ORDERS)")
+    dispatch(dispatcher, calls, "QUERY") should be ("query()")
+    dispatch(dispatcher, calls, "QUERY ") should be ("query()")
+    dispatch(dispatcher, calls, "QUERYX") should be ("none")
+    dispatch(dispatcher, calls, "") should be ("none")
+  }
+
+  test("names match case-insensitively and arguments keep their bytes") {
+    val (dispatcher, calls) = fixture()
+    dispatch(dispatcher, calls, "query time order") should be ("time()")
+    dispatch(dispatcher, calls, "STATS 连接 Abc") should be ("stats(连接 Abc)")
+    dispatch(dispatcher, calls, "统计") should be ("none")
+  }
+
+  test("invalid registrations are rejected") {
+    val (dispatcher, calls) = fixture()
+    intercept[IllegalArgumentException](dispatcher.register("Stats", new Recorder("again", calls)))
+    intercept[IllegalArgumentException](dispatcher.register("", new Recorder("empty", calls)))
+    intercept[IllegalArgumentException](dispatcher.register("统计", new Recorder("cjk", calls)))
+  }
+}
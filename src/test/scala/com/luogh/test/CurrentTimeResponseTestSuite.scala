@@ -0,0 +1,61 @@
+package com.luogh.test
+
+import java.text.SimpleDateFormat
+import java.util.Locale
+
+import com.luogh.netty.CurrentTimeResponse
+import io.netty.buffer.ByteBuf
+import io.netty.util.CharsetUtil
+import org.scalatest.{FunSuite, Matchers}
+
+/**
+  * @author luogh
+  */
+class CurrentTimeResponseTestSuite extends FunSuite with Matchers {
+
+  test("views share one encoded buffer but not their indexes") {
+    val response = new CurrentTimeResponse(60000)
+    try {
+      val a = response.retainedView()
+      val b = response.retainedView()
+      a.unwrap() should be theSameInstanceAs b.unwrap()
+      a.refCnt() should be (3)
+
+      val text = a.toString(CharsetUtil.UTF_8)
+      // Date.toString()的格式
+      new SimpleDateFormat("EEE MMM dd HH:mm:ss zzz yyyy", Locale.US).parse(text) should not be null
+      a.skipBytes(a.readableBytes())
+      b.toString(CharsetUtil.UTF_8) should be (text)
+
+      a.release()
+      b.release()
+      a.refCnt() should be (1)
+    } finally {
+      response.close()
+    }
+  }
+
+  test("a view outlives the refresh that replaces its buffer") {
+    val response = new CurrentTimeResponse(20)
+    try {
+      val held = response.retainedView()
+      val text = held.toString(CharsetUtil.UTF_8)
+      val deadline = System.nanoTime() + 10000000000L
+      var latest: ByteBuf = response.retainedView()
+      while ((latest.unwrap() eq held.unwrap()) && System.nanoTime() < deadline) {
+        latest.release()
+        Thread.sleep(5)
+        latest = response.retainedView()
+      }
+      latest.unwrap() should not be theSameInstanceAs (held.unwrap())
+      latest.release()
+
+      // 定时器已经释放了自己的引用，只剩held的
+      held.refCnt() should be (1)
+      held.toString(CharsetUtil.UTF_8) should be (text)
+      held.release() should be (true)
+    } finally {
+      response.close()
+    }
+  }
+}
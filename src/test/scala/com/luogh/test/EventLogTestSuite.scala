@@ -0,0 +1,84 @@
+package com.luogh.test
+
+import java.io.{ByteArrayOutputStream, PrintStream}
+import java.util.concurrent.atomic.AtomicInteger
+
+import com.luogh.base.EventLog
+import org.scalatest.{FunSuite, Matchers}
+
+/**
+  * @author luogh
+  */
+class EventLogTestSuite extends FunSuite with Matchers {
+
+  private def lines(out: ByteArrayOutputStream): Seq[String] =
+    new String(out.toByteArray, "UTF-8").split("\n").toSeq.filter(_.nonEmpty)
+
+  test("placeholders are formatted on the writer thread") {
+    val out = new ByteArrayOutputStream()
+    val log = new EventLog("test", EventLog.Level.INFO, 1000, 1024, new PrintStream(out, false, "UTF-8"))
+    log.isDebugEnabled should be (false)
+    log.log(EventLog.Level.DEBUG, "hidden {}", "x", null, null) should be (false)
+    log.info("user {} from {}", "alice", "127.0.0.1")
+    log.warn("{} pending, {} left", Int.box(3), "{}")
+    log.log(EventLog.Level.ERROR, "only {} of {}", "a", "b", "c") should be (true)
+    log.info("no placeholder", "ignored")
+    log.close()
+
+    val written = lines(out)
+    written.size should be (4)
+    written(0) should include ("INFO  [")
+    written(0) should endWith ("] user alice from 127.0.0.1")
+    // 参数中的{}不再作为占位符
+    written(1) should endWith ("] 3 pending, {} left")
+    written(2) should endWith ("] only a of b")
+    written(3) should endWith ("] no placeholder")
+    log.droppedCount() should be (0)
+  }
+
+  test("records over the per-second limit are dropped and counted") {
+    val out = new ByteArrayOutputStream()
+    val log = new EventLog("test", EventLog.Level.DEBUG, 5, 1024, new PrintStream(out, false, "UTF-8"))
+    val accepted = (0 until 20).count(i => log.log(EventLog.Level.INFO, "event {}", Int.box(i), null, null))
+    log.close()
+
+    // 20条可能跨过一次秒边界，最多得到两个窗口的配额
+    accepted should (be >= 5 and be <= 10)
+    log.droppedCount() should be (20 - accepted)
+    lines(out).count(_.contains(" event ")) should be (accepted)
+  }
+
+  test("concurrent writers never get more than the per-second limit") {
+    val log = new EventLog("test", EventLog.Level.INFO, 100, 1 << 20, new PrintStream(new ByteArrayOutputStream()))
+    val accepted = new AtomicInteger()
+    val first = System.currentTimeMillis() / 1000
+    // 8个线程持续写1.5秒以上，跨过秒边界时切换窗口和计数不能有空档
+    val deadline = System.currentTimeMillis() + 1500
+    val writers = (0 until 8).map { _ =>
+      new Thread(new Runnable {
+        override def run(): Unit = while (System.currentTimeMillis() < deadline) {
+          if (log.log(EventLog.Level.INFO, "event", null, null, null)) {
+            accepted.incrementAndGet()
+          }
+        }
+      })
+    }
+    writers.foreach(_.start())
+    writers.foreach(_.join())
+    val last = System.currentTimeMillis() / 1000
+    log.close()
+
+    accepted.get() should be >= 200
+    accepted.get() should be <= 100 * (last - first + 1).toInt
+  }
+
+  test("off disables logging without a writer thread") {
+    val out = new ByteArrayOutputStream()
+    val log = new EventLog("test", EventLog.Level.OFF, 1000, 1024, new PrintStream(out))
+    log.isEnabled(EventLog.Level.ERROR) should be (false)
+    log.error("boom {} {}", "a", "b")
+    log.close()
+    out.size() should be (0)
+    log.droppedCount() should be (0)
+  }
+}
@@ -0,0 +1,185 @@
+package com.luogh.test
+
+import java.io.ByteArrayOutputStream
+import java.nio.file.{Files, Path}
+import java.util.zip.Inflater
+
+import com.luogh.netty.{CommandDispatcher, FileCommand, FrameCodec}
+import io.netty.buffer.{ByteBuf, Unpooled}
+import io.netty.channel.embedded.EmbeddedChannel
+import io.netty.channel.{ChannelHandlerContext, ChannelInboundHandlerAdapter, DefaultFileRegion, FileRegion}
+import io.netty.handler.codec.compression.JdkZlibEncoder
+import io.netty.util.CharsetUtil
+import org.scalatest.{FunSuite, Matchers}
+
+import scala.collection.mutable
+
+/**
+  * @author luogh
+  */
+class FileCommandTestSuite extends FunSuite with Matchers {
+
+  private val content: Array[Byte] = (0 until 100).map(i => ('a' + i % 26).toByte).toArray
+
+  private class Dispatch(commands: CommandDispatcher) extends ChannelInboundHandlerAdapter {
+    override def channelRead(ctx: ChannelHandlerContext, msg: Any): Unit = {
+      val frame = msg.asInstanceOf[ByteBuf]
+      try commands.dispatch(ctx, frame) finally frame.release()
+    }
+  }
+
+  def withRoot(body: Path => Unit): Unit = {
+    val root = Files.createTempDirectory("file-command")
+    val file = root.resolve("a.txt")
+    Files.write(file, content)
+    try body(root) finally {
+      Files.delete(file)
+      Files.delete(root)
+    }
+  }
+
+  private def channel(root: Path, compress: Boolean, maxInFlight: Int = 4): EmbeddedChannel = {
+    val ch = if (compress) new EmbeddedChannel(new JdkZlibEncoder()) else new EmbeddedChannel()
+    FrameCodec.install(ch.pipeline())
+    ch.pipeline().addLast(new Dispatch(
+      new CommandDispatcher().register("FILE", new FileCommand(root, 64, 16, maxInFlight))))
+    ch
+  }
+
+  private def frame(command: String): ByteBuf = {
+    val body = command.getBytes(CharsetUtil.UTF_8)
+    Unpooled.buffer().writeInt(body.length).writeBytes(body)
+  }
+
+  /** 发送请求，执行FileCommand提交的写任务，然后flush，返回写出的所有消息 */
+  private def request(ch: EmbeddedChannel, command: String): Seq[AnyRef] = {
+    ch.writeInbound(frame(command))
+    ch.runPendingTasks()
+    ch.flush()
+    ch.runPendingTasks()
+    Iterator.continually(ch.readOutbound().asInstanceOf[AnyRef]).takeWhile(_ != null).toList
+  }
+
+  private def frames(bytes: ByteBuf): Seq[String] = {
+    val result = mutable.ArrayBuffer.empty[String]
+    while (bytes.isReadable) {
+      result += bytes.readBytes(bytes.readInt()).toString(CharsetUtil.UTF_8)
+    }
+    result
+  }
+
+  private def concat(messages: Seq[AnyRef]): ByteBuf = {
+    val bytes = Unpooled.buffer()
+    messages.foreach { case buf: ByteBuf =>
+      bytes.writeBytes(buf)
+      buf.release()
+    }
+    bytes
+  }
+
+  test("a plain connection sends the range as a file region") {
+    withRoot { root =>
+      val ch = channel(root, compress = false)
+      val out = request(ch, "FILE a.txt 2 5")
+      val region = out.last.asInstanceOf[FileRegion]
+      region.position() should be (2)
+      region.count() should be (5)
+      // 真正写出时才打开文件
+      region.asInstanceOf[DefaultFileRegion].isOpen should be (false)
+      region.release()
+      // OK帧之后是只有长度字段的帧头，后面紧跟文件内容
+      val header = concat(out.init)
+      frames(header.readBytes(header.readableBytes() - FrameCodec.LENGTH_FIELD_LENGTH)) should be (Seq("OK 5"))
+      header.readInt() should be (5)
+      ch.finish()
+    }
+  }
+
+  test("bad requests get an error reply") {
+    withRoot { root =>
+      val ch = channel(root, compress = false)
+      Seq("FILE missing.txt", "FILE ../a.txt", "FILE", "FILE a.txt 101", "FILE a.txt x", "FILE a.txt 0 1 2", "FILE a.txt")
+        .map(command => frames(concat(request(ch, command))).mkString) should be (
+        Seq("ERR NOT FOUND", "ERR NOT FOUND", "ERR NOT FOUND", "ERR BAD RANGE", "ERR BAD RANGE", "ERR BAD RANGE",
+          "ERR TOO LARGE"))
+      ch.finish()
+    }
+  }
+
+  test("symlinks that leave the root are not served") {
+    withRoot { root =>
+      val outside = Files.createTempDirectory("file-command-outside")
+      val secret = Files.write(outside.resolve("secret.txt"), "secret".getBytes(CharsetUtil.UTF_8))
+      val links = Seq(
+        Files.createSymbolicLink(root.resolve("escape.txt"), secret),
+        Files.createSymbolicLink(root.resolve("escape"), outside),
+        Files.createSymbolicLink(root.resolve("inside.txt"), root.resolve("a.txt")))
+      try {
+        val ch = channel(root, compress = false)
+        Seq("FILE escape.txt", "FILE escape/secret.txt")
+          .map(command => frames(concat(request(ch, command))).mkString) should be (Seq("ERR NOT FOUND", "ERR NOT FOUND"))
+        // 指向root之内的链接照常发送
+        val region = request(ch, "FILE inside.txt 0 10").last.asInstanceOf[FileRegion]
+        region.count() should be (10)
+        region.release()
+        ch.finish()
+      } finally {
+        links.foreach(Files.delete)
+        Files.delete(secret)
+        Files.delete(outside)
+      }
+    }
+  }
+
+  test("a connection gets ERR BUSY while too many transfers are unwritten") {
+    withRoot { root =>
+      val ch = channel(root, compress = false, maxInFlight = 2)
+      ch.writeInbound(frame("FILE a.txt 0 5"), frame("FILE a.txt 5 5"), frame("FILE a.txt 10 5"))
+      ch.runPendingTasks()
+      // 前两个传输还在出站缓冲中没有写完，第三个和下一个请求都被拒绝
+      val out = request(ch, "FILE a.txt 15 5")
+      val regions = out.collect { case region: FileRegion => region }
+      regions.map(_.position()) should be (Seq(0L, 5L))
+      regions.foreach(_.release())
+
+      val bytes = concat(out.filterNot(_.isInstanceOf[FileRegion]))
+      val replies = mutable.ArrayBuffer.empty[String]
+      while (bytes.isReadable) {
+        replies += bytes.readBytes(bytes.readInt()).toString(CharsetUtil.UTF_8)
+        if (replies.last.startsWith("OK ")) {
+          bytes.readInt() should be (5) // 文件内容的长度字段
+        }
+      }
+      replies.sorted should be (Seq("ERR BUSY", "ERR BUSY", "OK 5", "OK 5"))
+
+      // 写完之后名额归还
+      val region = request(ch, "FILE a.txt 20 5").last.asInstanceOf[FileRegion]
+      region.position() should be (20)
+      region.release()
+      ch.finish()
+    }
+  }
+
+  test("a compressing pipeline falls back to mapped chunks") {
+    withRoot { root =>
+      val ch = channel(root, compress = true)
+      val compressed = concat(request(ch, "FILE a.txt 10 50"))
+      ch.pipeline().get("chunkedWriter") should not be null
+
+      val inflater = new Inflater()
+      inflater.setInput(compressed.array(), compressed.arrayOffset() + compressed.readerIndex(), compressed.readableBytes())
+      val plain = new ByteArrayOutputStream()
+      val buffer = new Array[Byte](256)
+      var n = inflater.inflate(buffer)
+      while (n > 0) {
+        plain.write(buffer, 0, n)
+        n = inflater.inflate(buffer)
+      }
+      inflater.end()
+
+      frames(Unpooled.wrappedBuffer(plain.toByteArray)) should be (
+        Seq("OK 50", new String(content, 10, 50, CharsetUtil.UTF_8)))
+      ch.finish()
+    }
+  }
+}
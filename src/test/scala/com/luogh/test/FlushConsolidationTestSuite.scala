@@ -0,0 +1,105 @@
+package com.luogh.test
+
+import com.luogh.netty.{FlushConsolidationHandler, WriteBatch}
+import io.netty.buffer.{ByteBuf, Unpooled}
+import io.netty.channel.embedded.EmbeddedChannel
+import io.netty.channel.{ChannelHandlerContext, ChannelInboundHandlerAdapter, ChannelOutboundHandlerAdapter}
+import io.netty.util.CharsetUtil
+import org.scalatest.{FunSuite, Matchers}
+
+/**
+  * @author luogh
+  */
+class FlushConsolidationTestSuite extends FunSuite with Matchers {
+
+  /** 放在head和被测handler之间，统计真正到达head的flush次数 */
+  private class FlushCounter extends ChannelOutboundHandlerAdapter {
+    var flushes = 0
+
+    override def flush(ctx: ChannelHandlerContext): Unit = {
+      flushes += 1
+      ctx.flush()
+    }
+  }
+
+  /** 读循环中每条消息都原样writeAndFlush回去 */
+  private class Echo extends ChannelInboundHandlerAdapter {
+    override def channelRead(ctx: ChannelHandlerContext, msg: Any): Unit = ctx.writeAndFlush(msg)
+  }
+
+  private def message(i: Int): ByteBuf = Unpooled.copiedBuffer("m" + i, CharsetUtil.UTF_8)
+
+  private def drainOutbound(ch: EmbeddedChannel): Seq[String] = {
+    Iterator.continually(ch.readOutbound().asInstanceOf[ByteBuf]).takeWhile(_ != null).map { buf =>
+      try buf.toString(CharsetUtil.UTF_8) finally buf.release()
+    }.toList
+  }
+
+  test("flushes inside a read loop are merged until read complete") {
+    val counter = new FlushCounter
+    val ch = new EmbeddedChannel(counter, new FlushConsolidationHandler(256, 64 * 1024, true), new Echo)
+    ch.writeInbound((0 until 5).map(message): _*)
+    counter.flushes should be (1)
+    drainOutbound(ch) should be ((0 until 5).map("m" + _))
+    ch.finish()
+  }
+
+  test("max-flushes and max-pending-bytes force an early flush") {
+    val byCount = new FlushCounter
+    val ch = new EmbeddedChannel(byCount, new FlushConsolidationHandler(2, 64 * 1024, true), new Echo)
+    ch.writeInbound((0 until 5).map(message): _*)
+    // 第2、4次flush立即执行，剩下的1次在channelReadComplete时执行
+    byCount.flushes should be (3)
+    drainOutbound(ch).size should be (5)
+    ch.finish()
+
+    val byBytes = new FlushCounter
+    val small = new EmbeddedChannel(byBytes, new FlushConsolidationHandler(256, 1, true), new Echo)
+    small.writeInbound((0 until 5).map(message): _*)
+    byBytes.flushes should be (5)
+    drainOutbound(small).size should be (5)
+    small.finish()
+  }
+
+  test("flushes outside a read loop are merged into one event loop task") {
+    val counter = new FlushCounter
+    val ch = new EmbeddedChannel(counter, new FlushConsolidationHandler(256, 64 * 1024, true))
+    (0 until 3).foreach(i => ch.writeAndFlush(message(i)))
+    counter.flushes should be (0)
+    ch.runPendingTasks()
+    counter.flushes should be (1)
+    drainOutbound(ch).size should be (3)
+
+    // close之前先flush积压的数据
+    ch.writeAndFlush(message(3))
+    ch.close()
+    counter.flushes should be (2)
+    drainOutbound(ch) should be (Seq("m3"))
+    ch.finish()
+  }
+
+  test("flushes outside a read loop are immediate when not consolidated") {
+    val counter = new FlushCounter
+    val ch = new EmbeddedChannel(counter, new FlushConsolidationHandler(256, 64 * 1024, false))
+    (0 until 3).foreach(i => ch.writeAndFlush(message(i)))
+    counter.flushes should be (3)
+    drainOutbound(ch).size should be (3)
+    ch.finish()
+  }
+
+  test("a write batch writes in order and flushes once") {
+    val counter = new FlushCounter
+    val ch = new EmbeddedChannel(counter)
+    val batch = new WriteBatch(ch)
+    batch.send().isSuccess should be (true)
+    (0 until 4).foreach(i => batch.add(message(i)))
+    batch.size() should be (4)
+    val future = batch.send()
+    batch.size() should be (0)
+    ch.runPendingTasks()
+    future.isSuccess should be (true)
+    counter.flushes should be (1)
+    drainOutbound(ch) should be ((0 until 4).map("m" + _))
+    ch.finish()
+  }
+}
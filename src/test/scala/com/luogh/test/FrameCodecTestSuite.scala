@@ -0,0 +1,109 @@
+package com.luogh.test
+
+import com.luogh.netty.{FrameCodec, PreEncodedFrame}
+import io.netty.buffer.{ByteBuf, ByteBufAllocator, Unpooled}
+import io.netty.channel.embedded.EmbeddedChannel
+import io.netty.handler.codec.TooLongFrameException
+import io.netty.util.CharsetUtil
+import org.scalatest.{FunSuite, Matchers}
+
+import scala.collection.mutable
+
+/**
+  * @author luogh
+  */
+class FrameCodecTestSuite extends FunSuite with Matchers {
+
+  private def channel(maxFrameLength: Int = FrameCodec.DEFAULT_MAX_FRAME_LENGTH): EmbeddedChannel = {
+    val ch = new EmbeddedChannel()
+    FrameCodec.install(ch.pipeline(), maxFrameLength)
+    ch
+  }
+
+  private def frame(body: String): ByteBuf = {
+    val bytes = body.getBytes(CharsetUtil.UTF_8)
+    Unpooled.buffer().writeInt(bytes.length).writeBytes(bytes)
+  }
+
+  private def inbound(ch: EmbeddedChannel): Seq[String] = {
+    val bodies = mutable.ArrayBuffer.empty[String]
+    var msg = ch.readInbound().asInstanceOf[ByteBuf]
+    while (msg != null) {
+      bodies += msg.toString(CharsetUtil.UTF_8)
+      msg.release()
+      msg = ch.readInbound().asInstanceOf[ByteBuf]
+    }
+    bodies
+  }
+
+  /** 编码器可能把长度字段和消息体作为两个buffer写出，这里拼成连续的字节 */
+  private def outbound(ch: EmbeddedChannel): ByteBuf = {
+    val out = Unpooled.buffer()
+    var msg = ch.readOutbound().asInstanceOf[ByteBuf]
+    while (msg != null) {
+      out.writeBytes(msg)
+      msg.release()
+      msg = ch.readOutbound().asInstanceOf[ByteBuf]
+    }
+    out
+  }
+
+  test("merged frames are split") {
+    val ch = channel()
+    val merged = Unpooled.wrappedBuffer(frame("QUERY TIME ORDER"), frame(""), frame("第三条"))
+    ch.writeInbound(merged)
+    inbound(ch) should be (Seq("QUERY TIME ORDER", "", "第三条"))
+    ch.finish() should be (false)
+  }
+
+  test("a frame split byte by byte is reassembled") {
+    val ch = channel()
+    val bytes = frame("QUERY TIME ORDER")
+    while (bytes.isReadable) {
+      inbound(ch) should be (Seq.empty)
+      ch.writeInbound(bytes.readBytes(1))
+    }
+    bytes.release()
+    inbound(ch) should be (Seq("QUERY TIME ORDER"))
+    ch.finish() should be (false)
+  }
+
+  test("outbound bodies get a length prefix") {
+    val ch = channel()
+    ch.writeOutbound(Unpooled.copiedBuffer("OK", CharsetUtil.UTF_8))
+    val out = outbound(ch)
+    out.readInt() should be (2)
+    out.toString(CharsetUtil.UTF_8) should be ("OK")
+    // 编码结果可以被同一个解码器还原
+    out.readerIndex(0)
+    ch.writeInbound(out)
+    inbound(ch) should be (Seq("OK"))
+    ch.finish() should be (false)
+  }
+
+  test("pre-encoded frames bypass the prepender") {
+    val ch = channel()
+    val body = "MESSAGE news hello".getBytes(CharsetUtil.UTF_8)
+    val encoded = PreEncodedFrame.newFrame(ByteBufAllocator.DEFAULT, body.length).writeBytes(body)
+    ch.writeOutbound(new PreEncodedFrame(encoded.duplicate().retain()))
+    val out = outbound(ch)
+    out.readableBytes() should be (FrameCodec.LENGTH_FIELD_LENGTH + body.length)
+    out.readInt() should be (body.length)
+    out.toString(CharsetUtil.UTF_8) should be ("MESSAGE news hello")
+    out.release()
+    // Unwrapper写出的是retain过的duplicate，原buffer只剩我们自己的引用
+    encoded.refCnt() should be (1)
+    encoded.release()
+    ch.finish() should be (false)
+  }
+
+  test("a too long frame fails fast") {
+    val ch = channel(16)
+    // 只写入长度字段，消息体还没到就应该失败
+    intercept[TooLongFrameException] {
+      ch.writeInbound(Unpooled.buffer().writeInt(17))
+    }
+    inbound(ch) should be (Seq.empty)
+    ch.finish()
+  }
+}
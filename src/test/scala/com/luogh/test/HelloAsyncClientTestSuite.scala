@@ -0,0 +1,86 @@
+package com.luogh.test
+
+import java.io.IOException
+import java.net.InetSocketAddress
+import java.nio.file.{Files, Path}
+import java.util.concurrent.{ExecutionException, TimeUnit}
+
+import com.luogh.netty._
+import io.netty.bootstrap.ServerBootstrap
+import io.netty.buffer.ByteBuf
+import io.netty.channel.nio.NioEventLoopGroup
+import io.netty.channel.socket.SocketChannel
+import io.netty.channel.socket.nio.NioServerSocketChannel
+import io.netty.channel.{ChannelHandlerContext, ChannelInboundHandlerAdapter, ChannelInitializer}
+import io.netty.util.CharsetUtil
+import org.scalatest.{FunSuite, Matchers}
+
+/**
+  * @author luogh
+  */
+class HelloAsyncClientTestSuite extends FunSuite with Matchers {
+
+  /** 所有字节值都出现，其中有大量不是合法UTF-8的序列 */
+  private val content: Array[Byte] = (0 until 4096).map(i => (i * 31 + (i >> 8)).toByte).toArray
+
+  /** 在IO线程中分发，FileCommand提交的写任务之后再flush */
+  private class Dispatch(commands: CommandDispatcher) extends ChannelInboundHandlerAdapter {
+    override def channelRead(ctx: ChannelHandlerContext, msg: Any): Unit = {
+      val frame = msg.asInstanceOf[ByteBuf]
+      try commands.dispatch(ctx, frame) finally frame.release()
+      ctx.channel().eventLoop().execute(new Runnable {
+        override def run(): Unit = ctx.flush()
+      })
+    }
+  }
+
+  /** 在本地端口上启动只有FILE和PING命令的服务端 */
+  private def withServer(root: Path)(body: Int => Unit): Unit = {
+    val commands = new CommandDispatcher()
+      .register("FILE", new FileCommand(root, 1 << 20, 1024, 4))
+      .register("PING", new Command {
+        override def execute(ctx: ChannelHandlerContext, args: ByteBuf): Unit =
+          ctx.write(ctx.alloc().buffer().writeBytes("PONG".getBytes(CharsetUtil.UTF_8)))
+      })
+    val group = new NioEventLoopGroup(1)
+    try {
+      val server = new ServerBootstrap().group(group).channel(classOf[NioServerSocketChannel])
+        .childHandler(new ChannelInitializer[SocketChannel] {
+          override def initChannel(ch: SocketChannel): Unit = {
+            FrameCodec.install(ch.pipeline())
+            ch.pipeline().addLast(new RequestIdCodec).addLast(new Dispatch(commands))
+          }
+        })
+        .bind("127.0.0.1", 0).sync().channel()
+      try body(server.localAddress().asInstanceOf[InetSocketAddress].getPort) finally server.close().sync()
+    } finally group.shutdownGracefully().sync()
+  }
+
+  test("file contents round trip as raw bytes") {
+    val root = Files.createTempDirectory("async-client")
+    val file = Files.write(root.resolve("binary.dat"), content)
+    try withServer(root) { port =>
+      val client = HelloAsyncClient.connect("127.0.0.1", port, 2, new java.util.function.Consumer[ByteBuf] {
+        override def accept(frame: ByteBuf): Unit = ()
+      })
+      try {
+        val whole = client.requestFile("binary.dat")
+        val range = client.requestFile("binary.dat", 100, 300)
+        val ping = client.request("PING")
+        whole.get(10, TimeUnit.SECONDS) should be (content)
+        range.get(10, TimeUnit.SECONDS) should be (content.slice(100, 400))
+        ping.get(10, TimeUnit.SECONDS) should be ("PONG")
+
+        val missing = intercept[ExecutionException] {
+          client.requestFile("missing.dat").get(10, TimeUnit.SECONDS)
+        }
+        missing.getCause shouldBe an [IOException]
+        missing.getCause.getMessage should be ("ERR NOT FOUND")
+        an [IllegalArgumentException] should be thrownBy client.request("FILE binary.dat")
+      } finally client.close()
+    } finally {
+      Files.delete(file)
+      Files.delete(root)
+    }
+  }
+}
@@ -0,0 +1,50 @@
+package com.luogh.test
+
+import java.util.concurrent.atomic.{AtomicInteger, LongAdder}
+
+import com.luogh.netty._
+import io.netty.buffer.{ByteBuf, Unpooled}
+import io.netty.channel.ChannelHandlerContext
+import io.netty.channel.embedded.EmbeddedChannel
+import io.netty.util.CharsetUtil
+import org.scalatest.{FunSuite, Matchers}
+
+/**
+  * @author luogh
+  */
+class HelloServerHandlerTestSuite extends FunSuite with Matchers {
+
+  private def frame(s: String): ByteBuf = Unpooled.copiedBuffer(s, CharsetUtil.UTF_8)
+
+  private def outbound(ch: EmbeddedChannel): Seq[String] =
+    Iterator.continually(ch.readOutbound().asInstanceOf[ByteBuf]).takeWhile(_ != null).map { buf =>
+      try buf.toString(CharsetUtil.UTF_8) finally buf.release()
+    }.toList
+
+  test("shed requests are answered but not counted as handled") {
+    val stats = new ServerStats
+    val connection = new StatsHandler(stats)
+    // 两个请求已经通过gate排队
+    val queued = new AtomicInteger(2)
+    val gate = new OverloadGate(queued, new LongAdder, 2)
+    val commands = new CommandDispatcher().register("PING", new Command {
+      override def execute(ctx: ChannelHandlerContext, args: ByteBuf): Unit = ctx.write(frame("PONG"))
+    })
+    // gate只用来记录done()，SHED标记直接交给业务handler，模拟这个连接前面还有请求在处理
+    val ch = new EmbeddedChannel(connection, new HelloServerHandler(gate, commands, connection))
+
+    ch.writeInbound(OverloadGate.SHED)
+    outbound(ch) should be (Seq("SERVER BUSY"))
+    stats.getMessages should be (0)
+    connection.toString should include ("messages=0")
+    // SHED不占用queued计数
+    queued.get() should be (2)
+
+    ch.writeInbound(frame("PING"), frame("UNKNOWN"))
+    outbound(ch) should be (Seq("PONG", "BAD ORDER"))
+    stats.getMessages should be (2)
+    connection.toString should include ("messages=2")
+    queued.get() should be (0)
+    ch.finish()
+  }
+}
@@ -0,0 +1,45 @@
+package com.luogh.test
+
+import com.luogh.base.LatencyHistogram
+import org.scalatest.{FunSuite, Matchers}
+
+import scala.util.Random
+
+/**
+  * @author luogh
+  */
+class LatencyHistogramTestSuite extends FunSuite with Matchers {
+
+  test("percentiles within bucket precision") {
+    val histogram = new LatencyHistogram()
+    val random = new Random(18)
+    val values = Array.fill(100000)((math.abs(random.nextGaussian()) * 1000000).toLong)
+    values.foreach(histogram.record)
+    val sorted = values.sorted
+    for (p <- Seq(50.0, 99.0, 99.9)) {
+      val exact = sorted(math.ceil(p / 100 * sorted.length).toInt - 1)
+      val error = (histogram.percentile(p) - exact).toDouble / exact
+      error should be >= 0.0
+      error should be < 1.0 / 64
+    }
+    histogram.count() should be (values.length)
+    histogram.max() should be (values.max)
+    histogram.percentile(100) should be (values.max)
+  }
+
+  test("small values are exact") {
+    val histogram = new LatencyHistogram()
+    (1 to 100).foreach(v => histogram.record(v))
+    histogram.percentile(50) should be (50)
+    histogram.percentile(99) should be (99)
+  }
+
+  test("coordinated omission correction backfills missing samples") {
+    val histogram = new LatencyHistogram()
+    histogram.recordWithExpectedInterval(100, 10)
+    histogram.count() should be (10)
+    histogram.percentile(50) should be (50)
+    histogram.recordWithExpectedInterval(5, 10)
+    histogram.count() should be (11)
+  }
+}
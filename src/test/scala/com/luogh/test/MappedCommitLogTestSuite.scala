@@ -0,0 +1,95 @@
+package com.luogh.test
+
+import java.io.{File, RandomAccessFile}
+import java.nio.file.Files
+
+import com.luogh.base.MappedCommitLog
+import org.scalatest.{FunSuite, Matchers}
+
+/**
+  * @author luogh
+  */
+class MappedCommitLogTestSuite extends FunSuite with Matchers {
+
+  private def record(i: Int): Array[Byte] = ("record-" + i + "-" + "x" * (i % 50)).getBytes("UTF-8")
+
+  private def readAll(log: MappedCommitLog): Seq[String] = {
+    val reader = log.reader(log.firstOffset())
+    Iterator.continually(reader.next()).takeWhile(_ != null).map(new String(_, "UTF-8")).toList
+  }
+
+  private def deleteDir(dir: File): Unit = {
+    dir.listFiles().foreach(_.delete())
+    dir.delete()
+  }
+
+  test("records roll over segments and survive reopen") {
+    val dir = Files.createTempDirectory("commit_log").toFile
+    val log = new MappedCommitLog(dir, 4096)
+    (0 until 1000).foreach(i => log.append(record(i)))
+    val committed = log.committedOffset()
+    log.force()
+    log.close()
+    dir.list().length should be > 1
+
+    val reopened = new MappedCommitLog(dir, 4096)
+    reopened.committedOffset() should be (committed)
+    readAll(reopened) should be ((0 until 1000).map(i => new String(record(i), "UTF-8")))
+    // 恢复后继续追加，接在原来的末尾
+    reopened.append(record(1000)) should be (committed)
+    reopened.close()
+    deleteDir(dir)
+  }
+
+  test("recovery stops at a torn record") {
+    val dir = Files.createTempDirectory("commit_log").toFile
+    val log = new MappedCommitLog(dir, 4096)
+    val offsets = (0 until 200).map(i => log.append(record(i)))
+    log.close()
+
+    // 模拟最后一条记录只写了一半: crc和payload不一致
+    val last = offsets.last
+    val segment = new File(dir, "%020d.log".format(last & ~4095L))
+    val raf = new RandomAccessFile(segment, "rw")
+    raf.seek((last & 4095) + 4)
+    raf.writeInt(12345)
+    raf.close()
+
+    val recovered = new MappedCommitLog(dir, 4096)
+    recovered.committedOffset() should be (last)
+    readAll(recovered).size should be (199)
+    recovered.append("again".getBytes("UTF-8")) should be (last)
+    readAll(recovered).last should be ("again")
+    recovered.close()
+    deleteDir(dir)
+  }
+
+  test("bytes left after a torn record are cleared") {
+    val dir = Files.createTempDirectory("commit_log").toFile
+    val log = new MappedCommitLog(dir, 4096)
+    val torn = log.append(record(49))
+    val survivor = log.append("old committed record".getBytes("UTF-8"))
+    log.close()
+
+    // 模拟页面乱序落盘: 后一条记录完整，前一条记录只写了一半
+    val segment = new File(dir, "%020d.log".format(0))
+    val raf = new RandomAccessFile(segment, "rw")
+    raf.seek(torn + 4)
+    raf.writeInt(12345)
+    raf.close()
+
+    val recovered = new MappedCommitLog(dir, 4096)
+    recovered.committedOffset() should be (torn)
+    readAll(recovered) should be (empty)
+    // 比损坏的记录短2字节，对齐之后正好结束在残留记录的开头
+    val shorter = "n" * (record(49).length - 2)
+    recovered.append(shorter.getBytes("UTF-8")) should be (torn)
+    recovered.close()
+
+    val again = new MappedCommitLog(dir, 4096)
+    readAll(again) should be (Seq(shorter))
+    again.committedOffset() should be (survivor)
+    again.close()
+    deleteDir(dir)
+  }
+}
@@ -0,0 +1,98 @@
+package com.luogh.test
+
+import java.io.File
+import java.nio.file.{Files, Paths}
+import java.util.concurrent.atomic.{AtomicBoolean, AtomicLong}
+
+import com.luogh.base.MappedLongHashIndex
+import org.scalatest.{FunSuite, Matchers}
+
+import scala.collection.JavaConverters._
+import scala.collection.mutable
+import scala.util.Random
+
+/**
+  * @author luogh
+  */
+class MappedLongHashIndexTestSuite extends FunSuite with Matchers {
+
+  test("resize keeps every entry and survives reopen") {
+    val file = File.createTempFile("hash_index", ".dat")
+    file.delete()
+    try {
+      val index = new MappedLongHashIndex(file, 16)
+      val initialCapacity = index.capacity()
+      val random = new Random(7)
+      val expected = mutable.HashMap.empty[Long, Long]
+      (0 until 20000).foreach { i =>
+        val key = random.nextInt(50000) - 100L
+        index.put(key, i)
+        expected(key) = i
+      }
+      // key为0保存在header中
+      index.put(0L, 99L)
+      expected(0L) = 99L
+
+      index.capacity() should be > initialCapacity
+      index.size() should be (expected.size)
+      expected.foreach { case (k, v) => index.get(k, -1L) should be (v) }
+      index.close()
+
+      val reopened = new MappedLongHashIndex(file, 16)
+      reopened.size() should be (expected.size)
+      expected.foreach { case (k, v) => reopened.get(k, -1L) should be (v) }
+      reopened.containsKey(123456L) should be (false)
+      reopened.get(123456L, -1L) should be (-1L)
+      reopened.close()
+    } finally {
+      file.delete()
+    }
+  }
+
+  /** /proc/self/maps中这个文件已经被rename替换掉的映射数 */
+  private def deletedMappings(file: File): Int =
+    Files.readAllLines(Paths.get("/proc/self/maps")).asScala.count(l => l.contains(file.getPath) && l.endsWith("(deleted)"))
+
+  test("replaced tables are unmapped once readers leave them") {
+    assume(new File("/proc/self/maps").isFile, "needs /proc/self/maps")
+    val file = File.createTempFile("hash_index", ".dat")
+    file.delete()
+    try {
+      val index = new MappedLongHashIndex(file, 16)
+      val written = new AtomicLong()
+      val stop = new AtomicBoolean()
+      val failures = new AtomicLong()
+      // 读线程在rehash期间不断查找已经写入的key
+      val readers = (0 until 4).map { r =>
+        val t = new Thread(new Runnable {
+          override def run(): Unit = {
+            val random = new Random(r)
+            while (!stop.get()) {
+              val n = written.get()
+              if (n > 0) {
+                val key = 1 + (random.nextLong() & Long.MaxValue) % n
+                if (index.get(key, -1L) != key * 3) failures.incrementAndGet()
+              }
+            }
+          }
+        })
+        t.start()
+        t
+      }
+      (1L to 200000L).foreach { key =>
+        index.put(key, key * 3)
+        written.set(key)
+      }
+      stop.set(true)
+      readers.foreach(_.join())
+
+      failures.get() should be (0)
+      // 经过十几次扩容，旧表全部解除了映射，只剩当前的表
+      index.capacity() should be >= 200000L
+      deletedMappings(file) should be (0)
+      index.close()
+    } finally {
+      file.delete()
+    }
+  }
+}
@@ -0,0 +1,88 @@
+package com.luogh.test
+
+import java.io.File
+import java.nio.{ByteBuffer, ByteOrder}
+
+import com.luogh.base.{MappedRingBuffer, MemoryMappedFile}
+import org.scalatest.{FunSuite, Matchers}
+
+import scala.collection.mutable
+
+/**
+  * @author luogh
+  */
+class MappedRingBufferTestSuite extends FunSuite with Matchers {
+
+  def withTempFile(body: File => Unit): Unit = {
+    val file = File.createTempFile("ring", ".dat")
+    file.delete()
+    try body(file) finally file.delete()
+  }
+
+  private def message(i: Int): String = "m" + i + "-" + "y" * (i % 37)
+
+  test("wraparound with padding keeps messages in order") {
+    withTempFile { file =>
+      val ring = new MappedRingBuffer(file, 1024, true)
+      val received = mutable.ArrayBuffer.empty[String]
+      val handler = new MappedRingBuffer.MessageHandler {
+        override def onMessage(`type`: Int, buffer: MemoryMappedFile, offset: Long, length: Int): Unit = {
+          val bytes = new Array[Byte](length)
+          buffer.get(offset, bytes, 0, length)
+          received += `type` + ":" + new String(bytes, "UTF-8")
+        }
+      }
+      // 每轮写满队列只消费3条，消息长度不同，环的末尾反复出现PADDING
+      var written = 0
+      (0 until 200).foreach { _ =>
+        while (ring.write(written, message(written).getBytes("UTF-8"))) {
+          written += 1
+        }
+        ring.read(handler, 3)
+      }
+      while (ring.read(handler, 100) > 0) {}
+
+      written should be > 200
+      received should be ((0 until written).map(i => i + ":" + message(i)))
+      ring.size() should be (0)
+      ring.close()
+    }
+  }
+
+  test("multiple producers preserve per producer order") {
+    withTempFile { file =>
+      val ring = new MappedRingBuffer(file, 4096, false)
+      val producers = 4
+      val perProducer = 20000
+      val threads = (0 until producers).map { id =>
+        new Thread(new Runnable {
+          override def run(): Unit = (0 until perProducer).foreach { i =>
+            val bytes = ByteBuffer.allocate(4 + i % 20).order(ByteOrder.LITTLE_ENDIAN).putInt(i).array()
+            while (!ring.write(id, bytes)) {
+              Thread.`yield`()
+            }
+          }
+        })
+      }
+      threads.foreach(_.start())
+
+      val expected = new Array[Int](producers)
+      var total = 0
+      val handler = new MappedRingBuffer.MessageHandler {
+        override def onMessage(`type`: Int, buffer: MemoryMappedFile, offset: Long, length: Int): Unit = {
+          buffer.getInt(offset) should be (expected(`type`))
+          expected(`type`) += 1
+          total += 1
+        }
+      }
+      val deadline = System.currentTimeMillis() + 60000
+      while (total < producers * perProducer && System.currentTimeMillis() < deadline) {
+        ring.read(handler, 64)
+      }
+      threads.foreach(_.join())
+      total should be (producers * perProducer)
+      expected.foreach(_ should be (perProducer))
+      ring.close()
+    }
+  }
+}
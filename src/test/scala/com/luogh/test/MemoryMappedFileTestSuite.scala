@@ -0,0 +1,115 @@
+package com.luogh.test
+
+import java.io.File
+
+import com.luogh.base.{MappedFileFlusher, MemoryMappedFile}
+import org.scalatest.{FunSuite, Matchers}
+
+/**
+  * @author luogh
+  */
+class MemoryMappedFileTestSuite extends FunSuite with Matchers {
+
+  def withTempFile(body: File => Unit): Unit = {
+    val file = File.createTempFile("mmf", ".dat")
+    file.delete()
+    try body(file) finally file.delete()
+  }
+
+  test("long offset read write across segment boundary") {
+    withTempFile { file =>
+      val mapped = new MemoryMappedFile(file, 0, 4096, false)
+      mapped.putLong(4093, 0x1122334455667788L)
+      mapped.putInt(3 * 4096 + 2, 77)
+      mapped.getLong(4093) should be (0x1122334455667788L)
+      mapped.getInt(3 * 4096 + 2) should be (77)
+      mapped.capacity() should be (4 * 4096)
+      mapped.close()
+    }
+  }
+
+  test("byte range spanning many segments") {
+    withTempFile { file =>
+      val mapped = new MemoryMappedFile(file, 0, 4096, false)
+      val src = Array.tabulate[Byte](10000)(_.toByte)
+      mapped.put(100, src, 0, src.length)
+      val dst = new Array[Byte](src.length)
+      mapped.get(100, dst, 0, dst.length)
+      dst should be (src)
+      mapped.close()
+    }
+  }
+
+  test("reopen read only") {
+    withTempFile { file =>
+      val mapped = new MemoryMappedFile(file, 8192, 4096, false)
+      mapped.putLong(8, 42L)
+      mapped.force()
+      mapped.close()
+
+      val readOnly = new MemoryMappedFile(file, 0, 4096, true)
+      readOnly.getLong(8) should be (42L)
+      intercept[IllegalStateException] {
+        readOnly.putLong(8, 1L)
+      }
+      // Unsafe写路径也必须先检查，否则写只读映射会导致JVM崩溃
+      intercept[IllegalStateException] {
+        readOnly.putLongOrdered(8, 1L)
+      }
+      intercept[IllegalStateException] {
+        readOnly.compareAndSwapLong(8, 42L, 1L)
+      }
+      intercept[IllegalStateException] {
+        readOnly.putIntOrdered(8, 1)
+      }
+      readOnly.getLong(8) should be (42L)
+      readOnly.close()
+    }
+  }
+
+  test("bulk fill copy and read into buffer") {
+    withTempFile { file =>
+      withTempFile { other =>
+        val src = new MemoryMappedFile(file, 0, 4096, false)
+        val dst = new MemoryMappedFile(other, 0, 8192, false)
+        src.fill(10, 20000, 'A'.toByte)
+        src.getByte(9) should be (0)
+        src.getByte(10) should be ('A'.toByte)
+        src.getByte(20009) should be ('A'.toByte)
+        src.getByte(20010) should be (0)
+
+        dst.copy(src, 5, 3000, 20010)
+        val buffer = java.nio.ByteBuffer.allocate(20010)
+        dst.get(3000, buffer)
+        buffer.flip()
+        buffer.get(4) should be (0)
+        (5 until 20005).foreach { i => buffer.get(i) should be ('A'.toByte) }
+        intercept[IllegalArgumentException] {
+          src.copy(src, 0, 100, 200)
+        }
+        src.close()
+        dst.close()
+      }
+    }
+  }
+
+  test("dirty pages are flushed by the background flusher") {
+    withTempFile { file =>
+      val mapped = new MemoryMappedFile(file, 1 << 20, 1 << 16, false)
+      val flusher = new MappedFileFlusher(100, 64 * 1024, 20)
+      flusher.register(mapped)
+      (0 until 10).foreach { i => mapped.putLong(i * 5000, i) }
+      mapped.dirtyBytes() should be (10 * 4096)
+      // 轮询到刷盘完成为止，不依赖固定的sleep时长
+      val deadline = System.currentTimeMillis() + 10000
+      while (mapped.dirtyBytes() != 0 && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10)
+      }
+      mapped.dirtyBytes() should be (0)
+
+      flusher.close(mapped)
+      mapped.capacity() should be (0)
+      flusher.close()
+    }
+  }
+}
@@ -0,0 +1,44 @@
+package com.luogh.test
+
+import com.luogh.base.memory.NativeMemoryTracker
+import org.scalatest.{FunSuite, Matchers}
+
+/**
+  * @author luogh
+  */
+class NativeMemoryTrackerTestSuite extends FunSuite with Matchers {
+
+  private val tracker = NativeMemoryTracker.get()
+
+  private def liveBytes(tag: String): Long =
+    Option(tracker.getLiveBytesByTag.get(tag)).map(_.longValue()).getOrElse(0L)
+
+  private def liveCount(tag: String): Long =
+    Option(tracker.getLiveAllocationsByTag.get(tag)).map(_.longValue()).getOrElse(0L)
+
+  test("allocations are counted per tag until freed") {
+    val addresses = (1 to 10).map(i => NativeMemoryTracker.allocate("test-unsafe", i * 100L))
+    liveBytes("test-unsafe") should be (5500)
+    liveCount("test-unsafe") should be (10)
+    addresses.zipWithIndex.foreach { case (address, i) => NativeMemoryTracker.free("test-unsafe", address, (i + 1) * 100L) }
+    liveBytes("test-unsafe") should be (0)
+    liveCount("test-unsafe") should be (0)
+  }
+
+  test("direct buffers are counted until freeDirect") {
+    val buffer = NativeMemoryTracker.allocateDirect("test-direct", 4096)
+    buffer.putLong(0, 42L)
+    liveBytes("test-direct") should be (4096)
+    NativeMemoryTracker.freeDirect(buffer)
+    liveBytes("test-direct") should be (0)
+    liveCount("test-direct") should be (0)
+  }
+
+  test("free with an unknown tag still releases the memory") {
+    val address = NativeMemoryTracker.allocate("test-known", 1024)
+    an [IllegalArgumentException] should be thrownBy NativeMemoryTracker.free("test-never-allocated", address, 1024)
+    // 内存已经释放，只有分配时的统计留在原来的tag上
+    liveBytes("test-known") should be (1024)
+    liveBytes("test-never-allocated") should be (0)
+  }
+}
@@ -0,0 +1,46 @@
+package com.luogh.test
+
+import com.luogh.netty.NettyTransport
+import com.typesafe.config.{Config, ConfigFactory}
+import io.netty.bootstrap.{Bootstrap, ServerBootstrap}
+import io.netty.channel.nio.NioEventLoopGroup
+import io.netty.channel.socket.nio.{NioServerSocketChannel, NioSocketChannel}
+import org.scalatest.{FunSuite, Matchers}
+
+/**
+  * @author luogh
+  */
+class NettyTransportTestSuite extends FunSuite with Matchers {
+
+  private def config(overrides: String): Config =
+    ConfigFactory.parseString(overrides).withFallback(ConfigFactory.load().getConfig("netty"))
+
+  test("nio transport ignores reuse-port") {
+    val transport = new NettyTransport(config("transport = nio, reuse-port = on, boss-threads = 4"))
+    transport.isEpoll should be (false)
+    transport.acceptorCount() should be (1)
+    transport.serverChannelClass() should be (classOf[NioServerSocketChannel])
+    transport.channelClass() should be (classOf[NioSocketChannel])
+    transport.toString should be ("nio(boss=4, worker=0, acceptors=1)")
+
+    val group = transport.newWorkerGroup()
+    try group shouldBe a [NioEventLoopGroup] finally group.shutdownGracefully()
+  }
+
+  test("water marks above the netty default are accepted") {
+    val transport = new NettyTransport(config(
+      "transport = nio, write-buffer-high-water-mark = 1m, write-buffer-low-water-mark = 512k"))
+    transport.configure(new ServerBootstrap()) should not be null
+    transport.configure(new Bootstrap()) should not be null
+  }
+
+  test("invalid settings are rejected") {
+    intercept[IllegalArgumentException] {
+      new NettyTransport(config("transport = kqueue"))
+    }
+    intercept[IllegalArgumentException] {
+      new NettyTransport(config(
+        "transport = nio, write-buffer-high-water-mark = 32k, write-buffer-low-water-mark = 64k"))
+    }
+  }
+}
@@ -0,0 +1,67 @@
+package com.luogh.test
+
+import com.luogh.base.memory.{NativeMemoryTracker, OffHeapLongLongMap}
+import org.scalatest.{FunSuite, Matchers}
+
+import scala.collection.mutable
+import scala.util.Random
+
+/**
+  * @author luogh
+  */
+class OffHeapLongLongMapTestSuite extends FunSuite with Matchers {
+
+  private def trackedBytes(): Long =
+    Option(NativeMemoryTracker.get().getLiveBytesByTag.get("OffHeapLongLongMap")).map(_.longValue()).getOrElse(0L)
+
+  test("random put addTo remove agree with a HashMap") {
+    val before = trackedBytes()
+    val map = new OffHeapLongLongMap(16)
+    val expected = mutable.HashMap.empty[Long, Long]
+    val random = new Random(10)
+    (0 until 200000).foreach { _ =>
+      // 小范围的key，包括0和负数，保证大量冲突和删除后的回移
+      val key = random.nextInt(5000) - 100L
+      random.nextInt(4) match {
+        case 0 =>
+          map.remove(key) should be (expected.remove(key).isDefined)
+        case 1 =>
+          val sum = expected.getOrElse(key, 0L) + 3
+          expected(key) = sum
+          map.addTo(key, 3) should be (sum)
+        case _ =>
+          val value = random.nextLong()
+          expected(key) = value
+          map.put(key, value)
+      }
+    }
+    map.capacity() should be > 16L
+    map.size() should be (expected.size)
+    (-100L until 4900L).foreach { key =>
+      map.containsKey(key) should be (expected.contains(key))
+      map.get(key, Long.MinValue) should be (expected.getOrElse(key, Long.MinValue))
+    }
+
+    val visited = mutable.HashMap.empty[Long, Long]
+    map.forEach(new OffHeapLongLongMap.LongLongProcedure {
+      override def apply(key: Long, value: Long): Unit = visited(key) = value
+    })
+    visited should be (expected)
+
+    map.clear()
+    map.size() should be (0)
+    map.containsKey(0L) should be (false)
+    map.close()
+    trackedBytes() should be (before)
+
+    // 关闭之后表已经释放，任何访问都不能再碰那块内存
+    map.close()
+    an [IllegalStateException] should be thrownBy map.containsKey(1L)
+    an [IllegalStateException] should be thrownBy map.get(1L, 0L)
+    an [IllegalStateException] should be thrownBy map.put(1L, 1L)
+    an [IllegalStateException] should be thrownBy map.addTo(1L, 1L)
+    an [IllegalStateException] should be thrownBy map.remove(1L)
+    an [IllegalStateException] should be thrownBy map.clear()
+    trackedBytes() should be (before)
+  }
+}
@@ -0,0 +1,51 @@
+package com.luogh.test
+
+import com.luogh.base.memory.{NativeMemoryTracker, OffHeapStringDictionary}
+import org.scalatest.{FunSuite, Matchers}
+
+import scala.collection.mutable
+
+/**
+  * @author luogh
+  */
+class OffHeapStringDictionaryTestSuite extends FunSuite with Matchers {
+
+  private def trackedBytes(): Long =
+    Option(NativeMemoryTracker.get().getLiveBytesByTag.get("OffHeapStringDictionary")).map(_.longValue()).getOrElse(0L)
+
+  test("dense ids round trip through the off-heap slabs") {
+    val before = trackedBytes()
+    // 小slab，保证跨越很多slab，并且有比slab还长的字符串
+    val dictionary = new OffHeapStringDictionary(1024)
+    val strings = (0 until 20000).map(i => "user-" + i + "@例子.com" + (if (i % 5000 == 0) "x" * 3000 else ""))
+    val ids = mutable.HashMap.empty[String, Int]
+    strings.zipWithIndex.foreach { case (s, i) =>
+      dictionary.add(s) should be (i)
+      ids(s) = i
+    }
+    // 重复加入返回已有的id，byte[]和CharSequence两种入口一致
+    strings.foreach(s => dictionary.add(s.getBytes("UTF-8")) should be (ids(s)))
+    dictionary.size() should be (strings.size)
+
+    strings.zipWithIndex.foreach { case (s, i) =>
+      dictionary.idOf(s) should be (i)
+      dictionary.toString(i) should be (s)
+      dictionary.length(i) should be (s.getBytes("UTF-8").length)
+    }
+    dictionary.idOf("missing") should be (-1)
+    dictionary.bytes(0).isReadOnly should be (true)
+
+    trackedBytes() should be > before
+    dictionary.close()
+    trackedBytes() should be (before)
+
+    // 关闭之后slab已经释放，既不能读也不能再分配新的slab
+    dictionary.close()
+    an [IllegalStateException] should be thrownBy dictionary.add("user-0@例子.com")
+    an [IllegalStateException] should be thrownBy dictionary.idOf("user-0@例子.com")
+    an [IllegalStateException] should be thrownBy dictionary.bytes(0)
+    an [IllegalStateException] should be thrownBy dictionary.length(0)
+    an [IllegalStateException] should be thrownBy dictionary.toString(0)
+    trackedBytes() should be (before)
+  }
+}
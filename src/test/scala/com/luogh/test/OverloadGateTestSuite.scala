@@ -0,0 +1,84 @@
+package com.luogh.test
+
+import java.util.concurrent.atomic.{AtomicInteger, LongAdder}
+
+import com.luogh.netty.OverloadGate
+import io.netty.buffer.{ByteBuf, Unpooled}
+import io.netty.channel.embedded.EmbeddedChannel
+import io.netty.channel.{ChannelHandlerContext, ChannelInboundHandlerAdapter}
+import io.netty.util.CharsetUtil
+import org.scalatest.{FunSuite, Matchers}
+
+import scala.collection.mutable
+
+/**
+  * @author luogh
+  */
+class OverloadGateTestSuite extends FunSuite with Matchers {
+
+  /** 代替业务handler，只记录收到的消息，由测试决定什么时候done */
+  private class Business extends ChannelInboundHandlerAdapter {
+    val received = mutable.ArrayBuffer.empty[AnyRef]
+    var ctx: ChannelHandlerContext = _
+
+    override def channelRead(ctx: ChannelHandlerContext, msg: Any): Unit = {
+      this.ctx = ctx
+      received += msg.asInstanceOf[AnyRef]
+    }
+  }
+
+  private def request(): ByteBuf = Unpooled.copiedBuffer("QUERY TIME ORDER", CharsetUtil.UTF_8)
+
+  test("requests over the limit are shed in order behind in-flight ones") {
+    val queued = new AtomicInteger()
+    val shed = new LongAdder
+    val gate = new OverloadGate(queued, shed, 2)
+    val business = new Business
+    val ch = new EmbeddedChannel(gate, business)
+
+    val third = request()
+    ch.writeInbound(request(), request(), third)
+    queued.get() should be (2)
+    // 前两条还在业务handler中，第三条的SERVER BUSY要由业务handler排在它们后面写出
+    business.received.size should be (3)
+    business.received(2) should be theSameInstanceAs OverloadGate.SHED
+    third.refCnt() should be (0)
+    shed.sum() should be (1)
+    ch.readOutbound().asInstanceOf[AnyRef] should be (null)
+
+    business.received.foreach { msg =>
+      gate.done(business.ctx, msg)
+      if (msg ne OverloadGate.SHED) {
+        msg.asInstanceOf[ByteBuf].release()
+      }
+    }
+    // SHED不占用queued计数
+    queued.get() should be (0)
+    ch.finish()
+  }
+
+  test("a connection with nothing in flight gets SERVER BUSY from the io thread") {
+    // 其他连接已经占满了队列
+    val queued = new AtomicInteger(2)
+    val shed = new LongAdder
+    val business = new Business
+    val ch = new EmbeddedChannel(new OverloadGate(queued, shed, 2), business)
+
+    ch.writeInbound(request())
+    business.received should be (empty)
+    queued.get() should be (2)
+    shed.sum() should be (1)
+    val busy = ch.readOutbound().asInstanceOf[ByteBuf]
+    busy.toString(CharsetUtil.UTF_8) should be ("SERVER BUSY")
+    busy.release()
+
+    // 队列空出来之后恢复正常
+    queued.set(1)
+    ch.writeInbound(request())
+    business.received.size should be (1)
+    queued.get() should be (2)
+    shed.sum() should be (1)
+    business.received.head.asInstanceOf[ByteBuf].release()
+    ch.finish()
+  }
+}
@@ -0,0 +1,158 @@
+package com.luogh.test
+
+import com.luogh.netty.{CommandDispatcher, FrameCodec, PubSubBroker}
+import io.netty.buffer.{ByteBuf, Unpooled}
+import io.netty.channel.embedded.EmbeddedChannel
+import io.netty.channel.{ChannelHandlerContext, ChannelInboundHandlerAdapter}
+import io.netty.util.CharsetUtil
+import org.scalatest.{FunSuite, Matchers}
+
+import scala.collection.mutable
+
+/**
+  * @author luogh
+  */
+class PubSubBrokerTestSuite extends FunSuite with Matchers {
+
+  /** 和HelloServerHandler一样按命令分发，读循环结束时flush */
+  private class Dispatch(commands: CommandDispatcher) extends ChannelInboundHandlerAdapter {
+    override def channelRead(ctx: ChannelHandlerContext, msg: Any): Unit = {
+      val frame = msg.asInstanceOf[ByteBuf]
+      try commands.dispatch(ctx, frame) finally frame.release()
+    }
+
+    override def channelReadComplete(ctx: ChannelHandlerContext): Unit = ctx.flush()
+  }
+
+  private def connect(commands: CommandDispatcher): EmbeddedChannel = {
+    val ch = new EmbeddedChannel()
+    FrameCodec.install(ch.pipeline())
+    ch.pipeline().addLast(new Dispatch(commands))
+    ch
+  }
+
+  private def send(ch: EmbeddedChannel, command: String): Unit = {
+    val body = command.getBytes(CharsetUtil.UTF_8)
+    ch.writeInbound(Unpooled.buffer().writeInt(body.length).writeBytes(body))
+    ch.runPendingTasks()
+  }
+
+  /** 已经写出的所有帧的消息体 */
+  private def received(ch: EmbeddedChannel): Seq[String] = {
+    ch.runPendingTasks()
+    val bytes = Unpooled.buffer()
+    Iterator.continually(ch.readOutbound().asInstanceOf[ByteBuf]).takeWhile(_ != null).foreach { buf =>
+      bytes.writeBytes(buf)
+      buf.release()
+    }
+    val frames = mutable.ArrayBuffer.empty[String]
+    while (bytes.isReadable) {
+      frames += bytes.readBytes(bytes.readInt()).toString(CharsetUtil.UTF_8)
+    }
+    frames
+  }
+
+  test("a published message reaches every subscriber once") {
+    val broker = new PubSubBroker
+    val commands = broker.registerTo(new CommandDispatcher)
+    val a = connect(commands)
+    val b = connect(commands)
+    val publisher = connect(commands)
+
+    send(a, "SUBSCRIBE news")
+    send(a, "SUBSCRIBE sport")
+    send(b, "SUBSCRIBE news")
+    received(a) should be (Seq("OK", "OK"))
+    received(b) should be (Seq("OK"))
+
+    send(publisher, "PUBLISH news 你好 world")
+    received(publisher) should be (Seq("OK 2"))
+    received(a) should be (Seq("MESSAGE news 你好 world"))
+    received(b) should be (Seq("MESSAGE news 你好 world"))
+
+    send(publisher, "PUBLISH weather sunny")
+    received(publisher) should be (Seq("OK 0"))
+    send(publisher, "PUBLISH")
+    received(publisher) should be (Seq("ERR NO TOPIC"))
+
+    broker.publishedCount() should be (2)
+    broker.deliveredCount() should be (2)
+    Seq(a, b, publisher).foreach(_.finish())
+  }
+
+  test("every command takes the topic up to the first space") {
+    val broker = new PubSubBroker
+    val commands = broker.registerTo(new CommandDispatcher)
+    val a = connect(commands)
+    val publisher = connect(commands)
+
+    // PUBLISH只能发到不带空格的topic，带空格的订阅永远收不到消息，直接拒绝
+    send(a, "SUBSCRIBE news today")
+    send(a, "SUBSCRIBE")
+    send(a, "UNSUBSCRIBE news today")
+    received(a) should be (Seq("ERR BAD TOPIC", "ERR NO TOPIC", "ERR BAD TOPIC"))
+    send(publisher, "PUBLISH news today")
+    received(publisher) should be (Seq("OK 0"))
+
+    send(a, "SUBSCRIBE news")
+    received(a) should be (Seq("OK"))
+    send(publisher, "PUBLISH news today")
+    received(publisher) should be (Seq("OK 1"))
+    received(a) should be (Seq("MESSAGE news today"))
+    Seq(a, publisher).foreach(_.finish())
+  }
+
+  test("unsubscribe and close remove the subscriber") {
+    val broker = new PubSubBroker
+    val commands = broker.registerTo(new CommandDispatcher)
+    val a = connect(commands)
+    val b = connect(commands)
+    val publisher = connect(commands)
+    send(a, "SUBSCRIBE news")
+    send(b, "SUBSCRIBE news")
+    received(a)
+    received(b)
+
+    send(a, "UNSUBSCRIBE news")
+    received(a) should be (Seq("OK"))
+    send(publisher, "PUBLISH news one")
+    received(publisher) should be (Seq("OK 1"))
+    received(a) should be (empty)
+    received(b) should be (Seq("MESSAGE news one"))
+
+    b.close()
+    send(publisher, "PUBLISH news two")
+    received(publisher) should be (Seq("OK 0"))
+    Seq(a, b, publisher).foreach(_.finish())
+  }
+
+  test("an unwritable subscriber misses the message instead of buffering it") {
+    val broker = new PubSubBroker
+    val commands = broker.registerTo(new CommandDispatcher)
+    val slow = connect(commands)
+    val publisher = connect(commands)
+    send(slow, "SUBSCRIBE news")
+    received(slow)
+
+    slow.config().setWriteBufferLowWaterMark(8)
+    slow.config().setWriteBufferHighWaterMark(16)
+    // 写入但不flush，出站积压超过高水位
+    slow.write(Unpooled.wrappedBuffer(new Array[Byte](32)))
+    slow.runPendingTasks()
+    slow.isWritable should be (false)
+
+    send(publisher, "PUBLISH news lost")
+    received(publisher) should be (Seq("OK 1"))
+    slow.runPendingTasks()
+    broker.droppedCount() should be (1)
+    broker.deliveredCount() should be (0)
+
+    slow.flush()
+    // 只有积压的32字节，没有广播的消息
+    val backlog = Iterator.continually(slow.readOutbound().asInstanceOf[ByteBuf]).takeWhile(_ != null).map { buf =>
+      try buf.readableBytes() finally buf.release()
+    }.sum
+    backlog should be (FrameCodec.LENGTH_FIELD_LENGTH + 32)
+    Seq(slow, publisher).foreach(_.finish())
+  }
+}
@@ -0,0 +1,93 @@
+package com.luogh.test
+
+import com.luogh.netty.{PreEncodedFrame, RequestIdCodec}
+import io.netty.buffer.{ByteBuf, ByteBufAllocator, Unpooled}
+import io.netty.channel.embedded.EmbeddedChannel
+import io.netty.util.CharsetUtil
+import org.scalatest.{FunSuite, Matchers}
+
+/**
+  * @author luogh
+  */
+class RequestIdCodecTestSuite extends FunSuite with Matchers {
+
+  private def text(s: String): ByteBuf = Unpooled.copiedBuffer(s, CharsetUtil.UTF_8)
+
+  /** id为负数时发送不带前缀的请求 */
+  private def request(ch: EmbeddedChannel, id: Long): Unit = {
+    val frame = if (id < 0) text("QUERY") else RequestIdCodec.newTagged(ByteBufAllocator.DEFAULT, id, 5)
+      .writeBytes("QUERY".getBytes(CharsetUtil.UTF_8))
+    ch.writeInbound(frame)
+    val received = ch.readInbound().asInstanceOf[ByteBuf]
+    // 业务handler看到的是去掉前缀的请求
+    received.toString(CharsetUtil.UTF_8) should be ("QUERY")
+    received.release()
+  }
+
+  /** 写出一条响应，检查它带的前缀 */
+  private def respond(ch: EmbeddedChannel, expectedId: Long): Unit = {
+    ch.writeOutbound(text("OK " + expectedId))
+    val frame = ch.readOutbound().asInstanceOf[ByteBuf]
+    try {
+      if (expectedId < 0) {
+        RequestIdCodec.isTagged(frame) should be (false)
+      } else {
+        frame.readByte() should be (RequestIdCodec.TAG)
+        frame.readLong() should be (expectedId)
+      }
+      frame.toString(CharsetUtil.UTF_8) should be ("OK " + expectedId)
+    } finally frame.release()
+  }
+
+  test("responses take ids in request order while the fifo grows") {
+    val ch = new EmbeddedChannel(new RequestIdCodec)
+    // 每轮37个未完成的请求，超过初始容量16，并且每轮的起点都不同
+    (0 until 5).foreach { round =>
+      val ids = (0 until 37).map(i => if (i % 3 == 0) -1L else round * 1000L + i)
+      ids.foreach(request(ch, _))
+      ids.foreach(respond(ch, _))
+    }
+    ch.finish() should be (false)
+  }
+
+  test("the fifo wraps around with requests always outstanding") {
+    val ch = new EmbeddedChannel(new RequestIdCodec)
+    (0 until 10).foreach(i => request(ch, i))
+    (10 until 200).foreach { i =>
+      request(ch, if (i % 7 == 0) -1 else i)
+      val oldest = i - 10
+      respond(ch, if (oldest % 7 == 0 && oldest >= 10) -1 else oldest)
+    }
+    ch.finish() should be (false)
+  }
+
+  test("a continuation carries the id of the previous response") {
+    val ch = new EmbeddedChannel(new RequestIdCodec)
+    request(ch, 42)
+    respond(ch, 42)
+    // 广播消息不是响应，原样通过
+    val broadcast = new PreEncodedFrame(PreEncodedFrame.newFrame(ByteBufAllocator.DEFAULT, 0))
+    ch.writeOutbound(broadcast)
+    ch.readOutbound().asInstanceOf[AnyRef] should be theSameInstanceAs broadcast
+    broadcast.release()
+
+    ch.writeOutbound(new RequestIdCodec.Continuation(ByteBufAllocator.DEFAULT, 5))
+    val tagged = ch.readOutbound().asInstanceOf[PreEncodedFrame]
+    val header = tagged.content()
+    header.readableBytes() should be (4 + RequestIdCodec.TAG_LENGTH)
+    header.readInt() should be (RequestIdCodec.TAG_LENGTH + 5)
+    header.readByte() should be (RequestIdCodec.TAG)
+    header.readLong() should be (42)
+    tagged.release()
+
+    // 不带id的请求，长度字段不变
+    request(ch, -1)
+    respond(ch, -1)
+    val continuation = new RequestIdCodec.Continuation(ByteBufAllocator.DEFAULT, 5)
+    ch.writeOutbound(continuation)
+    ch.readOutbound().asInstanceOf[AnyRef] should be theSameInstanceAs continuation
+    continuation.content().readInt() should be (5)
+    continuation.release()
+    ch.finish() should be (false)
+  }
+}
@@ -0,0 +1,170 @@
+package com.luogh.test
+
+import java.io.File
+import java.nio.file.Files
+
+import com.luogh.base.bitmap.{BitmapAlgebra, BitmapExpression, BitmapStore, ImmutableBitmap, RoaringBitmap}
+import org.scalatest.{FunSuite, Matchers}
+
+import scala.collection.mutable
+import scala.util.Random
+
+/**
+  * @author luogh
+  */
+class RoaringBitmapTestSuite extends FunSuite with Matchers {
+
+  def randomBitmap(seed: Long): (RoaringBitmap, mutable.TreeSet[Int]) = {
+    val random = new Random(seed)
+    val bitmap = new RoaringBitmap()
+    val expected = mutable.TreeSet.empty[Int]
+    (0 until 100000).foreach { _ =>
+      val v = random.nextInt(1 << 22)
+      if (random.nextInt(4) == 0) {
+        bitmap.remove(v)
+        expected -= v
+      } else {
+        bitmap.add(v)
+        expected += v
+      }
+    }
+    // 连续区间，runOptimize后生成run容器
+    (5000000 until 5100000).foreach { v =>
+      bitmap.add(v)
+      expected += v
+    }
+    (bitmap, expected)
+  }
+
+  test("set clear contains cardinality") {
+    val (bitmap, expected) = randomBitmap(1)
+    bitmap.cardinality() should be (expected.size)
+    (0 until 100000).foreach { v => bitmap.contains(v) should be (expected.contains(v)) }
+    bitmap.runOptimize()
+    bitmap.cardinality() should be (expected.size)
+    bitmap.contains(5050000) should be (true)
+  }
+
+  test("store and reopen mapped bitmap read only") {
+    val dir = Files.createTempDirectory("bitmap_store").toFile
+    val store = new BitmapStore(dir)
+    val (bitmap, expected) = randomBitmap(2)
+    bitmap.runOptimize()
+    store.put("2ddd39ac1d5f444ab0df86fe13ae6800", bitmap)
+    // 文件截断到序列化的长度，不保留映射时按segment扩展出来的部分
+    new java.io.File(dir, "2ddd39ac1d5f444ab0df86fe13ae6800.bitmap").length() should be (bitmap.serializedSizeInBytes())
+
+    val handle = store.acquire("2ddd39ac1d5f444ab0df86fe13ae6800")
+    val mapped = handle.bitmap()
+    mapped.cardinality() should be (expected.size)
+    (4990000 until 5110000).foreach { v => mapped.contains(v) should be (expected.contains(v)) }
+    val iterated = mutable.ArrayBuffer.empty[Int]
+    mapped.forEach(new java.util.function.IntConsumer {
+      override def accept(value: Int): Unit = iterated += value
+    })
+    iterated should be (expected.toSeq)
+    RoaringBitmap.copyOf(mapped).cardinality() should be (expected.size)
+    handle.close()
+
+    store.acquire("missing") should be (null)
+    store.contains("missing") should be (false)
+    an [IllegalArgumentException] should be thrownBy store.contains(null)
+    store.close()
+    dir.listFiles().foreach(_.delete())
+    dir.delete()
+  }
+
+  test("replacing a key keeps acquired mappings readable") {
+    val dir = Files.createTempDirectory("bitmap_store").toFile
+    val store = new BitmapStore(dir)
+    val first = new RoaringBitmap()
+    (0 until 1000).foreach(v => first.add(v))
+    store.put("key", first)
+
+    val handle = store.acquire("key")
+    val second = new RoaringBitmap()
+    (0 until 10).foreach(v => second.add(v * 7))
+    store.put("key", second)
+
+    // 旧的映射在handle关闭之前仍然可读，新的读取看到替换后的文件
+    handle.bitmap().cardinality() should be (1000)
+    handle.bitmap().contains(999) should be (true)
+    val replaced = store.acquire("key")
+    replaced.bitmap().cardinality() should be (10)
+    replaced.close()
+    handle.close()
+    an [IllegalStateException] should be thrownBy handle.bitmap()
+
+    store.remove("key") should be (true)
+    store.acquire("key") should be (null)
+    store.close()
+    dir.listFiles().foreach(_.delete())
+    dir.delete()
+  }
+
+  test("parallel set algebra (a AND b) ANDNOT c") {
+    val (a, setA) = randomBitmap(3)
+    val (b, setB) = randomBitmap(4)
+    val (c, setC) = randomBitmap(5)
+    val bitmaps = Map[String, ImmutableBitmap]("a" -> a, "b" -> b, "c" -> c)
+    val expression = BitmapExpression.parse("(a AND b) ANDNOT c", new java.util.function.Function[String, ImmutableBitmap] {
+      override def apply(name: String): ImmutableBitmap = bitmaps.getOrElse(name, null)
+    })
+    val expected = (setA & setB) -- setC
+
+    val algebra = new BitmapAlgebra()
+    algebra.cardinality(expression) should be (expected.size)
+    val result = algebra.evaluate(expression)
+    result.cardinality() should be (expected.size)
+    expected.foreach { v => result.contains(v) should be (true) }
+  }
+
+  private def resolver(bitmaps: Map[String, ImmutableBitmap]) = new java.util.function.Function[String, ImmutableBitmap] {
+    override def apply(name: String): ImmutableBitmap = bitmaps.getOrElse(name, null)
+  }
+
+  /** 分别用并行的cardinality和evaluate求值，和顺序计算的参照结果比较 */
+  private def check(algebra: BitmapAlgebra, expression: BitmapExpression, expected: collection.Set[Int]): Unit = {
+    algebra.cardinality(expression) should be (expected.size)
+    val result = algebra.evaluate(expression)
+    result.cardinality() should be (expected.size)
+    val iterated = mutable.ArrayBuffer.empty[Int]
+    result.forEach(new java.util.function.IntConsumer {
+      override def accept(value: Int): Unit = iterated += value
+    })
+    iterated should be (expected.toSeq.sorted)
+  }
+
+  test("parallel OR XOR and operator precedence match a sequential reference") {
+    val (a, setA) = randomBitmap(6)
+    val (b, setB) = randomBitmap(7)
+    val (c, setC) = randomBitmap(8)
+    val bitmaps = resolver(Map[String, ImmutableBitmap]("a" -> a, "b" -> b, "c" -> c))
+    def xor(x: collection.Set[Int], y: collection.Set[Int]) = (x -- y) ++ (y -- x)
+
+    // 非默认的threshold: 每个子任务只处理1个或3个容器，划分点落在不同的位置
+    val pool = new java.util.concurrent.ForkJoinPool(3)
+    Seq(new BitmapAlgebra(), new BitmapAlgebra(java.util.concurrent.ForkJoinPool.commonPool(), 1),
+      new BitmapAlgebra(pool, 3)).foreach { algebra =>
+      check(algebra, BitmapExpression.parse("a OR b", bitmaps), setA ++ setB)
+      check(algebra, BitmapExpression.parse("a XOR b", bitmaps), xor(setA, setB))
+      // AND/ANDNOT优先于OR/XOR
+      check(algebra, BitmapExpression.parse("a OR b AND c", bitmaps), setA ++ (setB & setC))
+      check(algebra, BitmapExpression.parse("a xor b andnot c", bitmaps), xor(setA, setB -- setC))
+      check(algebra, BitmapExpression.parse("(a XOR b) ANDNOT c", bitmaps), xor(setA, setB) -- setC)
+      // 同级从左到右结合
+      check(algebra, BitmapExpression.parse("a ANDNOT b ANDNOT c", bitmaps), (setA -- setB) -- setC)
+      check(algebra, BitmapExpression.parse("a XOR b OR c XOR a", bitmaps), xor(xor(setA, setB) ++ setC, setA))
+      check(algebra, BitmapExpression.parse("a AND (b OR c)", bitmaps), setA & (setB ++ setC))
+    }
+    pool.shutdown()
+  }
+
+  test("malformed expressions are rejected") {
+    val (a, _) = randomBitmap(9)
+    val bitmaps = resolver(Map[String, ImmutableBitmap]("a" -> a))
+    Seq("", "a AND", "(a OR a", "a a", "AND a", "a OR )", "()", "a AND missing").foreach { expression =>
+      an [IllegalArgumentException] should be thrownBy BitmapExpression.parse(expression, bitmaps)
+    }
+  }
+}
@@ -0,0 +1,55 @@
+package com.luogh.test
+
+import com.luogh.base.UnsafeAccess.UNSAFE
+import com.luogh.base.memory.{NativeMemoryTracker, SlabAllocator}
+import org.scalatest.{FunSuite, Matchers}
+
+/**
+  * @author luogh
+  */
+class SlabAllocatorTestSuite extends FunSuite with Matchers {
+
+  private def trackedBytes(): Long =
+    Option(NativeMemoryTracker.get().getLiveBytesByTag.get("SlabAllocator")).map(_.longValue()).getOrElse(0L)
+
+  test("allocate free and reuse blocks") {
+    val allocator = new SlabAllocator()
+    val addresses = Array.tabulate(10000)(i => allocator.allocate(24 + i % 100))
+    addresses.zipWithIndex.foreach { case (address, i) => UNSAFE.putLong(address, i) }
+    addresses.zipWithIndex.foreach { case (address, i) => UNSAFE.getLong(address) should be (i) }
+    addresses.distinct.length should be (addresses.length)
+
+    // 线程缓存后进先出，刚释放的块会被同一个size class的下一次分配复用
+    val block = allocator.allocate(40)
+    allocator.free(block, 40)
+    allocator.allocate(48) should be (block)
+    allocator.free(block, 48)
+
+    addresses.zipWithIndex.foreach { case (address, i) => allocator.free(address, 24 + i % 100) }
+    allocator.stats().liveBytes() should be (0)
+    allocator.close()
+  }
+
+  test("close releases slabs huge blocks and arenas") {
+    val before = trackedBytes()
+    val allocator = new SlabAllocator()
+    val small = allocator.allocate(100)
+    val huge = allocator.allocate(1 << 20)
+    val arena = allocator.newArena()
+    (0 until 20000).foreach(_ => arena.allocate(100))
+    allocator.stats().reservedBytes() should be >= (3L << 20)
+    trackedBytes() - before should be (allocator.stats().reservedBytes())
+
+    allocator.close()
+    allocator.stats().reservedBytes() should be (0)
+    allocator.stats().liveBytes() should be (0)
+    trackedBytes() should be (before)
+
+    // 关闭之后不能再拿到或者归还已经释放的内存
+    an [IllegalStateException] should be thrownBy allocator.allocate(16)
+    an [IllegalStateException] should be thrownBy allocator.free(small, 100)
+    an [IllegalStateException] should be thrownBy allocator.free(huge, 1 << 20)
+    an [IllegalStateException] should be thrownBy arena.allocate(8)
+    an [IllegalStateException] should be thrownBy allocator.newArena()
+  }
+}